@@ -0,0 +1,77 @@
+package ra.i2p;
+
+import net.i2p.I2PException;
+import net.i2p.client.I2PClient;
+import net.i2p.client.I2PClientFactory;
+import net.i2p.client.I2PSession;
+import net.i2p.client.I2PSessionException;
+import net.i2p.crypto.SigType;
+import ra.common.Envelope;
+import ra.common.identity.DID;
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Builds benchmark inputs without a router: envelopes shaped like real traffic and
+ * unconnected I2P sessions, which hold signing keys and so can make datagrams offline.
+ */
+final class BenchmarkData {
+
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789 ";
+
+    private BenchmarkData() {}
+
+    static NetworkPeer peer(Random random) {
+        NetworkPeer peer = new NetworkPeer(Network.I2P);
+        peer.setId(UUID.randomUUID().toString());
+        DID did = new DID();
+        did.setUsername("anon");
+        did.getPublicKey().setAlias("anon");
+        // Same lengths as a base64 destination and its hash
+        did.getPublicKey().setAddress(text(random, 516));
+        did.getPublicKey().setFingerprint(text(random, 44));
+        peer.setDid(did);
+        return peer;
+    }
+
+    /**
+     * @return Envelope routed between two peers with content of about the given size
+     */
+    static Envelope envelope(int contentBytes, Random random) {
+        Envelope envelope = Envelope.documentFactory();
+        envelope.addContent(text(random, contentBytes));
+        envelope.addExternalRoute(I2PService.class, I2PService.OPERATION_SEND, peer(random), peer(random));
+        return envelope;
+    }
+
+    static byte[] bytes(int length, Random random) {
+        byte[] b = new byte[length];
+        random.nextBytes(b);
+        return b;
+    }
+
+    static String text(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for(int i=0; i<length; i++) {
+            sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return new session with a fresh destination of the signature type; never connected
+     */
+    static I2PSession offlineSession(SigType sigType) throws I2PException, IOException, I2PSessionException {
+        I2PClient client = I2PClientFactory.createClient();
+        ByteArrayOutputStream keys = new ByteArrayOutputStream();
+        client.createDestination(keys, sigType);
+        return client.createSession(new ByteArrayInputStream(keys.toByteArray()), new Properties());
+    }
+}
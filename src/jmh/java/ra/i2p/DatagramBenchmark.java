@@ -0,0 +1,64 @@
+package ra.i2p;
+
+import net.i2p.client.I2PSession;
+import net.i2p.client.datagram.I2PDatagramDissector;
+import net.i2p.client.datagram.I2PDatagramMaker;
+import net.i2p.crypto.SigType;
+import net.i2p.data.Destination;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signing repliable datagrams on send and loading and verifying them on receive
+ * for each signature type a local destination can use.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DatagramBenchmark {
+
+    @Param({"EdDSA_SHA512_Ed25519", "ECDSA_SHA256_P256", "ECDSA_SHA384_P384", "ECDSA_SHA512_P521"})
+    public String sigType;
+
+    @Param({"256", "4096", "30720"})
+    public int payloadBytes;
+
+    private I2PSession session;
+    private I2PDatagramMaker maker;
+    private byte[] payload;
+    private byte[] datagram;
+
+    @Setup
+    public void setup() throws Exception {
+        session = BenchmarkData.offlineSession(SigType.parseSigType(sigType));
+        maker = new I2PDatagramMaker(session);
+        payload = BenchmarkData.bytes(payloadBytes, new Random(1));
+        datagram = maker.makeI2PDatagram(payload);
+    }
+
+    @Benchmark
+    public byte[] make() {
+        return maker.makeI2PDatagram(payload);
+    }
+
+    @Benchmark
+    public void loadAndVerify(Blackhole bh) throws Exception {
+        I2PDatagramDissector d = new I2PDatagramDissector();
+        d.loadI2PDatagram(datagram);
+        bh.consume(d.getPayload());
+        bh.consume(d.getSender());
+    }
+
+    @Benchmark
+    public Destination loadWithoutVerify() throws Exception {
+        I2PDatagramDissector d = new I2PDatagramDissector();
+        d.loadI2PDatagram(datagram);
+        return d.extractSender();
+    }
+}
@@ -0,0 +1,52 @@
+package ra.i2p;
+
+import net.i2p.client.I2PSession;
+import net.i2p.crypto.SigType;
+import net.i2p.data.Destination;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolving a peer's base64 address to a Destination, parsed each time versus through {@link DestinationCache}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DestinationBenchmark {
+
+    @Param({"EdDSA_SHA512_Ed25519", "ECDSA_SHA512_P521"})
+    public String sigType;
+
+    private String address;
+    private Destination destination;
+    private DestinationCache cache;
+
+    @Setup
+    public void setup() throws Exception {
+        I2PSession session = BenchmarkData.offlineSession(SigType.parseSigType(sigType));
+        destination = session.getMyDestination();
+        address = destination.toBase64();
+        cache = new DestinationCache();
+        cache.put(destination);
+    }
+
+    @Benchmark
+    public Destination parseBase64() throws Exception {
+        return new Destination(address);
+    }
+
+    @Benchmark
+    public Destination cached() throws Exception {
+        // Always a hit; a miss would go to the session's naming lookup
+        return cache.get(address, key -> destination);
+    }
+
+    @Benchmark
+    public String hash() throws Exception {
+        return new Destination(address).calculateHash().toBase64();
+    }
+}
@@ -0,0 +1,47 @@
+package ra.i2p;
+
+import net.i2p.data.DataFormatException;
+import org.openjdk.jmh.annotations.*;
+import ra.common.Envelope;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Envelope serialization as done by {@link I2PServiceSession} on every send and receive.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class EnvelopeCodecBenchmark {
+
+    @Param({"256", "4096", "32768"})
+    public int contentBytes;
+
+    @Param({"JSON", "BINARY"})
+    public String codec;
+
+    private EnvelopeCodec envelopeCodec;
+    private Envelope envelope;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() {
+        envelopeCodec = new EnvelopeCodec(EnvelopeCodec.Mode.valueOf(codec));
+        envelope = BenchmarkData.envelope(contentBytes, new Random(1));
+        encoded = envelopeCodec.encode(envelope, null);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return envelopeCodec.encode(envelope, null);
+    }
+
+    @Benchmark
+    public Envelope decode() throws DataFormatException {
+        return envelopeCodec.decode(encoded, null);
+    }
+}
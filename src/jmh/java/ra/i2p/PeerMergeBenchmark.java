@@ -0,0 +1,63 @@
+package ra.i2p;
+
+import org.openjdk.jmh.annotations.*;
+import ra.common.network.NetworkPeer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merging a received peer list into the known peers, as done for every NetOpReq and NetOpRes.
+ * Half of each list is already known, as is typical once peers have exchanged lists.
+ *
+ * Each invocation merges into its own copy of the known peers so every merge sees the same
+ * starting state; copyKnown measures that copy alone and is subtracted from addPeers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PeerMergeBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int peers;
+
+    private List<NetworkPeer> known;
+    private List<NetworkPeer> received;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        Random random = new Random(1);
+        known = new ArrayList<>(peers);
+        received = new ArrayList<>(peers);
+        for(int i=0; i<peers; i++) {
+            NetworkPeer peer = BenchmarkData.peer(random);
+            if(i % 2 == 0) {
+                known.add(peer);
+            }
+            received.add(peer);
+        }
+    }
+
+    private I2PService copyOfKnown() {
+        I2PService service = new I2PService();
+        service.addPeers(known);
+        return service;
+    }
+
+    @Benchmark
+    public int copyKnown() {
+        return copyOfKnown().getNumberPeers();
+    }
+
+    @Benchmark
+    public int addPeers() {
+        I2PService service = copyOfKnown();
+        service.addPeers(received);
+        return service.getNumberPeers();
+    }
+}
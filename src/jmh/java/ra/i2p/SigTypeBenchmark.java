@@ -0,0 +1,58 @@
+package ra.i2p;
+
+import net.i2p.crypto.DSAEngine;
+import net.i2p.crypto.KeyGenerator;
+import net.i2p.crypto.SigType;
+import net.i2p.data.Signature;
+import net.i2p.data.SigningPrivateKey;
+import net.i2p.data.SigningPublicKey;
+import net.i2p.data.SimpleDataStructure;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raw sign and verify cost of the signature types usable for the local destination.
+ * Every repliable datagram sent is signed once and verified once by the receiver.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SigTypeBenchmark {
+
+    @Param({"EdDSA_SHA512_Ed25519", "ECDSA_SHA256_P256", "ECDSA_SHA384_P384", "ECDSA_SHA512_P521"})
+    public String sigType;
+
+    @Param({"1024"})
+    public int payloadBytes;
+
+    private DSAEngine dsa;
+    private SigningPublicKey pub;
+    private SigningPrivateKey priv;
+    private byte[] payload;
+    private Signature signature;
+
+    @Setup
+    public void setup() throws Exception {
+        SimpleDataStructure[] keys = KeyGenerator.getInstance().generateSigningKeys(SigType.parseSigType(sigType));
+        pub = (SigningPublicKey) keys[0];
+        priv = (SigningPrivateKey) keys[1];
+        dsa = DSAEngine.getInstance();
+        payload = BenchmarkData.bytes(payloadBytes, new Random(1));
+        signature = dsa.sign(payload, priv);
+    }
+
+    @Benchmark
+    public Signature sign() {
+        return dsa.sign(payload, priv);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return dsa.verifySignature(signature, payload, pub);
+    }
+}
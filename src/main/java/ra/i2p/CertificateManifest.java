@@ -0,0 +1,105 @@
+package ra.i2p;
+
+import java.io.*;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Record of the certificates extracted from the jar into the certificates directory, so a start
+ * with the same jar skips extraction and a new jar only rewrites certificates whose CRC changed.
+ *
+ * Stored as certificates/manifest.properties: the jar's size and modification time, and
+ * the CRC and size of each certificate keyed by its path relative to the certificates directory.
+ */
+class CertificateManifest {
+
+    private static final Logger LOG = Logger.getLogger(CertificateManifest.class.getName());
+
+    static final String FILE_NAME = "manifest.properties";
+    private static final String JAR_KEY = "jar";
+
+    private final File certDir;
+    private final File file;
+    private final Properties entries = new Properties();
+    private boolean changed = false;
+
+    CertificateManifest(File certDir) {
+        this.certDir = certDir;
+        this.file = new File(certDir, FILE_NAME);
+    }
+
+    void load() {
+        if(!file.exists()) {
+            return;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            entries.load(in);
+        } catch (IOException e) {
+            // Treated as empty; everything is extracted again
+            LOG.warning("Unable to read certificate manifest: "+e.getLocalizedMessage());
+            entries.clear();
+        }
+    }
+
+    /**
+     * @return true if the certificates were extracted from this same jar and are all still present
+     */
+    boolean isJarUnchanged(File jar) {
+        if(!jarStamp(jar).equals(entries.getProperty(JAR_KEY))) {
+            return false;
+        }
+        for(String path : entries.stringPropertyNames()) {
+            if(JAR_KEY.equals(path)) {
+                continue;
+            }
+            String[] stamp = entries.getProperty(path).split(":");
+            File f = new File(certDir, path);
+            if(stamp.length!=2 || !f.exists() || f.length()!=Long.parseLong(stamp[1])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param path certificate path relative to the certificates directory, e.g. reseed/name.crt
+     * @return true if the certificate was last extracted with this CRC and is still intact
+     */
+    boolean isCurrent(String path, long crc, long size) {
+        File f = new File(certDir, path);
+        return (crc + ":" + size).equals(entries.getProperty(path)) && f.exists() && f.length()==size;
+    }
+
+    void record(String path, long crc, long size) {
+        String stamp = crc + ":" + size;
+        if(!stamp.equals(entries.setProperty(path, stamp))) {
+            changed = true;
+        }
+    }
+
+    void recordJar(File jar) {
+        String stamp = jarStamp(jar);
+        if(!stamp.equals(entries.setProperty(JAR_KEY, stamp))) {
+            changed = true;
+        }
+    }
+
+    /**
+     * Writes the manifest if anything was recorded since it was loaded.
+     */
+    void store() {
+        if(!changed) {
+            return;
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            entries.store(out, "Certificates extracted by I2PService");
+            changed = false;
+        } catch (IOException e) {
+            LOG.warning("Unable to write certificate manifest: "+e.getLocalizedMessage());
+        }
+    }
+
+    private static String jarStamp(File jar) {
+        return jar.getAbsolutePath() + ":" + jar.length() + ":" + jar.lastModified();
+    }
+}
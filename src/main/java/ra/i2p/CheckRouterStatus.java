@@ -15,6 +15,8 @@ class CheckRouterStatus extends BaseTask {
     @Override
     public Boolean execute() {
         service.checkRouterStats();
+        // Fast while the router comes up, backing off once it settles
+        setPeriodicity(service.statusPollMs());
         return true;
     }
 }
@@ -0,0 +1,411 @@
+package ra.i2p;
+
+import net.i2p.data.DataFormatException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Packs small payloads for the same destination into one datagram so they share a signature,
+ * an I2CP send and the garlic and tunnel overhead.
+ *
+ * A payload waits up to lingerMs for others to the same destination; the batch is sent sooner
+ * once the next payload would not fit in maxBytes. A batch of one is sent as the bare payload.
+ * Batch layout (big-endian):
+ * <pre>
+ * [0xF2][count: 2]([length: 2][payload])...
+ * </pre>
+ * Receivers must understand batch frames, so only enable it where all peers run this version or later.
+ *
+ * Each payload carries an item, e.g. its Envelope, handed back with the frame so the sender can
+ * report the outcome per payload. Sends of batches and of payloads sent around the coalescer
+ * with {@link #bypass} are sequenced per key so they reach the transport in offer order.
+ * A caller only ever waits on earlier sends to its own key. The linger thread never waits: a
+ * batch that lingers out behind another send is left to the thread making that send.
+ */
+class Coalescer<K, T> {
+
+    private static final Logger LOG = Logger.getLogger(Coalescer.class.getName());
+
+    public static final String PROP_ENABLED = "ra.i2p.batch.enabled";
+    public static final String PROP_LINGER_MS = "ra.i2p.batch.lingerMs";
+    public static final String PROP_MAX_BYTES = "ra.i2p.batch.maxBytes";
+
+    static final long DEFAULT_LINGER_MS = 20;
+    static final int HEADER_SIZE = 3;
+    static final int ENTRY_HEADER_SIZE = 2;
+    static final int MAX_ENTRY = 0xFFFF;
+
+    /**
+     * Sends a frame to its destination.
+     */
+    interface Sender<K, T> {
+        /**
+         * @param payloads the payloads packed into the frame, in order
+         * @param items the item offered with each payload
+         */
+        void send(K key, byte[] frame, List<byte[]> payloads, List<T> items);
+    }
+
+    private final class Batch {
+        private final K key;
+        private final List<byte[]> payloads = new ArrayList<>();
+        private final List<T> items = new ArrayList<>();
+        private int bytes = HEADER_SIZE;
+        private ScheduledFuture<?> timer;
+
+        private Batch(K key) {
+            this.key = key;
+        }
+    }
+
+    private final long lingerMs;
+    private final int maxBytes;
+    /**
+     * A send in a key's sequence.
+     */
+    private static final class Step {
+        // Run by whichever thread finds it first in line; null if run by the thread waiting on it
+        private final Runnable work;
+        private boolean claimed;
+
+        private Step(Runnable work) {
+            this.work = work;
+        }
+    }
+
+    /**
+     * Sends for one key in offer order, the first one in progress; dropped once empty.
+     */
+    private static final class Lane {
+        private final Deque<Step> steps = new ArrayDeque<>();
+    }
+
+    private final Sender<K, T> sender;
+    // Both guarded by this
+    private final Map<K, Batch> batches = new HashMap<>();
+    private final Map<K, Lane> lanes = new HashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "I2PService-Coalescer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final AtomicLong payloads = new AtomicLong();
+    private final AtomicLong frames = new AtomicLong();
+
+    /**
+     * @param sender sends a frame to its destination; called on the caller's thread when a batch fills
+     *               and on the coalescer's thread when it lingers out
+     */
+    Coalescer(long lingerMs, int maxBytes, Sender<K, T> sender) {
+        this.lingerMs = lingerMs;
+        this.maxBytes = Math.min(maxBytes, HEADER_SIZE + ENTRY_HEADER_SIZE + MAX_ENTRY);
+        this.sender = sender;
+    }
+
+    static boolean isEnabled(Properties config) {
+        return "true".equals(config.getProperty(PROP_ENABLED));
+    }
+
+    /**
+     * @param datagramBytes largest payload sent as one datagram; the default batch size
+     */
+    static <K, T> Coalescer<K, T> fromConfig(Properties config, int datagramBytes, Sender<K, T> sender) {
+        long lingerMs = DEFAULT_LINGER_MS;
+        int maxBytes = datagramBytes;
+        if(config.getProperty(PROP_LINGER_MS)!=null) {
+            lingerMs = Long.parseLong(config.getProperty(PROP_LINGER_MS));
+        }
+        if(config.getProperty(PROP_MAX_BYTES)!=null) {
+            maxBytes = Math.min(datagramBytes, Integer.parseInt(config.getProperty(PROP_MAX_BYTES)));
+        }
+        return new Coalescer<>(lingerMs, maxBytes, sender);
+    }
+
+    /**
+     * Adds the payload to its destination's batch.
+     * @return false if the payload is too large to batch; send it with {@link #bypass}
+     */
+    boolean offer(K key, byte[] payload, T item) {
+        int size = ENTRY_HEADER_SIZE + payload.length;
+        if(HEADER_SIZE + size > maxBytes) {
+            return false;
+        }
+        Batch full = null;
+        Batch ready = null;
+        Step step = null;
+        Lane lane = null;
+        synchronized (this) {
+            Batch batch = batches.get(key);
+            if(batch!=null && batch.bytes + size > maxBytes) {
+                full = remove(batch);
+                batch = null;
+            }
+            if(batch==null) {
+                batch = new Batch(key);
+                batches.put(key, batch);
+            }
+            batch.payloads.add(payload);
+            batch.items.add(item);
+            batch.bytes += size;
+            payloads.incrementAndGet();
+            if(batch.bytes + ENTRY_HEADER_SIZE >= maxBytes) {
+                // Nothing more fits
+                ready = remove(batch);
+            } else if(batch.timer==null) {
+                Batch lingering = batch;
+                batch.timer = scheduler.schedule(() -> flush(lingering), lingerMs, TimeUnit.MILLISECONDS);
+            }
+            if(full!=null || ready!=null) {
+                step = new Step(null);
+                lane = enqueue(key, step);
+            }
+        }
+        if(step!=null) {
+            awaitTurn(lane, step);
+            try {
+                if(full!=null) {
+                    send(full);
+                }
+                if(ready!=null) {
+                    send(ready);
+                }
+            } finally {
+                finish(key, lane);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends anything waiting for the key, then runs direct once every earlier send to the key
+     * has gone, so a payload sent around the coalescer never overtakes one offered before it.
+     */
+    <R> R bypass(K key, Supplier<R> direct) {
+        Batch waiting;
+        Step step = new Step(null);
+        Lane lane;
+        synchronized (this) {
+            waiting = batches.get(key);
+            if(waiting!=null) {
+                remove(waiting);
+            }
+            lane = enqueue(key, step);
+        }
+        awaitTurn(lane, step);
+        try {
+            if(waiting!=null) {
+                send(waiting);
+            }
+            return direct.get();
+        } finally {
+            finish(key, lane);
+        }
+    }
+
+    /**
+     * Sends a batch that lingered out, at once if nothing for its key is in progress, otherwise
+     * after it by the thread sending that.
+     */
+    private void flush(Batch batch) {
+        Step step = new Step(() -> send(batch));
+        Lane lane;
+        synchronized (this) {
+            if(batches.get(batch.key)!=batch) {
+                // Already sent
+                return;
+            }
+            batches.remove(batch.key);
+            lane = enqueue(batch.key, step);
+        }
+        synchronized (lane) {
+            if(lane.steps.peekFirst()!=step || step.claimed) {
+                return;
+            }
+            step.claimed = true;
+        }
+        step.work.run();
+        finish(batch.key, lane);
+    }
+
+    /**
+     * Sends everything waiting, returning once it has been handed to the sender.
+     */
+    void flushAll() {
+        List<Batch> waiting;
+        synchronized (this) {
+            waiting = new ArrayList<>(batches.values());
+        }
+        for(Batch batch : waiting) {
+            Step step = new Step(null);
+            Lane lane;
+            synchronized (this) {
+                if(batches.get(batch.key)!=batch) {
+                    continue;
+                }
+                remove(batch);
+                lane = enqueue(batch.key, step);
+            }
+            awaitTurn(lane, step);
+            try {
+                send(batch);
+            } finally {
+                finish(batch.key, lane);
+            }
+        }
+    }
+
+    /**
+     * Queues the step behind every send already sequenced for the key. Call holding this so the
+     * order matches the order batches were taken.
+     */
+    private Lane enqueue(K key, Step step) {
+        Lane lane = lanes.computeIfAbsent(key, k -> new Lane());
+        synchronized (lane) {
+            lane.steps.addLast(step);
+        }
+        return lane;
+    }
+
+    private static void awaitTurn(Lane lane, Step step) {
+        boolean interrupted = false;
+        synchronized (lane) {
+            while(lane.steps.peekFirst()!=step) {
+                try {
+                    lane.wait();
+                } catch (InterruptedException e) {
+                    // Leaving the line would let later sends overtake; keep waiting
+                    interrupted = true;
+                }
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Ends the first step in the lane, runs any lingered batches queued right behind it and
+     * wakes the thread whose send is next; drops the lane once empty.
+     */
+    private void finish(K key, Lane lane) {
+        while(true) {
+            Step next;
+            synchronized (lane) {
+                lane.steps.pollFirst();
+                next = lane.steps.peekFirst();
+                if(next==null || next.work==null || next.claimed) {
+                    lane.notifyAll();
+                    break;
+                }
+                next.claimed = true;
+            }
+            next.work.run();
+        }
+        synchronized (this) {
+            synchronized (lane) {
+                if(lane.steps.isEmpty()) {
+                    lanes.remove(key, lane);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends everything waiting and stops the linger timer.
+     */
+    void close() {
+        flushAll();
+        scheduler.shutdownNow();
+    }
+
+    private Batch remove(Batch batch) {
+        batches.remove(batch.key);
+        if(batch.timer!=null) {
+            batch.timer.cancel(false);
+        }
+        return batch;
+    }
+
+    private void send(Batch batch) {
+        frames.incrementAndGet();
+        byte[] frame = batch.payloads.size()==1 ? batch.payloads.get(0) : pack(batch.payloads);
+        try {
+            sender.send(batch.key, frame, batch.payloads, batch.items);
+        } catch (Exception e) {
+            LOG.warning("Unable to send batch of "+batch.payloads.size()+": "+e.getLocalizedMessage());
+        }
+    }
+
+    static byte[] pack(List<byte[]> payloads) {
+        int size = HEADER_SIZE;
+        for(byte[] payload : payloads) {
+            size += ENTRY_HEADER_SIZE + payload.length;
+        }
+        byte[] frame = new byte[size];
+        frame[0] = WireFormat.BATCH;
+        WireFormat.writeShort(frame, 1, payloads.size());
+        int off = HEADER_SIZE;
+        for(byte[] payload : payloads) {
+            WireFormat.writeShort(frame, off, payload.length);
+            System.arraycopy(payload, 0, frame, off + ENTRY_HEADER_SIZE, payload.length);
+            off += ENTRY_HEADER_SIZE + payload.length;
+        }
+        return frame;
+    }
+
+    static boolean isBatch(byte[] payload) {
+        return WireFormat.frameType(payload)==WireFormat.BATCH && payload.length >= HEADER_SIZE;
+    }
+
+    static List<byte[]> unpack(byte[] frame) throws DataFormatException {
+        int count = WireFormat.readShort(frame, 1);
+        List<byte[]> payloads = new ArrayList<>(count);
+        int off = HEADER_SIZE;
+        for(int i=0; i<count; i++) {
+            if(off + ENTRY_HEADER_SIZE > frame.length) {
+                throw new DataFormatException("Batch truncated at entry "+i+" of "+count);
+            }
+            int length = WireFormat.readShort(frame, off);
+            off += ENTRY_HEADER_SIZE;
+            if(off + length > frame.length) {
+                throw new DataFormatException("Batch truncated at entry "+i+" of "+count);
+            }
+            byte[] payload = new byte[length];
+            System.arraycopy(frame, off, payload, 0, length);
+            payloads.add(payload);
+            off += length;
+        }
+        if(off!=frame.length) {
+            throw new DataFormatException("Batch has "+(frame.length-off)+" trailing bytes.");
+        }
+        return payloads;
+    }
+
+    /**
+     * @return payloads accepted into batches
+     */
+    long getPayloads() {
+        return payloads.get();
+    }
+
+    /**
+     * @return datagrams sent for those payloads
+     */
+    long getFrames() {
+        return frames.get();
+    }
+}
@@ -0,0 +1,212 @@
+package ra.i2p;
+
+import net.i2p.client.I2PSessionException;
+import net.i2p.data.Destination;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Bounded LRU cache of I2P Destinations keyed by base64 address or base64 hash.
+ * Entries expire after a TTL; lookups that found nothing are cached for a shorter
+ * negative TTL so repeated sends to an unknown peer do not hit the naming service every time.
+ */
+class DestinationCache {
+
+    private static final Logger LOG = Logger.getLogger(DestinationCache.class.getName());
+
+    public static final String PROP_MAX_SIZE = "ra.i2p.destCache.maxSize";
+    public static final String PROP_TTL_SEC = "ra.i2p.destCache.ttlSec";
+    public static final String PROP_NEGATIVE_TTL_SEC = "ra.i2p.destCache.negativeTtlSec";
+
+    static final int DEFAULT_MAX_SIZE = 1000;
+    static final long DEFAULT_TTL_SEC = 10 * 60;
+    static final long DEFAULT_NEGATIVE_TTL_SEC = 30;
+
+    /**
+     * Performs the actual (blocking) lookup on a cache miss.
+     */
+    interface Lookup {
+        Destination lookup(String key) throws I2PSessionException;
+    }
+
+    private static final class Entry {
+        private final Destination destination; // null when negatively cached
+        private final long expiresAtNanos;
+
+        private Entry(Destination destination, long expiresAtNanos) {
+            this.destination = destination;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final LinkedHashMap<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    DestinationCache() {
+        this(DEFAULT_MAX_SIZE, TimeUnit.SECONDS.toMillis(DEFAULT_TTL_SEC), TimeUnit.SECONDS.toMillis(DEFAULT_NEGATIVE_TTL_SEC));
+    }
+
+    DestinationCache(final int maxSize, long ttlMs, long negativeTtlMs) {
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMs);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if(size() > DestinationCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    static DestinationCache fromConfig(Properties config) {
+        int maxSize = DEFAULT_MAX_SIZE;
+        long ttlSec = DEFAULT_TTL_SEC;
+        long negativeTtlSec = DEFAULT_NEGATIVE_TTL_SEC;
+        if(config!=null) {
+            if(config.getProperty(PROP_MAX_SIZE)!=null) {
+                maxSize = Integer.parseInt(config.getProperty(PROP_MAX_SIZE));
+            }
+            if(config.getProperty(PROP_TTL_SEC)!=null) {
+                ttlSec = Long.parseLong(config.getProperty(PROP_TTL_SEC));
+            }
+            if(config.getProperty(PROP_NEGATIVE_TTL_SEC)!=null) {
+                negativeTtlSec = Long.parseLong(config.getProperty(PROP_NEGATIVE_TTL_SEC));
+            }
+        }
+        return new DestinationCache(maxSize, TimeUnit.SECONDS.toMillis(ttlSec), TimeUnit.SECONDS.toMillis(negativeTtlSec));
+    }
+
+    /**
+     * Returns the cached Destination for the key or resolves it with the supplied lookup on a miss.
+     * A null result is cached for the negative TTL; exceptions are not cached.
+     * @param key base64 address or base64 hash
+     * @param lookup lookup to use on a miss
+     * @return Destination or null if not found
+     */
+    Destination get(String key, Lookup lookup) throws I2PSessionException {
+        if(key==null) {
+            return null;
+        }
+        long now = System.nanoTime();
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if(entry!=null) {
+                if(now - entry.expiresAtNanos < 0) {
+                    if(entry.destination==null) {
+                        negativeHits.incrementAndGet();
+                    } else {
+                        hits.incrementAndGet();
+                    }
+                    return entry.destination;
+                }
+                entries.remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        // Lookup outside the lock; concurrent misses for the same key may both resolve which is harmless
+        Destination destination = lookup.lookup(key);
+        long expiresAt = System.nanoTime() + (destination==null ? negativeTtlNanos : ttlNanos);
+        synchronized (entries) {
+            entries.put(key, new Entry(destination, expiresAt));
+        }
+        if(destination==null) {
+            LOG.fine("Destination not found; negatively cached: "+abbreviate(key));
+        }
+        return destination;
+    }
+
+    /**
+     * Caches a Destination already known, e.g. the verified sender of an inbound datagram,
+     * under both its base64 address and base64 hash.
+     */
+    void put(Destination destination) {
+        if(destination==null) {
+            return;
+        }
+        long expiresAt = System.nanoTime() + ttlNanos;
+        Entry entry = new Entry(destination, expiresAt);
+        String address = destination.toBase64();
+        String hash = destination.calculateHash().toBase64();
+        synchronized (entries) {
+            entries.put(address, entry);
+            entries.put(hash, entry);
+        }
+    }
+
+    /**
+     * Removes expired entries. Run periodically from {@link ExpireIdleState}; expired entries are
+     * otherwise only dropped when accessed or evicted.
+     */
+    int purgeExpired() {
+        long now = System.nanoTime();
+        int purged = 0;
+        synchronized (entries) {
+            Iterator<Entry> i = entries.values().iterator();
+            while(i.hasNext()) {
+                if(now - i.next().expiresAtNanos >= 0) {
+                    i.remove();
+                    purged++;
+                }
+            }
+        }
+        return purged;
+    }
+
+    void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return ratio of positive and negative hits to all lookups; 0 if none yet
+     */
+    double getHitRate() {
+        long h = hits.get() + negativeHits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double)h / total;
+    }
+
+    private static String abbreviate(String key) {
+        return key.length() > 7 ? key.substring(0, 7)+"..." : key;
+    }
+}
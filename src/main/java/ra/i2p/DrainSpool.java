@@ -0,0 +1,20 @@
+package ra.i2p;
+
+import ra.common.tasks.BaseTask;
+import ra.common.tasks.TaskRunner;
+
+class DrainSpool extends BaseTask {
+
+    private I2PService service;
+
+    public DrainSpool(I2PService service, TaskRunner taskRunner) {
+        super(DrainSpool.class.getSimpleName(), taskRunner);
+        this.service = service;
+    }
+
+    @Override
+    public Boolean execute() {
+        service.drainSpool();
+        return true;
+    }
+}
@@ -0,0 +1,390 @@
+package ra.i2p;
+
+import net.i2p.data.DataFormatException;
+import ra.common.Envelope;
+import ra.common.JSONParser;
+import ra.common.JSONSerializable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Encodes Envelopes for the wire either as legacy JSON text or as a compact,
+ * versioned binary form and decodes whichever of the two arrives.
+ *
+ * Binary layout:
+ * <pre>
+ * [0xB1][version: 1][value]
+ * </pre>
+ * where value is the Envelope's map written as tagged values: strings are UTF-8 bytes,
+ * integers are zig-zag varints and doubles are 8 bytes. Maps and lists are prefixed
+ * with their varint size.
+ *
+ * Which form is sent is chosen by ra.i2p.wire.codec:
+ * json (default) always sends JSON and auto negotiates binary per peer. In auto mode
+ * NetOpReq/NetOpRes peer discovery carries {@link #NVP_CODECS} advertising binary support
+ * and a peer is sent binary only once it has advertised support or sent us binary. Peers
+ * that do not advertise it, including older JSON-only peers, keep receiving JSON.
+ * Both forms are always accepted.
+ */
+class EnvelopeCodec {
+
+    private static final Logger LOG = Logger.getLogger(EnvelopeCodec.class.getName());
+
+    public static final String PROP_CODEC = "ra.i2p.wire.codec";
+    public static final String NVP_CODECS = "ra.i2p.codecs";
+    static final String CODEC_BINARY = "binary";
+
+    static final byte VERSION = 1;
+    static final int MAX_DEPTH = 32;
+    static final int MAX_KNOWN_PEERS = 10000;
+
+    enum Mode { JSON, AUTO }
+
+    private static final byte T_NULL = 0;
+    private static final byte T_TRUE = 1;
+    private static final byte T_FALSE = 2;
+    private static final byte T_INT = 3;
+    private static final byte T_LONG = 4;
+    private static final byte T_DOUBLE = 5;
+    private static final byte T_STRING = 6;
+    private static final byte T_BYTES = 7;
+    private static final byte T_LIST = 8;
+    private static final byte T_MAP = 9;
+
+    private final Mode mode;
+    // Fingerprints of peers known to accept binary Envelopes; bounded, least recently seen dropped first
+    private final Map<String, Boolean> binaryPeers = Collections.synchronizedMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_KNOWN_PEERS;
+        }
+    });
+
+    EnvelopeCodec() {
+        this(Mode.JSON);
+    }
+
+    EnvelopeCodec(Mode mode) {
+        this.mode = mode;
+    }
+
+    static EnvelopeCodec fromConfig(Properties config) {
+        Mode mode = Mode.JSON;
+        String codec = config.getProperty(PROP_CODEC);
+        if(CODEC_BINARY.equalsIgnoreCase(codec)) {
+            // Sending binary unasked would break JSON-only peers
+            LOG.warning(PROP_CODEC+"=binary is negotiated per peer; using auto.");
+            mode = Mode.AUTO;
+        } else if(codec!=null) {
+            mode = Mode.valueOf(codec.toUpperCase());
+        }
+        LOG.info("Envelope wire codec: "+mode.name());
+        return new EnvelopeCodec(mode);
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return value of {@link #NVP_CODECS} this node advertises, or null if it only sends JSON
+     */
+    String advertisement() {
+        return mode==Mode.AUTO ? CODEC_BINARY : null;
+    }
+
+    /**
+     * Records what a peer advertised during peer discovery.
+     * @param advertised peer's {@link #NVP_CODECS} value; null if it advertised nothing
+     */
+    void learn(String peerFingerprint, Object advertised) {
+        if(peerFingerprint==null) {
+            return;
+        }
+        if(advertised!=null && CODEC_BINARY.equals(advertised.toString())) {
+            binaryPeers.put(peerFingerprint, Boolean.TRUE);
+        } else {
+            // Not or no longer supported, e.g. the peer was downgraded
+            binaryPeers.remove(peerFingerprint);
+        }
+    }
+
+    /**
+     * @return true if Envelopes to the peer are sent binary
+     */
+    boolean sendsBinaryTo(String peerFingerprint) {
+        return mode==Mode.AUTO && peerFingerprint!=null && binaryPeers.containsKey(peerFingerprint);
+    }
+
+    /**
+     * @param envelope Envelope to encode; peer discovery Envelopes get this node's advertisement
+     * @param peerFingerprint base64 hash of the destination peer; used in auto mode
+     */
+    byte[] encode(Envelope envelope, String peerFingerprint) {
+        if(isPeerDiscovery(envelope)) {
+            // Also replaces the requester's advertisement when a NetOpReq is turned into the NetOpRes
+            envelope.addNVP(NVP_CODECS, advertisement());
+        }
+        if(sendsBinaryTo(peerFingerprint)) {
+            return encodeBinary(envelope);
+        }
+        return envelope.toJSON().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static boolean isPeerDiscovery(Envelope envelope) {
+        return envelope.markerPresent("NetOpReq") || envelope.markerPresent("NetOpRes");
+    }
+
+    /**
+     * Decodes a JSON or binary Envelope.
+     * @param payload complete payload
+     * @param peerFingerprint base64 hash of the verified sender; remembered as binary capable when binary is received
+     * or its peer discovery Envelope advertises it
+     */
+    Envelope decode(byte[] payload, String peerFingerprint) throws DataFormatException {
+        byte frameType = WireFormat.frameType(payload);
+        Map<String, Object> pm;
+        if(frameType==WireFormat.BINARY_ENVELOPE) {
+            pm = decodeBinaryMap(payload);
+            if(peerFingerprint!=null && mode==Mode.AUTO) {
+                binaryPeers.put(peerFingerprint, Boolean.TRUE);
+            }
+        } else {
+            // Anything else is treated as JSON as it always was
+            pm = (Map<String, Object>) JSONParser.parse(new String(payload, StandardCharsets.UTF_8));
+        }
+        Envelope envelope = Envelope.documentFactory();
+        envelope.fromMap(pm);
+        if(mode==Mode.AUTO && frameType!=WireFormat.BINARY_ENVELOPE && isPeerDiscovery(envelope)) {
+            learn(peerFingerprint, envelope.getValue(NVP_CODECS));
+        }
+        return envelope;
+    }
+
+    static byte[] encodeBinary(Envelope envelope) {
+        return encodeBinaryMap(envelope.toMap());
+    }
+
+    static byte[] encodeBinaryMap(Map<String, Object> map) {
+        Writer w = new Writer(512);
+        w.writeByte(WireFormat.BINARY_ENVELOPE);
+        w.writeByte(VERSION);
+        w.writeValue(map, 0);
+        return w.toByteArray();
+    }
+
+    static Map<String, Object> decodeBinaryMap(byte[] payload) throws DataFormatException {
+        if(payload.length < 3 || payload[0]!=WireFormat.BINARY_ENVELOPE) {
+            throw new DataFormatException("Not a binary Envelope.");
+        }
+        if(payload[1]!=VERSION) {
+            throw new DataFormatException("Unsupported binary Envelope version: "+payload[1]);
+        }
+        Reader r = new Reader(payload, 2);
+        Object value = r.readValue(0);
+        if(!(value instanceof Map)) {
+            throw new DataFormatException("Binary Envelope does not contain a map.");
+        }
+        if(r.pos!=payload.length) {
+            throw new DataFormatException("Trailing bytes after binary Envelope.");
+        }
+        return (Map<String, Object>) value;
+    }
+
+    private static final class Writer {
+        private byte[] buf;
+        private int pos = 0;
+
+        private Writer(int initialSize) {
+            buf = new byte[initialSize];
+        }
+
+        private void ensure(int n) {
+            if(pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, pos + n));
+            }
+        }
+
+        private void writeByte(byte b) {
+            ensure(1);
+            buf[pos++] = b;
+        }
+
+        private void writeVarLong(long v) {
+            ensure(10);
+            while((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte)((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte)v;
+        }
+
+        private void writeBytes(byte[] b) {
+            writeVarLong(b.length);
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, pos, b.length);
+            pos += b.length;
+        }
+
+        private void writeString(String s) {
+            writeBytes(s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void writeValue(Object v, int depth) {
+            if(depth > MAX_DEPTH) {
+                throw new IllegalArgumentException("Envelope nested deeper than "+MAX_DEPTH);
+            }
+            if(v==null) {
+                writeByte(T_NULL);
+            } else if(v instanceof String) {
+                writeByte(T_STRING);
+                writeString((String)v);
+            } else if(v instanceof Boolean) {
+                writeByte((Boolean)v ? T_TRUE : T_FALSE);
+            } else if(v instanceof Integer || v instanceof Short || v instanceof Byte) {
+                writeByte(T_INT);
+                writeVarLong(zigZag(((Number)v).longValue()));
+            } else if(v instanceof Long) {
+                writeByte(T_LONG);
+                writeVarLong(zigZag((Long)v));
+            } else if(v instanceof Double || v instanceof Float) {
+                writeByte(T_DOUBLE);
+                ensure(8);
+                WireFormat.writeLong(buf, pos, Double.doubleToLongBits(((Number)v).doubleValue()));
+                pos += 8;
+            } else if(v instanceof byte[]) {
+                writeByte(T_BYTES);
+                writeBytes((byte[])v);
+            } else if(v instanceof Map) {
+                Map<?,?> m = (Map<?,?>)v;
+                writeByte(T_MAP);
+                writeVarLong(m.size());
+                for(Map.Entry<?,?> e : m.entrySet()) {
+                    writeString(String.valueOf(e.getKey()));
+                    writeValue(e.getValue(), depth+1);
+                }
+            } else if(v instanceof Collection) {
+                Collection<?> c = (Collection<?>)v;
+                writeByte(T_LIST);
+                writeVarLong(c.size());
+                for(Object o : c) {
+                    writeValue(o, depth+1);
+                }
+            } else if(v instanceof Object[]) {
+                writeValue(Arrays.asList((Object[])v), depth);
+            } else if(v instanceof JSONSerializable) {
+                writeValue(((JSONSerializable)v).toMap(), depth);
+            } else {
+                // Same as JSON serialization of unknown types
+                writeByte(T_STRING);
+                writeString(v.toString());
+            }
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] buf;
+        private int pos;
+
+        private Reader(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        private byte readByte() throws DataFormatException {
+            if(pos >= buf.length) {
+                throw new DataFormatException("Truncated binary Envelope.");
+            }
+            return buf[pos++];
+        }
+
+        private long readVarLong() throws DataFormatException {
+            long v = 0;
+            for(int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                v |= (long)(b & 0x7F) << shift;
+                if((b & 0x80)==0) {
+                    return v;
+                }
+            }
+            throw new DataFormatException("Malformed varint in binary Envelope.");
+        }
+
+        private int readLength() throws DataFormatException {
+            long len = readVarLong();
+            if(len < 0 || len > buf.length - pos) {
+                throw new DataFormatException("Invalid length in binary Envelope: "+len);
+            }
+            return (int)len;
+        }
+
+        private String readString() throws DataFormatException {
+            int len = readLength();
+            String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+
+        private Object readValue(int depth) throws DataFormatException {
+            if(depth > MAX_DEPTH) {
+                throw new DataFormatException("Binary Envelope nested deeper than "+MAX_DEPTH);
+            }
+            byte tag = readByte();
+            switch (tag) {
+                case T_NULL: return null;
+                case T_TRUE: return Boolean.TRUE;
+                case T_FALSE: return Boolean.FALSE;
+                case T_INT: return (int)unZigZag(readVarLong());
+                case T_LONG: return unZigZag(readVarLong());
+                case T_DOUBLE: {
+                    if(buf.length - pos < 8) {
+                        throw new DataFormatException("Truncated binary Envelope.");
+                    }
+                    double d = Double.longBitsToDouble(WireFormat.readLong(buf, pos));
+                    pos += 8;
+                    return d;
+                }
+                case T_STRING: return readString();
+                case T_BYTES: {
+                    int len = readLength();
+                    byte[] b = Arrays.copyOfRange(buf, pos, pos + len);
+                    pos += len;
+                    return b;
+                }
+                case T_LIST: {
+                    // Every element takes at least one byte so the size can not exceed what remains
+                    int size = readLength();
+                    List<Object> l = new ArrayList<>(size);
+                    for(int i=0; i<size; i++) {
+                        l.add(readValue(depth+1));
+                    }
+                    return l;
+                }
+                case T_MAP: {
+                    int size = readLength();
+                    Map<String, Object> m = new HashMap<>(size * 4 / 3 + 1);
+                    for(int i=0; i<size; i++) {
+                        String key = readString();
+                        m.put(key, readValue(depth+1));
+                    }
+                    return m;
+                }
+                default: throw new DataFormatException("Unknown tag in binary Envelope: "+tag);
+            }
+        }
+    }
+
+    private static long zigZag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unZigZag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+}
@@ -0,0 +1,24 @@
+package ra.i2p;
+
+import ra.common.tasks.BaseTask;
+import ra.common.tasks.TaskRunner;
+
+/**
+ * Drops stale fragment reassemblies, idle stream connections and expired cached Destinations
+ * on a fixed period, independent of how far the router status check has backed off.
+ */
+class ExpireIdleState extends BaseTask {
+
+    private I2PService service;
+
+    public ExpireIdleState(I2PService service, TaskRunner taskRunner) {
+        super(ExpireIdleState.class.getSimpleName(), taskRunner);
+        this.service = service;
+    }
+
+    @Override
+    public Boolean execute() {
+        service.expireIdleState();
+        return true;
+    }
+}
@@ -0,0 +1,20 @@
+package ra.i2p;
+
+import ra.common.tasks.BaseTask;
+import ra.common.tasks.TaskRunner;
+
+class ExpireInflightRequests extends BaseTask {
+
+    private I2PService service;
+
+    public ExpireInflightRequests(I2PService service, TaskRunner taskRunner) {
+        super(ExpireInflightRequests.class.getSimpleName(), taskRunner);
+        this.service = service;
+    }
+
+    @Override
+    public Boolean execute() {
+        service.inflight.expire();
+        return true;
+    }
+}
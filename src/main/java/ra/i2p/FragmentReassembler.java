@@ -0,0 +1,266 @@
+package ra.i2p;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Bounded reassembly buffer for fragments produced by {@link Fragmenter}.
+ *
+ * Partially received messages are keyed by verified sender and message id.
+ * They are dropped when they time out, when the number of pending messages or
+ * the total buffered bytes would exceed their caps (oldest first), or when they
+ * are malformed or declare a length larger than the per-message cap.
+ * The fragment table of each partial message counts toward the buffered bytes
+ * so headers declaring many fragments can not hold memory outside the cap.
+ */
+class FragmentReassembler {
+
+    private static final Logger LOG = Logger.getLogger(FragmentReassembler.class.getName());
+
+    public static final String PROP_FRAGMENT_SIZE = "ra.i2p.fragment.size";
+    public static final String PROP_MAX_MESSAGE_BYTES = "ra.i2p.fragment.maxMessageBytes";
+    public static final String PROP_MAX_BUFFER_BYTES = "ra.i2p.fragment.maxBufferBytes";
+    public static final String PROP_MAX_PENDING = "ra.i2p.fragment.maxPendingMessages";
+    public static final String PROP_TIMEOUT_SEC = "ra.i2p.fragment.timeoutSec";
+
+    static final int DEFAULT_FRAGMENT_SIZE = 30 * 1024;
+    static final int DEFAULT_MAX_MESSAGE_BYTES = 4 * 1024 * 1024;
+    static final long DEFAULT_MAX_BUFFER_BYTES = 16 * 1024 * 1024L;
+    static final int DEFAULT_MAX_PENDING = 256;
+    static final long DEFAULT_TIMEOUT_SEC = 60;
+
+    // Array header and one reference per fragment
+    private static final int TABLE_OVERHEAD = 16;
+    private static final int BYTES_PER_PART = 8;
+
+    private static final class Partial {
+        private final byte[][] parts;
+        private final int totalLength;
+        private final long startedNanos;
+        private final int overhead;
+        private int received;
+        private int bytes;
+
+        private Partial(int count, int totalLength, long startedNanos) {
+            this.parts = new byte[count][];
+            this.totalLength = totalLength;
+            this.startedNanos = startedNanos;
+            this.overhead = tableBytes(count);
+        }
+
+        private long buffered() {
+            return (long)bytes + overhead;
+        }
+    }
+
+    private static int tableBytes(int count) {
+        return TABLE_OVERHEAD + count * BYTES_PER_PART;
+    }
+
+    private final int maxMessageBytes;
+    private final long maxBufferBytes;
+    private final int maxPending;
+    private final long timeoutNanos;
+
+    // Insertion ordered so the head is always the oldest partial message
+    private final LinkedHashMap<String, Partial> partials = new LinkedHashMap<>();
+    private long bufferedBytes = 0L;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    FragmentReassembler() {
+        this(DEFAULT_MAX_MESSAGE_BYTES, DEFAULT_MAX_BUFFER_BYTES, DEFAULT_MAX_PENDING, TimeUnit.SECONDS.toMillis(DEFAULT_TIMEOUT_SEC));
+    }
+
+    FragmentReassembler(int maxMessageBytes, long maxBufferBytes, int maxPending, long timeoutMs) {
+        this.maxMessageBytes = maxMessageBytes;
+        this.maxBufferBytes = maxBufferBytes;
+        this.maxPending = maxPending;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    }
+
+    static FragmentReassembler fromConfig(Properties config) {
+        int maxMessageBytes = DEFAULT_MAX_MESSAGE_BYTES;
+        long maxBufferBytes = DEFAULT_MAX_BUFFER_BYTES;
+        int maxPending = DEFAULT_MAX_PENDING;
+        long timeoutSec = DEFAULT_TIMEOUT_SEC;
+        if(config.getProperty(PROP_MAX_MESSAGE_BYTES)!=null) {
+            maxMessageBytes = Integer.parseInt(config.getProperty(PROP_MAX_MESSAGE_BYTES));
+        }
+        if(config.getProperty(PROP_MAX_BUFFER_BYTES)!=null) {
+            maxBufferBytes = Long.parseLong(config.getProperty(PROP_MAX_BUFFER_BYTES));
+        }
+        if(config.getProperty(PROP_MAX_PENDING)!=null) {
+            maxPending = Integer.parseInt(config.getProperty(PROP_MAX_PENDING));
+        }
+        if(config.getProperty(PROP_TIMEOUT_SEC)!=null) {
+            timeoutSec = Long.parseLong(config.getProperty(PROP_TIMEOUT_SEC));
+        }
+        return new FragmentReassembler(maxMessageBytes, maxBufferBytes, maxPending, TimeUnit.SECONDS.toMillis(timeoutSec));
+    }
+
+    /**
+     * Adds a fragment received from the sender.
+     * @param sender verified sender, e.g. base64 hash of the sending Destination
+     * @param fragment fragment including header
+     * @return the reassembled payload once all fragments have arrived, otherwise null
+     */
+    synchronized byte[] accept(String sender, byte[] fragment) {
+        long now = System.nanoTime();
+        expire(now);
+        if(!Fragmenter.isFragment(fragment)) {
+            reject("Malformed fragment from "+sender);
+            return null;
+        }
+        long messageId = WireFormat.readLong(fragment, 1);
+        int index = WireFormat.readShort(fragment, 9);
+        int count = WireFormat.readShort(fragment, 11);
+        int totalLength = WireFormat.readInt(fragment, 13);
+        int dataLength = fragment.length - Fragmenter.HEADER_SIZE;
+        if(count==0 || index >= count || totalLength <= 0 || totalLength > maxMessageBytes || dataLength > totalLength
+                || count > maxFragments(totalLength)) {
+            reject("Invalid fragment header from "+sender+": index="+index+", count="+count+", length="+totalLength);
+            return null;
+        }
+        String key = sender + ":" + messageId;
+        Partial partial = partials.get(key);
+        if(partial==null) {
+            while(partials.size() >= maxPending && !partials.isEmpty()) {
+                evictOldest();
+            }
+            while(bufferedBytes + tableBytes(count) > maxBufferBytes && !partials.isEmpty()) {
+                evictOldest();
+            }
+            partial = new Partial(count, totalLength, now);
+            partials.put(key, partial);
+            bufferedBytes += partial.overhead;
+        } else if(partial.parts.length!=count || partial.totalLength!=totalLength) {
+            remove(key, partial);
+            reject("Fragment header mismatch from "+sender+"; dropping message.");
+            return null;
+        }
+        if(partial.parts[index]!=null) {
+            // Duplicate
+            return null;
+        }
+        if(partial.bytes + dataLength > partial.totalLength) {
+            remove(key, partial);
+            reject("Fragments from "+sender+" exceed declared length; dropping message.");
+            return null;
+        }
+        while(bufferedBytes + dataLength > maxBufferBytes && !partials.isEmpty()) {
+            evictOldest();
+        }
+        if(partials.get(key)!=partial) {
+            // Evicted itself to stay under the buffer cap
+            return null;
+        }
+        byte[] data = new byte[dataLength];
+        System.arraycopy(fragment, Fragmenter.HEADER_SIZE, data, 0, dataLength);
+        partial.parts[index] = data;
+        partial.received++;
+        partial.bytes += dataLength;
+        bufferedBytes += dataLength;
+        if(partial.received < partial.parts.length) {
+            return null;
+        }
+        remove(key, partial);
+        if(partial.bytes!=partial.totalLength) {
+            reject("Reassembled message from "+sender+" has "+partial.bytes+" bytes but declared "+partial.totalLength);
+            return null;
+        }
+        byte[] payload = new byte[partial.totalLength];
+        int offset = 0;
+        for(byte[] part : partial.parts) {
+            System.arraycopy(part, 0, payload, offset, part.length);
+            offset += part.length;
+        }
+        completed.incrementAndGet();
+        return payload;
+    }
+
+    /**
+     * @return most fragments a sender can split totalLength bytes into
+     */
+    private static int maxFragments(int totalLength) {
+        return (totalLength + Fragmenter.MIN_FRAGMENT_DATA - 1) / Fragmenter.MIN_FRAGMENT_DATA;
+    }
+
+    /**
+     * Drops partial messages older than the timeout.
+     * @return number of messages dropped
+     */
+    synchronized int expire() {
+        return expire(System.nanoTime());
+    }
+
+    private int expire(long now) {
+        int count = 0;
+        Iterator<Map.Entry<String, Partial>> i = partials.entrySet().iterator();
+        while(i.hasNext()) {
+            Partial partial = i.next().getValue();
+            if(now - partial.startedNanos < timeoutNanos) {
+                break; // the rest are younger
+            }
+            i.remove();
+            bufferedBytes -= partial.buffered();
+            expired.incrementAndGet();
+            count++;
+        }
+        if(count > 0) {
+            LOG.info(count+" incomplete fragmented message(s) timed out.");
+        }
+        return count;
+    }
+
+    private void evictOldest() {
+        Iterator<Map.Entry<String, Partial>> i = partials.entrySet().iterator();
+        Partial partial = i.next().getValue();
+        i.remove();
+        bufferedBytes -= partial.buffered();
+        evicted.incrementAndGet();
+        LOG.warning("Fragment reassembly buffer full; evicted incomplete message with "+partial.received+" of "+partial.parts.length+" fragments.");
+    }
+
+    private void remove(String key, Partial partial) {
+        partials.remove(key);
+        bufferedBytes -= partial.buffered();
+    }
+
+    private void reject(String reason) {
+        rejected.incrementAndGet();
+        LOG.warning(reason);
+    }
+
+    synchronized int getPendingMessages() {
+        return partials.size();
+    }
+
+    synchronized long getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    long getCompleted() {
+        return completed.get();
+    }
+
+    long getExpired() {
+        return expired.get();
+    }
+
+    long getEvicted() {
+        return evicted.get();
+    }
+
+    long getRejected() {
+        return rejected.get();
+    }
+}
@@ -0,0 +1,61 @@
+package ra.i2p;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Splits payloads too large for one I2P datagram into numbered fragments.
+ *
+ * Fragment layout (big-endian):
+ * <pre>
+ * [0xF1][message id: 8][index: 2][count: 2][total length: 4][data]
+ * </pre>
+ * Fragments are reassembled by {@link FragmentReassembler}.
+ */
+final class Fragmenter {
+
+    static final int HEADER_SIZE = 1 + 8 + 2 + 2 + 4;
+    static final int MAX_FRAGMENTS = 0xFFFF;
+    // Every fragment but the last carries at least this much data, bounding the count a header may declare
+    static final int MIN_FRAGMENT_DATA = 512;
+
+    private Fragmenter() {}
+
+    /**
+     * @param payload payload to split
+     * @param maxFragmentSize maximum size of each fragment including header
+     * @return fragments in order
+     * @throws IllegalArgumentException if the payload needs more than {@link #MAX_FRAGMENTS} fragments
+     * or maxFragmentSize leaves less than {@link #MIN_FRAGMENT_DATA} bytes for data
+     */
+    static List<byte[]> split(byte[] payload, int maxFragmentSize) {
+        int dataSize = maxFragmentSize - HEADER_SIZE;
+        if(dataSize < MIN_FRAGMENT_DATA) {
+            throw new IllegalArgumentException("Fragment size must be at least "+(HEADER_SIZE + MIN_FRAGMENT_DATA));
+        }
+        int count = (payload.length + dataSize - 1) / dataSize;
+        if(count > MAX_FRAGMENTS) {
+            throw new IllegalArgumentException("Payload of "+payload.length+" bytes requires more than "+MAX_FRAGMENTS+" fragments.");
+        }
+        long messageId = ThreadLocalRandom.current().nextLong();
+        List<byte[]> fragments = new ArrayList<>(count);
+        for(int i=0; i<count; i++) {
+            int offset = i * dataSize;
+            int length = Math.min(dataSize, payload.length - offset);
+            byte[] fragment = new byte[HEADER_SIZE + length];
+            fragment[0] = WireFormat.FRAGMENT;
+            WireFormat.writeLong(fragment, 1, messageId);
+            WireFormat.writeShort(fragment, 9, i);
+            WireFormat.writeShort(fragment, 11, count);
+            WireFormat.writeInt(fragment, 13, payload.length);
+            System.arraycopy(payload, offset, fragment, HEADER_SIZE, length);
+            fragments.add(fragment);
+        }
+        return fragments;
+    }
+
+    static boolean isFragment(byte[] payload) {
+        return WireFormat.frameType(payload)==WireFormat.FRAGMENT && payload.length > HEADER_SIZE;
+    }
+}
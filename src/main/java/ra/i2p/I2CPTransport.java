@@ -0,0 +1,76 @@
+package ra.i2p;
+
+import net.i2p.client.I2PSession;
+import net.i2p.client.I2PSessionException;
+import net.i2p.client.streaming.I2PSocketManager;
+import net.i2p.client.streaming.I2PSocketManagerFactory;
+import net.i2p.data.Destination;
+
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Transport over I2CP to the embedded router; the only one that reaches the I2P network.
+ */
+class I2CPTransport implements I2PTransport {
+
+    private I2PSocketManager socketManager;
+    private I2PSession session;
+
+    @Override
+    public void open(InputStream privateKeys, Properties options) throws I2PSessionException {
+        socketManager = I2PSocketManagerFactory.createDisconnectedManager(privateKeys, null, 0, options);
+        session = socketManager.getSession();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return socketManager!=null;
+    }
+
+    @Override
+    public I2PSession getSession() {
+        return session;
+    }
+
+    @Override
+    public I2PSocketManager getSocketManager() {
+        return socketManager;
+    }
+
+    @Override
+    public void connect(I2PServiceSession listener) throws I2PSessionException {
+        // Throws I2PSessionException if the connection fails
+        session.connect();
+        session.addMuxedSessionListener(listener, I2PSession.PROTO_ANY, I2PSession.PORT_ANY);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return session!=null && !session.isClosed();
+    }
+
+    @Override
+    public boolean send(Destination to, byte[] datagram) throws I2PSessionException {
+        return session.sendMessage(to, datagram, I2PSession.PROTO_UNSPECIFIED, I2PSession.PORT_ANY, I2PSession.PORT_ANY);
+    }
+
+    @Override
+    public Destination lookup(String address) throws I2PSessionException {
+        return session.lookupDest(address);
+    }
+
+    @Override
+    public void disconnect() throws I2PSessionException {
+        if(session!=null) {
+            session.destroySession();
+        }
+    }
+
+    @Override
+    public void close() {
+        if(socketManager!=null) {
+            socketManager.destroySocketManager();
+        }
+    }
+}
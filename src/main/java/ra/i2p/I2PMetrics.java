@@ -0,0 +1,370 @@
+package ra.i2p;
+
+import net.i2p.router.RouterContext;
+import net.i2p.stat.Rate;
+import net.i2p.stat.RateStat;
+import ra.common.network.NetworkStatus;
+
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Counters and gauges for {@link I2PService}.
+ *
+ * Recording uses only LongAdders so the send and receive paths never allocate or contend;
+ * everything else is read from the service's components and the router when a snapshot is taken.
+ */
+class I2PMetrics implements I2PMetricsMXBean {
+
+    private static final Logger LOG = Logger.getLogger(I2PMetrics.class.getName());
+
+    static final String OBJECT_NAME_PREFIX = "ra.i2p:type=I2PService,name=";
+
+    private static final long RATE_PERIOD_MS = 60 * 1000L;
+    // Services in this JVM, e.g. several on a loopback network, each get their own MBean
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    private final I2PService service;
+    private final long startNanos = System.nanoTime();
+    private final int instance = INSTANCES.incrementAndGet();
+
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+    private final LongAdder messagesReceived = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder lookupNanos = new LongAdder();
+    private final LongAdder verifies = new LongAdder();
+    private final LongAdder verifyNanos = new LongAdder();
+    private final RateWindow sendRate = new RateWindow(1000L, 60);
+    private final RateWindow receiveRate = new RateWindow(1000L, 60);
+
+    // Time spent in each network status; only touched on status changes
+    private final long[] statusNanos = new long[NetworkStatus.values().length];
+    private NetworkStatus currentStatus;
+    private long currentStatusSinceNanos = System.nanoTime();
+
+    private ObjectName registeredName;
+
+    I2PMetrics(I2PService service) {
+        this.service = service;
+    }
+
+    void recordSent(int bytes) {
+        messagesSent.increment();
+        bytesSent.add(bytes);
+        sendRate.record();
+    }
+
+    void recordSendFailure() {
+        sendFailures.increment();
+    }
+
+    void recordBytesReceived(int bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    void recordReceived() {
+        messagesReceived.increment();
+        receiveRate.record();
+    }
+
+    void recordLookup(long nanos) {
+        lookups.increment();
+        lookupNanos.add(nanos);
+    }
+
+    void recordVerify(long nanos) {
+        verifies.increment();
+        verifyNanos.add(nanos);
+    }
+
+    synchronized void recordNetworkStatus(NetworkStatus status) {
+        if(status==currentStatus) {
+            return;
+        }
+        long now = System.nanoTime();
+        if(currentStatus!=null) {
+            statusNanos[currentStatus.ordinal()] += now - currentStatusSinceNanos;
+        }
+        currentStatus = status;
+        currentStatusSinceNanos = now;
+    }
+
+    ObjectName getObjectName() throws MalformedObjectNameException {
+        return new ObjectName(OBJECT_NAME_PREFIX + instance);
+    }
+
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = getObjectName();
+            if(server.isRegistered(name)) {
+                // Left over from a previous start of this service
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new StandardMBean(this, I2PMetricsMXBean.class, true), name);
+            registeredName = name;
+        } catch (Exception e) {
+            LOG.warning("Unable to register I2P metrics with JMX: "+e.getLocalizedMessage());
+        }
+    }
+
+    void unregister() {
+        if(registeredName==null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (Exception e) {
+            LOG.fine("Unable to unregister I2P metrics from JMX: "+e.getLocalizedMessage());
+        }
+        registeredName = null;
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getSendFailures() {
+        return sendFailures.sum();
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public double getSendRatePerSecond() {
+        return sendRate.perSecond();
+    }
+
+    @Override
+    public double getReceiveRatePerSecond() {
+        return receiveRate.perSecond();
+    }
+
+    @Override
+    public int getSendQueueDepth() {
+        OutboundSendQueue sendQueue = service.sendQueue;
+        return sendQueue==null ? 0 : sendQueue.depth();
+    }
+
+    @Override
+    public int getInboundQueueDepth() {
+        InboundWorkerPool inboundPool = service.inboundPool;
+        return inboundPool==null ? 0 : inboundPool.depth();
+    }
+
+    @Override
+    public long getInboundDropped() {
+        InboundWorkerPool inboundPool = service.inboundPool;
+        return inboundPool==null ? 0L : inboundPool.getDropped();
+    }
+
+    @Override
+    public int getInflightRequests() {
+        return service.inflight.getPending();
+    }
+
+    @Override
+    public double getAverageLookupMillis() {
+        long count = lookups.sum();
+        return count==0 ? 0.0 : lookupNanos.sum() / 1e6 / count;
+    }
+
+    @Override
+    public double getDestinationCacheHitRate() {
+        return service.destinationCache.getHitRate();
+    }
+
+    @Override
+    public double getAverageVerifyMicros() {
+        long count = verifies.sum();
+        return count==0 ? 0.0 : verifyNanos.sum() / 1e3 / count;
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        return service.compressor.getCompressionRatio();
+    }
+
+    @Override
+    public double getRouterSendBps() {
+        RouterContext routerContext = service.routerContext;
+        return routerContext==null ? 0.0 : routerContext.bandwidthLimiter().getSendBps();
+    }
+
+    @Override
+    public double getRouterReceiveBps() {
+        RouterContext routerContext = service.routerContext;
+        return routerContext==null ? 0.0 : routerContext.bandwidthLimiter().getReceiveBps();
+    }
+
+    @Override
+    public int getParticipatingTunnels() {
+        RouterContext routerContext = service.routerContext;
+        return routerContext==null ? 0 : routerContext.tunnelManager().getParticipatingCount();
+    }
+
+    @Override
+    public int getClientTunnels() {
+        RouterContext routerContext = service.routerContext;
+        return routerContext==null ? 0 : routerContext.tunnelManager().getInboundClientTunnelCount() + routerContext.tunnelManager().getOutboundClientTunnelCount();
+    }
+
+    @Override
+    public synchronized String getNetworkStatus() {
+        return currentStatus==null ? "UNKNOWN" : currentStatus.name();
+    }
+
+    @Override
+    public synchronized Map<String, Long> getSecondsByNetworkStatus() {
+        Map<String, Long> seconds = new LinkedHashMap<>();
+        long now = System.nanoTime();
+        for(NetworkStatus status : NetworkStatus.values()) {
+            long nanos = statusNanos[status.ordinal()];
+            if(status==currentStatus) {
+                nanos += now - currentStatusSinceNanos;
+            }
+            if(nanos > 0) {
+                seconds.put(status.name(), TimeUnit.NANOSECONDS.toSeconds(nanos));
+            }
+        }
+        return seconds;
+    }
+
+    @Override
+    public long getSpoolPending() {
+        OutboundSpool spool = service.spool;
+        return spool==null ? 0L : spool.pending();
+    }
+
+    @Override
+    public int getRestartHeld() {
+        return service.restartCoordinator.held();
+    }
+
+    /**
+     * @return all metrics as nested maps for the METRICS operation
+     */
+    Map<String, Object> getSnapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("uptimeSec", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos));
+        m.put("messagesSent", getMessagesSent());
+        m.put("bytesSent", getBytesSent());
+        m.put("sendFailures", getSendFailures());
+        m.put("sendRatePerSec", getSendRatePerSecond());
+        m.put("messagesReceived", getMessagesReceived());
+        m.put("bytesReceived", getBytesReceived());
+        m.put("receiveRatePerSec", getReceiveRatePerSecond());
+
+        Map<String, Object> queues = new LinkedHashMap<>();
+        OutboundSendQueue sendQueue = service.sendQueue;
+        if(sendQueue!=null) {
+            queues.put("sendDepth", sendQueue.depth());
+            queues.put("sendRejected", sendQueue.getRejected());
+            queues.put("sendDropped", sendQueue.getDropped());
+            for(Priority priority : Priority.values()) {
+                queues.put("sendDepth" + priority.name(), sendQueue.depth(priority));
+            }
+        }
+        InboundWorkerPool inboundPool = service.inboundPool;
+        if(inboundPool!=null) {
+            queues.put("inboundDepth", inboundPool.depth());
+            queues.put("inboundMaxLaneDepth", inboundPool.maxLaneDepth());
+            queues.put("inboundDropped", inboundPool.getDropped());
+        }
+        queues.put("restartHeld", service.restartCoordinator.held());
+        queues.put("restartRejected", service.restartCoordinator.getRejected());
+        OutboundSpool spool = service.spool;
+        if(spool!=null) {
+            queues.put("spoolPending", spool.pending());
+            queues.put("spoolReplayed", spool.getReplayed());
+            queues.put("spoolExpired", spool.getExpired());
+            queues.put("spoolRejected", spool.getRejected());
+            queues.put("spoolDiscarded", service.spoolDiscarded.get());
+        }
+        queues.put("reassemblyPending", service.reassembler.getPendingMessages());
+        queues.put("reassemblyBufferedBytes", service.reassembler.getBufferedBytes());
+        queues.put("inflightRequests", getInflightRequests());
+        queues.put("inflightTimedOut", service.inflight.getTimedOut());
+        m.put("queues", queues);
+
+        Map<String, Object> lookup = new LinkedHashMap<>();
+        lookup.put("lookups", lookups.sum());
+        lookup.put("averageLookupMs", getAverageLookupMillis());
+        lookup.put("cacheHitRate", getDestinationCacheHitRate());
+        lookup.put("cacheSize", service.destinationCache.size());
+        m.put("lookup", lookup);
+
+        Map<String, Object> crypto = new LinkedHashMap<>();
+        crypto.put("verifies", verifies.sum());
+        crypto.put("averageVerifyMicros", getAverageVerifyMicros());
+        crypto.put("compressionRatio", getCompressionRatio());
+        m.put("crypto", crypto);
+
+        StartupTimer startupTimer = service.startupTimer;
+        if(startupTimer!=null) {
+            m.put("startupMs", startupTimer.toMap());
+        }
+        m.put("router", routerStats());
+        m.put("networkStatus", getNetworkStatus());
+        m.put("secondsByNetworkStatus", getSecondsByNetworkStatus());
+        return m;
+    }
+
+    private Map<String, Object> routerStats() {
+        Map<String, Object> router = new HashMap<>();
+        RouterContext routerContext = service.routerContext;
+        if(routerContext==null) {
+            return router;
+        }
+        router.put("sendBps", getRouterSendBps());
+        router.put("receiveBps", getRouterReceiveBps());
+        router.put("outboundLimitKBps", routerContext.bandwidthLimiter().getOutboundKBytesPerSecond());
+        router.put("inboundLimitKBps", routerContext.bandwidthLimiter().getInboundKBytesPerSecond());
+        router.put("participatingTunnels", getParticipatingTunnels());
+        router.put("freeTunnels", routerContext.tunnelManager().getFreeTunnelCount());
+        router.put("outboundTunnels", routerContext.tunnelManager().getOutboundTunnelCount());
+        router.put("inboundClientTunnels", routerContext.tunnelManager().getInboundClientTunnelCount());
+        router.put("outboundClientTunnels", routerContext.tunnelManager().getOutboundClientTunnelCount());
+        router.put("activePeers", routerContext.commSystem().countActivePeers());
+        router.put("sendRate1mBps", averageRate(routerContext, "bw.sendRate"));
+        router.put("recvRate1mBps", averageRate(routerContext, "bw.recvRate"));
+        return router;
+    }
+
+    private static double averageRate(RouterContext routerContext, String name) {
+        RateStat stat = routerContext.statManager().getRate(name);
+        if(stat==null) {
+            return 0.0;
+        }
+        Rate rate = stat.getRate(RATE_PERIOD_MS);
+        return rate==null ? 0.0 : rate.getAverageValue();
+    }
+}
@@ -0,0 +1,59 @@
+package ra.i2p;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link I2PService} throughput, latency and router statistics.
+ * Registered as ra.i2p:type=I2PService,name=&lt;instance&gt; while the service is running.
+ * Attributes are all open types so generic JMX consoles can show them.
+ */
+public interface I2PMetricsMXBean {
+
+    long getMessagesSent();
+
+    long getBytesSent();
+
+    long getSendFailures();
+
+    long getMessagesReceived();
+
+    long getBytesReceived();
+
+    /** Messages sent per second over the last minute */
+    double getSendRatePerSecond();
+
+    /** Messages received per second over the last minute */
+    double getReceiveRatePerSecond();
+
+    int getSendQueueDepth();
+
+    int getInboundQueueDepth();
+
+    long getInboundDropped();
+
+    int getInflightRequests();
+
+    double getAverageLookupMillis();
+
+    double getDestinationCacheHitRate();
+
+    double getAverageVerifyMicros();
+
+    double getCompressionRatio();
+
+    double getRouterSendBps();
+
+    double getRouterReceiveBps();
+
+    int getParticipatingTunnels();
+
+    int getClientTunnels();
+
+    String getNetworkStatus();
+
+    Map<String, Long> getSecondsByNetworkStatus();
+
+    long getSpoolPending();
+
+    int getRestartHeld();
+}
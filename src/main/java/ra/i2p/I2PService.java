@@ -1,12 +1,17 @@
 package ra.i2p;
 
 import net.i2p.client.I2PClient;
+import net.i2p.client.I2PSessionException;
+import net.i2p.crypto.SigType;
+import net.i2p.data.DataFormatException;
 import net.i2p.data.DataHelper;
 import net.i2p.data.Destination;
 import net.i2p.router.CommSystemFacade;
 import net.i2p.router.Router;
 import net.i2p.router.RouterContext;
 import net.i2p.router.RouterLaunch;
+import net.i2p.stat.Rate;
+import net.i2p.stat.RateStat;
 import net.i2p.util.FileUtil;
 import net.i2p.util.Log;
 import net.i2p.util.OrderedProperties;
@@ -15,6 +20,7 @@ import ra.common.Client;
 import ra.common.Envelope;
 import ra.common.messaging.MessageProducer;
 import ra.common.network.*;
+import ra.common.route.ExternalRoute;
 import ra.common.route.Route;
 import ra.common.service.ServiceStatus;
 import ra.common.service.ServiceStatusObserver;
@@ -26,7 +32,18 @@ import ra.common.tasks.TaskRunner;
 import java.io.*;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.logging.Logger;
@@ -46,7 +63,36 @@ public final class I2PService extends NetworkService {
     public static final String OPERATION_UPDATE_HIDDEN_MODE = "UPDATE_HIDDEN_MODE";
     public static final String OPERATION_UPDATE_SHARE_PERCENTAGE = "UPDATE_SHARE_PERCENTAGE";
     public static final String OPERATION_UPDATE_GEOIP_ENABLEMENT = "UPDATE_GEOIP_ENABLEMENT";
+    public static final String OPERATION_UPDATE_BANDWIDTH_LIMITS = "UPDATE_BANDWIDTH_LIMITS";
+    public static final String OPERATION_UPDATE_MAX_PARTICIPATING_TUNNELS = "UPDATE_MAX_PARTICIPATING_TUNNELS";
+    public static final String OPERATION_UPDATE_CONNECTION_LIMITS = "UPDATE_CONNECTION_LIMITS";
+    public static final String OPERATION_TUNE_ROUTER = "TUNE_ROUTER";
     public static final String OPERATION_ACTIVE_PEERS_COUNT = "ACTIVE_PEERS_COUNT";
+    public static final String OPERATION_SESSION_STATES = "SESSION_STATES";
+    public static final String OPERATION_PEER_RTT = "PEER_RTT";
+    public static final String OPERATION_METRICS = "METRICS";
+
+    // Operations answered by the router; unavailable on the loopback transport
+    private static final List<String> ROUTER_OPERATIONS = Arrays.asList(new String[] {
+            OPERATION_LOCAL_PEER_COUNTRY,
+            OPERATION_REMOTE_PEER_COUNTRY,
+            OPERATION_IN_STRICT_COUNTRY,
+            OPERATION_UPDATE_HIDDEN_MODE,
+            OPERATION_UPDATE_SHARE_PERCENTAGE,
+            OPERATION_UPDATE_GEOIP_ENABLEMENT,
+            OPERATION_UPDATE_BANDWIDTH_LIMITS,
+            OPERATION_UPDATE_MAX_PARTICIPATING_TUNNELS,
+            OPERATION_UPDATE_CONNECTION_LIMITS,
+            OPERATION_TUNE_ROUTER,
+            OPERATION_ACTIVE_PEERS_COUNT
+    });
+
+    public static final String PROP_SESSIONS = "ra.i2p.sessions";
+    public static final String NVP_SHARDS = "ra.i2p.shards";
+
+    public static final String PROP_SIG_TYPE = "ra.i2p.sigType";
+    public static final String PROP_SIG_TYPE_MIGRATE = "ra.i2p.sigType.migrate";
+    public static final String PROP_LOOPBACK_DIR = "ra.i2p.loopback.dir";
 
     /**
      * 1 = ElGamal-2048 / DSA-1024
@@ -68,14 +114,54 @@ public final class I2PService extends NetworkService {
     private Thread taskRunnerThread;
     private Long startTimeBlockedMs = 0L;
     private static final Long BLOCK_TIME_UNTIL_RESTART = 3 * 60 * 1000L; // 4 minutes
-    private Integer restartAttempts = 0;
+    private final AtomicInteger restartAttempts = new AtomicInteger();
     private static final Integer RESTART_ATTEMPTS_UNTIL_HARD_RESTART = 3;
     private boolean embedded = true;
     private boolean isTest = false;
     private TaskRunner taskRunner;
-    private Map<String, I2PServiceSession> sessions = new HashMap<>();
+    private static final String DEFAULT_SESSION = "default";
+    private static final String SHARD_SESSION_PREFIX = "shard-";
+    // Sessions by key; each is created once and completes when open and connected
+    private final Map<String, CompletableFuture<I2PServiceSession>> sessions = new ConcurrentHashMap<>();
+    private final ExecutorService sessionExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "I2PService-SessionConnect");
+        t.setDaemon(true);
+        return t;
+    });
+    // Number of sessions, each with its own destination, tunnels and listener; outbound is sharded by destination
+    int shardCount = 1;
+    DestinationCache destinationCache = new DestinationCache();
+    OutboundSendQueue sendQueue;
+    // One pacer for every session so all shards together stay under the router's limit
+    volatile Pacer<I2PServiceSession.PacedFlow> pacer;
+    volatile InboundWorkerPool inboundPool;
+    FragmentReassembler reassembler = new FragmentReassembler();
+    EnvelopeCodec envelopeCodec = new EnvelopeCodec();
+    PayloadCompressor compressor = new PayloadCompressor();
+    int fragmentSize = FragmentReassembler.DEFAULT_FRAGMENT_SIZE;
+    SigType sigType = SigType.EdDSA_SHA512_Ed25519;
+    boolean migrateSigType = false;
 
-    final Map<String,Long> inflightTimers = new HashMap<>();
+    InflightTracker inflight = new InflightTracker();
+    volatile PeerStore peerStore;
+    volatile StartupTimer startupTimer;
+    volatile OutboundSpool spool;
+    private final AtomicBoolean spoolReplaying = new AtomicBoolean();
+    // Spooled Envelopes given up on during replay because a retry would fail the same way
+    final AtomicLong spoolDiscarded = new AtomicLong();
+    volatile RestartCoordinator restartCoordinator = RestartCoordinator.fromConfig(new Properties(), restartSteps());
+    volatile TunnelAutoscaler autoscaler;
+    // Messages sent and when as of the last autoscale; 0 until the autoscaler has its starting point
+    private long autoscaleMessagesSent;
+    private long autoscaleNanos;
+    StatusPollSchedule statusPoll = new StatusPollSchedule(StatusPollSchedule.DEFAULT_MIN_POLL_MS, StatusPollSchedule.DEFAULT_MAX_POLL_MS);
+    // Scheduled task for statusPoll; rescheduled directly when the poll resets
+    private volatile CheckRouterStatus statusChecker;
+    private final List<RouterStatusListener> routerStatusListeners = new CopyOnWriteArrayList<>();
+    PeerExchange peerExchange = new PeerExchange(true, PeerExchange.DEFAULT_FALSE_POSITIVE_RATE, PeerExchange.DEFAULT_MAX_DIGEST_BYTES, FragmentReassembler.DEFAULT_FRAGMENT_SIZE);
+    final I2PMetrics metrics = new I2PMetrics(this);
+    // I2CP to the embedded router, or loopback to other services in this JVM with no router at all
+    String transport = I2PTransport.I2CP;
 
     public I2PService() {
         super(Network.I2P);
@@ -89,9 +175,18 @@ public final class I2PService extends NetworkService {
     public void handleDocument(Envelope e) {
         super.handleDocument(e);
         Route r = e.getRoute();
+        if(routerContext==null && ROUTER_OPERATIONS.contains(r.getOperation())) {
+            LOG.info("Operation ("+r.getOperation()+") requires the I2P Router which is not running.");
+            e.getMessage().addErrorMessage("I2P Router not running.");
+            return;
+        }
         switch(r.getOperation()) {
             case OPERATION_SEND: {
-                sendOut(e);
+                if(sendQueue!=null) {
+                    sendOutAsync(e);
+                } else {
+                    sendOut(e);
+                }
                 break;
             }
             case OPERATION_CHECK_ROUTER_STATUS: {
@@ -126,24 +221,56 @@ public final class I2PService extends NetworkService {
                 break;
             }
             case OPERATION_UPDATE_HIDDEN_MODE: {
-                Object hiddenModeObj = e.getValue("hiddenMode");
-                if(hiddenModeObj!=null) {
-                    updateHiddenMode(((String)hiddenModeObj).equalsIgnoreCase("true"));
-                }
+                Map<String, String> settings = new HashMap<>();
+                putSetting(settings, e, "hiddenMode", Router.PROP_HIDDEN);
+                tuneRouter(settings, e);
                 break;
             }
             case OPERATION_UPDATE_SHARE_PERCENTAGE: {
-                Object sharePerc = e.getValue("sharePercentage");
-                if(sharePerc!=null) {
-                    updateSharePercentage(Integer.parseInt((String)sharePerc));
-                }
+                Map<String, String> settings = new HashMap<>();
+                putSetting(settings, e, "sharePercentage", RouterTuning.SHARE_PERCENTAGE);
+                tuneRouter(settings, e);
                 break;
             }
             case OPERATION_UPDATE_GEOIP_ENABLEMENT: {
-                Object sharePerc = e.getValue("enableGeoIP");
-                if(sharePerc!=null) {
-                    updateGeoIPEnablement((((String)sharePerc).toLowerCase()).equals("true"));
+                Map<String, String> settings = new HashMap<>();
+                putSetting(settings, e, "enableGeoIP", RouterTuning.GEOIP_ENABLED);
+                tuneRouter(settings, e);
+                break;
+            }
+            case OPERATION_UPDATE_BANDWIDTH_LIMITS: {
+                Map<String, String> settings = new HashMap<>();
+                putSetting(settings, e, "inboundKBytesPerSecond", RouterTuning.INBOUND_KBPS);
+                putSetting(settings, e, "outboundKBytesPerSecond", RouterTuning.OUTBOUND_KBPS);
+                putSetting(settings, e, "inboundBurstKBytesPerSecond", RouterTuning.INBOUND_BURST_KBPS);
+                putSetting(settings, e, "outboundBurstKBytesPerSecond", RouterTuning.OUTBOUND_BURST_KBPS);
+                putSetting(settings, e, "sharePercentage", RouterTuning.SHARE_PERCENTAGE);
+                tuneRouter(settings, e);
+                break;
+            }
+            case OPERATION_UPDATE_MAX_PARTICIPATING_TUNNELS: {
+                Map<String, String> settings = new HashMap<>();
+                putSetting(settings, e, "maxParticipatingTunnels", RouterTuning.MAX_PARTICIPATING_TUNNELS);
+                tuneRouter(settings, e);
+                break;
+            }
+            case OPERATION_UPDATE_CONNECTION_LIMITS: {
+                Map<String, String> settings = new HashMap<>();
+                putSetting(settings, e, "ntcpMaxConnections", RouterTuning.NTCP_MAX_CONNECTIONS);
+                putSetting(settings, e, "udpMaxConnections", RouterTuning.UDP_MAX_CONNECTIONS);
+                tuneRouter(settings, e);
+                break;
+            }
+            case OPERATION_TUNE_ROUTER: {
+                // Router config keys and values, e.g. router.maxParticipatingTunnels=50
+                Map<String, String> settings = new HashMap<>();
+                Object requested = e.getValue("routerSettings");
+                if(requested instanceof Map) {
+                    for(Map.Entry<?, ?> entry : ((Map<?, ?>)requested).entrySet()) {
+                        settings.put(String.valueOf(entry.getKey()), entry.getValue()==null ? null : String.valueOf(entry.getValue()));
+                    }
                 }
+                tuneRouter(settings, e);
                 break;
             }
             case OPERATION_ACTIVE_PEERS_COUNT: {
@@ -151,6 +278,25 @@ public final class I2PService extends NetworkService {
                 e.addNVP("activePeersCount", count);
                 break;
             }
+            case OPERATION_METRICS: {
+                e.addNVP("metrics", metrics.getSnapshot());
+                break;
+            }
+            case OPERATION_PEER_RTT: {
+                // Optionally limited to one peer by its fingerprint
+                String fingerprint = (String)e.getValue("fingerprint");
+                if(fingerprint==null) {
+                    e.addNVP("peerRtt", inflight.summary());
+                } else {
+                    RttHistogram histogram = inflight.getHistogram(fingerprint);
+                    e.addNVP("peerRtt", histogram==null ? new HashMap<>() : histogram.toMap());
+                }
+                break;
+            }
+            case OPERATION_SESSION_STATES: {
+                e.addNVP("sessionStates", getSessionStates());
+                break;
+            }
             default: {
                 LOG.warning("Operation ("+r.getOperation()+") not supported. Sending to Dead Letter queue.");
                 deadLetter(e);
@@ -158,78 +304,408 @@ public final class I2PService extends NetworkService {
         }
     }
 
-    private I2PServiceSession establishSession(String address, Boolean autoConnect) {
-        if(address==null) {
-            address = "default";
+    void expireIdleState() {
+        reassembler.expire();
+        int purged = destinationCache.purgeExpired();
+        if(purged > 0) {
+            LOG.fine("Purged "+purged+" expired cached Destination(s).");
+        }
+        for(I2PServiceSession session : openSessions()) {
+            session.evictIdleStreams();
+        }
+    }
+
+    /**
+     * @return sessions that have finished opening and connecting
+     */
+    private List<I2PServiceSession> openSessions() {
+        List<I2PServiceSession> open = new ArrayList<>();
+        for(CompletableFuture<I2PServiceSession> future : sessions.values()) {
+            I2PServiceSession session = future.getNow(null);
+            if(session!=null) {
+                open.add(session);
+            }
         }
-        if(sessions.get(address)==null) {
-            I2PServiceSession session = new I2PServiceSession(this);
-            session.init(config);
-            session.open(null);
-            if (autoConnect) {
-                session.connect();
+        return open;
+    }
+
+    /**
+     * @return state of each registered session by key; sessions still being created are OPENING
+     */
+    public Map<String, String> getSessionStates() {
+        Map<String, String> states = new TreeMap<>();
+        for(Map.Entry<String, CompletableFuture<I2PServiceSession>> entry : sessions.entrySet()) {
+            CompletableFuture<I2PServiceSession> future = entry.getValue();
+            if(future.isCompletedExceptionally()) {
+                states.put(entry.getKey(), I2PServiceSession.State.FAILED.name());
+            } else {
+                I2PServiceSession session = future.getNow(null);
+                states.put(entry.getKey(), session==null ? I2PServiceSession.State.OPENING.name() : session.getState().name());
+            }
+        }
+        return states;
+    }
+
+    /**
+     * Blocks until the session for the key is open and connected.
+     */
+    private I2PServiceSession establishSession(String key) {
+        return establishSessionAsync(key).join();
+    }
+
+    /**
+     * Returns the session for the key, creating it only once no matter how many callers
+     * ask concurrently. Opening and connecting happen on the session executor so callers
+     * can wait on the future instead of inside open or connect.
+     * A session whose connect failed is replaced on the next request.
+     * @param key session key; null for the default session
+     */
+    CompletableFuture<I2PServiceSession> establishSessionAsync(String key) {
+        final String sessionKey = key==null ? DEFAULT_SESSION : key;
+        // Shards take their alias from the local peer so depend on the default session; resolved
+        // before touching the shard's entry as the map can't be updated from inside its own compute
+        final CompletableFuture<I2PServiceSession> primary = DEFAULT_SESSION.equals(sessionKey) ? null : establishSessionAsync(null);
+        CompletableFuture<I2PServiceSession> future = sessions.computeIfAbsent(sessionKey, k -> createSession(k, primary));
+        if(future.isDone() && failed(future)) {
+            // Only one caller replaces the failed attempt; the rest get the replacement
+            CompletableFuture<I2PServiceSession> retry = sessions.compute(sessionKey, (k, existing) -> existing==future ? createSession(k, primary) : existing);
+            if(retry!=future) {
+                I2PServiceSession failedSession = future.getNow(null);
+                if(failedSession!=null) {
+                    failedSession.close();
+                }
             }
-            sessions.put(address, session);
+            return retry;
+        }
+        return future;
+    }
+
+    private static boolean failed(CompletableFuture<I2PServiceSession> future) {
+        if(future.isCompletedExceptionally()) {
+            return true;
+        }
+        I2PServiceSession session = future.getNow(null);
+        return session!=null && session.getState()==I2PServiceSession.State.FAILED;
+    }
+
+    private CompletableFuture<I2PServiceSession> createSession(String key, CompletableFuture<I2PServiceSession> primary) {
+        final int shard = key.startsWith(SHARD_SESSION_PREFIX) ? Integer.parseInt(key.substring(SHARD_SESSION_PREFIX.length())) : 0;
+        if(primary==null) {
+            return CompletableFuture.supplyAsync(() -> connectSession(shard), sessionExecutor);
         }
-        return sessions.get(address);
+        return primary.thenApplyAsync(s -> {
+            I2PServiceSession session = connectSession(shard);
+            if(session.getState()==I2PServiceSession.State.CONNECTED) {
+                // Advertise the new shard's destination
+                updateLocalPeer();
+            }
+            return session;
+        }, sessionExecutor);
+    }
+
+    private I2PServiceSession connectSession(int shard) {
+        I2PServiceSession session = new I2PServiceSession(this, shard);
+        session.init(config);
+        session.open(null);
+        session.connect();
+        return session;
     }
 
     /**
      * Sends UTF-8 content to a Destination using I2P.
+     * During a router restart the Envelope is held for resend and this returns at once; use
+     * {@link #sendOutAsync(Envelope)} for the outcome of the resend.
      * @param envelope Envelope containing Envelope as data.
      *                 To DID must contain base64 encoded I2P destination key.
-     * @return boolean was successful
+     * @return boolean was successful; false if held, with an error message saying so
      */
     public Boolean sendOut(Envelope envelope) {
         LOG.fine("Send out Envelope over I2P...");
-        NetworkClientSession session = establishSession(null, true);
-        return session.send(envelope);
+        SendResult spooled = spoolWhileUnavailable(envelope);
+        if(spooled!=null) {
+            return spooled.isSuccess();
+        }
+        CompletableFuture<SendResult> held = holdDuringRestart(envelope);
+        if(held!=null) {
+            if(!held.isDone()) {
+                // Not sent yet and not lost either; the caller must not treat it as either
+                String message = "I2P restart in progress; Envelope held for resend, not yet sent.";
+                LOG.info(message);
+                envelope.getMessage().addErrorMessage(message);
+                return false;
+            }
+            return held.join().isSuccess();
+        }
+        return deliver(envelope).isSuccess();
     }
 
-    public File getDirectory() {
-        return i2pDir;
+    /**
+     * Queues UTF-8 content to be sent to a Destination using I2P without blocking the caller
+     * on serialization, destination lookup, signing or I2CP.
+     * Requires ra.i2p.send.async=true; otherwise sends on the calling thread.
+     * @param envelope Envelope containing Envelope as data.
+     *                 To DID must contain base64 encoded I2P destination key.
+     * @return future completed with the result of the send including any error code
+     */
+    public CompletableFuture<SendResult> sendOutAsync(Envelope envelope) {
+        SendResult spooled = spoolWhileUnavailable(envelope);
+        if(spooled!=null) {
+            return CompletableFuture.completedFuture(spooled);
+        }
+        CompletableFuture<SendResult> held = holdDuringRestart(envelope);
+        if(held!=null) {
+            return held;
+        }
+        if(sendQueue==null) {
+            LOG.fine("Asynchronous sending not enabled; sending once the session is connected.");
+            return shardSessionAsync(envelope)
+                    .thenApply(session -> session.deliver(envelope))
+                    .exceptionally(t -> {
+                        String message = "I2P session unavailable: " + t.getLocalizedMessage();
+                        LOG.warning(message);
+                        envelope.getMessage().addErrorMessage(message);
+                        return SendResult.failed(SendResult.CODE_NOT_READY, message);
+                    });
+        }
+        return sendQueue.submit(envelope);
     }
 
-    private void updateHiddenMode(boolean hiddenMode) {
-        String hiddenModeStr = hiddenMode?"true":"false";
-        if(!(getNetworkState().params.get(Router.PROP_HIDDEN)).equals(hiddenModeStr)) {
-            // Hidden mode changed so change for Router and restart
-            this.getNetworkState().params.put(Router.PROP_HIDDEN, hiddenModeStr);
-            if (router.saveConfig(Router.PROP_HIDDEN, hiddenModeStr)) {
-                restart();
-            } else {
-                LOG.warning("Unable to update " + Router.PROP_HIDDEN);
+    /**
+     * Sends the Envelopes again, in order, from another thread, e.g. those of a batch that failed
+     * while the thread that sent it still has the destination's send sequence.
+     */
+    void resendAsync(List<Envelope> envelopes) {
+        sessionExecutor.execute(() -> {
+            for(Envelope envelope : envelopes) {
+                sendOutAsync(envelope);
             }
+        });
+    }
+
+    /**
+     * Writes the Envelope to the spool while the network is not connected or a restart is
+     * running, and while earlier spooled Envelopes are still waiting so they go out first.
+     * @return success once spooled, failure if the spool is full, or null if not spooled
+     */
+    private SendResult spoolWhileUnavailable(Envelope envelope) {
+        OutboundSpool s = spool;
+        if(s==null || envelope==null) {
+            return null;
         }
+        if(s.isEmpty() && getNetworkState().networkStatus==NetworkStatus.CONNECTED && restartCoordinator.getState()==RestartCoordinator.State.IDLE) {
+            return null;
+        }
+        String message;
+        try {
+            if(s.append(envelope.toJSON())) {
+                LOG.fine("I2P unavailable; Envelope spooled.");
+                return SendResult.success();
+            }
+            message = "I2P spool full.";
+        } catch (IOException e) {
+            message = "Unable to spool Envelope: " + e.getLocalizedMessage();
+        }
+        LOG.warning(message);
+        envelope.getMessage().addErrorMessage(message);
+        return SendResult.failed(SendResult.CODE_QUEUE_FULL, message);
     }
 
-    private void updateSharePercentage(int sharePercentage) {
-        if(!(getNetworkState().params.get("router.sharePercentage")).equals(String.valueOf(sharePercentage))) {
-            // Share Percentage changed so change for Router and restart
-            this.getNetworkState().params.put(Router.PROP_HIDDEN, String.valueOf(sharePercentage));
-            if (router.saveConfig(Router.PROP_HIDDEN, String.valueOf(sharePercentage))) {
-                restart();
-            } else {
-                LOG.warning("Unable to update router.sharePercentage");
+    /**
+     * @return future of the held Envelope or null if no restart is in progress
+     */
+    private CompletableFuture<SendResult> holdDuringRestart(Envelope envelope) {
+        if(envelope==null) {
+            return null;
+        }
+        CompletableFuture<SendResult> held = restartCoordinator.hold(envelope);
+        if(held!=null && held.isDone() && !held.join().isSuccess()) {
+            LOG.warning(held.join().getMessage());
+            envelope.getMessage().addErrorMessage(held.join().getMessage());
+        }
+        return held;
+    }
+
+    private SendResult deliver(Envelope envelope) {
+        I2PServiceSession session;
+        try {
+            session = shardSessionAsync(envelope).join();
+        } catch (CompletionException e) {
+            String message = "I2P session unavailable: " + e.getCause().getLocalizedMessage();
+            LOG.warning(message);
+            if(envelope!=null) {
+                envelope.getMessage().addErrorMessage(message);
             }
+            return SendResult.failed(SendResult.CODE_NOT_READY, message);
         }
+        return session.deliver(envelope);
     }
 
-    private void updateGeoIPEnablement(boolean enableGeoIP) {
-        String enableGeoIPStr = enableGeoIP?"true":"false";
-        if(!(getNetworkState().params.get("routerconsole.geoip.enable")).equals(enableGeoIPStr)) {
-            // Hidden mode changed so change for Router and restart
-            this.getNetworkState().params.put("routerconsole.geoip.enable", enableGeoIPStr);
-            if (router.saveConfig("routerconsole.geoip.enable", enableGeoIPStr)) {
-                restart();
-            } else {
-                LOG.warning("Unable to update routerconsole.geoip.enable");
+    /**
+     * Picks the session for the Envelope's destination so that all traffic to one peer goes
+     * through the same session. Synchronous sends to a peer keep their order; sends queued with
+     * ra.i2p.send.async are taken by several workers and by priority so may be reordered.
+     */
+    private CompletableFuture<I2PServiceSession> shardSessionAsync(Envelope envelope) {
+        if(shardCount > 1 && envelope!=null && envelope.getRoute() instanceof ExternalRoute) {
+            NetworkPeer destination = ((ExternalRoute)envelope.getRoute()).getDestination();
+            if(destination!=null && destination.getDid()!=null && destination.getDid().getPublicKey()!=null) {
+                String key = shardKey(destination.getDid().getPublicKey().getAddress(), destination.getDid().getPublicKey().getFingerprint());
+                if(key!=null) {
+                    return establishShardAsync(shardIndex(key, shardCount));
+                }
+            }
+        }
+        return establishSessionAsync(null);
+    }
+
+    /**
+     * @return base64 hash of the peer's Destination, taken from its address when known so the
+     * peer maps to the same shard whether or not its fingerprint is filled in; otherwise the
+     * fingerprint, or null if there is neither
+     */
+    static String shardKey(String address, String fingerprint) {
+        // Parsed directly: a failed local parse must not be cached as a negative lookup the
+        // session's naming lookup of the same address would then hit
+        return shardKey(address, fingerprint, I2PService::parseDestination);
+    }
+
+    static String shardKey(String address, String fingerprint, DestinationCache.Lookup parser) {
+        if(address!=null) {
+            try {
+                Destination destination = parser.lookup(address);
+                if(destination!=null) {
+                    return destination.calculateHash().toBase64();
+                }
+            } catch (I2PSessionException e) {
+                LOG.fine("Unable to parse destination address: "+e.getLocalizedMessage());
+            }
+        }
+        return fingerprint;
+    }
+
+    /**
+     * @return the Destination of a full base64 address or null for anything else, e.g. a b32 address
+     */
+    private static Destination parseDestination(String address) {
+        if(address.length() < 516) {
+            return null;
+        }
+        try {
+            return new Destination(address);
+        } catch (DataFormatException e) {
+            return null;
+        }
+    }
+
+    static int shardIndex(String destinationKey, int shardCount) {
+        return Math.floorMod(destinationKey.hashCode(), shardCount);
+    }
+
+    private CompletableFuture<I2PServiceSession> establishShardAsync(int shard) {
+        return establishSessionAsync(shard==0 ? null : SHARD_SESSION_PREFIX+shard);
+    }
+
+    /**
+     * Sends the local peer along with the peers of all other open shards to the Network Manager.
+     */
+    void updateLocalPeer() {
+        NetworkPeer localPeer = getNetworkState().localPeer;
+        if(localPeer==null) {
+            return;
+        }
+        List<NetworkPeer> shardPeers = new ArrayList<>();
+        for(I2PServiceSession session : openSessions()) {
+            if(session.getShardPeer()!=null) {
+                shardPeers.add(session.getShardPeer());
             }
         }
+        Envelope e = Envelope.documentFactory();
+        e.addNVP("ra.common.network.NetworkPeer", localPeer);
+        if(!shardPeers.isEmpty()) {
+            e.addNVP(NVP_SHARDS, shardPeers);
+        }
+        e.addRoute("ra.networkmanager.NetworkManagerService","UPDATE_LOCAL_PEER");
+        send(e);
+    }
+
+    public File getDirectory() {
+        return i2pDir;
+    }
+
+    private static void putSetting(Map<String, String> settings, Envelope e, String name, String key) {
+        Object value = e.getValue(name);
+        if(value!=null) {
+            settings.put(key, String.valueOf(value));
+        }
+    }
+
+    /**
+     * Saves router settings and applies them to the running router, restarting it only for
+     * settings that need one; see {@link RouterTuning}.
+     * Adds restartRequired to the Envelope.
+     * @return false if a setting is invalid, could not be saved or the router is not running
+     * (loopback transport or not yet started); the reason is added to the Envelope
+     */
+    boolean tuneRouter(Map<String, String> requested, Envelope e) {
+        RouterContext ctx = routerContext;
+        Router r = ctx==null ? null : ctx.router();
+        if(r==null) {
+            String message = "I2P router not running; router settings unchanged.";
+            LOG.warning(message);
+            e.getMessage().addErrorMessage(message);
+            return false;
+        }
+        Map<String, String> changes;
+        try {
+            changes = RouterTuning.changes(requested, r::getConfigSetting);
+        } catch (IllegalArgumentException ex) {
+            LOG.warning(ex.getLocalizedMessage());
+            e.getMessage().addErrorMessage(ex.getLocalizedMessage());
+            return false;
+        }
+        if(changes.isEmpty()) {
+            e.addNVP("restartRequired", false);
+            return true;
+        }
+        if(!saveRouterSettings(changes)) {
+            String message = "Unable to save router settings: "+changes.keySet();
+            LOG.warning(message);
+            e.getMessage().addErrorMessage(message);
+            return false;
+        }
+        boolean restartRequired = RouterTuning.needsRestart(changes.keySet());
+        LOG.info("Router settings updated: "+changes+(restartRequired ? "; restarting router." : "; applied without restart."));
+        if(restartRequired) {
+            restart();
+        }
+        e.addNVP("restartRequired", restartRequired);
+        return true;
+    }
+
+    /**
+     * Saves validated router settings and applies those that take effect without a restart.
+     * @return false if the router config could not be saved
+     */
+    private boolean saveRouterSettings(Map<String, String> changes) {
+        RouterContext ctx = routerContext;
+        if(ctx==null || ctx.router()==null) {
+            LOG.warning("I2P router not running; router settings not saved.");
+            return false;
+        }
+        if(!ctx.router().saveConfig(changes, null)) {
+            return false;
+        }
+        getNetworkState().params.putAll(changes);
+        if(RouterTuning.needsBandwidthReinit(changes.keySet())) {
+            // Limiter and refiller re-read their settings from the saved config
+            ctx.bandwidthLimiter().reinitialize();
+        }
+        return true;
     }
 
     public boolean start(Properties p) {
         LOG.info("Starting I2P Service...");
+        startupTimer = new StartupTimer();
         updateStatus(ServiceStatus.INITIALIZING);
         LOG.info("Loading I2P properties...");
         try {
@@ -243,6 +719,64 @@ public final class I2PService extends NetworkService {
             maxPeers = Integer.parseInt(config.getProperty("ra.i2p.maxPeers"));
         }
         isTest = "true".equals(config.getProperty("ra.i2p.isTest"));
+        if(config.getProperty(PROP_SESSIONS)!=null) {
+            shardCount = Math.max(1, Integer.parseInt(config.getProperty(PROP_SESSIONS)));
+        }
+        destinationCache = DestinationCache.fromConfig(config);
+        reassembler = FragmentReassembler.fromConfig(config);
+        envelopeCodec = EnvelopeCodec.fromConfig(config);
+        compressor = PayloadCompressor.fromConfig(config);
+        inflight = InflightTracker.fromConfig(config);
+        inflight.setTimeoutListener((id, peer) -> {
+            LOG.info("No response to id: "+id.substring(0,Math.min(7,id.length()))+"... from: "+peer.substring(0,Math.min(7,peer.length()))+"...");
+            PeerStore store = peerStore;
+            if(store!=null) {
+                store.recordFailure(peer);
+            }
+        });
+        if(config.getProperty(PROP_SIG_TYPE)!=null) {
+            SigType configuredSigType = SigType.parseSigType(config.getProperty(PROP_SIG_TYPE));
+            if(configuredSigType==null || !configuredSigType.isAvailable()) {
+                LOG.warning("Signature type "+config.getProperty(PROP_SIG_TYPE)+" not supported; using "+sigType);
+            } else {
+                sigType = configuredSigType;
+            }
+        }
+        migrateSigType = "true".equals(config.getProperty(PROP_SIG_TYPE_MIGRATE));
+        if(config.getProperty(FragmentReassembler.PROP_FRAGMENT_SIZE)!=null) {
+            fragmentSize = Integer.parseInt(config.getProperty(FragmentReassembler.PROP_FRAGMENT_SIZE));
+        }
+        peerExchange = PeerExchange.fromConfig(config, fragmentSize);
+        if(restartCoordinator.getState()==RestartCoordinator.State.IDLE) {
+            // Otherwise this start is part of a hard restart and the coordinator running it is kept
+            restartCoordinator.shutdown();
+            restartCoordinator = RestartCoordinator.fromConfig(config, restartSteps());
+        }
+        if("true".equals(config.getProperty(OutboundSendQueue.PROP_ASYNC)) && sendQueue==null) {
+            sendQueue = OutboundSendQueue.fromConfig(config, this::deliver);
+            sendQueue.start();
+        }
+        if(Pacer.isEnabled(config) && pacer==null) {
+            Pacer<I2PServiceSession.PacedFlow> shared = Pacer.fromConfig(config, fragmentSize, this::outboundLimitBytesPerSecond, (flow, datagram) -> flow.send(datagram));
+            shared.start();
+            pacer = shared;
+        }
+        if(TunnelAutoscaler.isEnabled(config)) {
+            autoscaler = TunnelAutoscaler.fromConfig(config);
+            autoscaleNanos = 0L;
+        }
+        if(inboundPool==null) {
+            inboundPool = InboundWorkerPool.fromConfig(config);
+            if(inboundPool!=null) {
+                inboundPool.start();
+            }
+        }
+        transport = config.getProperty(I2PTransport.PROP_TRANSPORT, I2PTransport.I2CP);
+        statusPoll = StatusPollSchedule.fromConfig(config);
+        startupTimer.phase("config");
+        if(isLoopback()) {
+            return startLoopback();
+        }
         // Look for another instance installed
         if(System.getProperty("i2p.dir.base")==null) {
             // Set up I2P Directories within RA Services Directory
@@ -269,51 +803,17 @@ public final class I2PService extends NetworkService {
             embedded = false;
         }
 
-        // Config Directory
-        File i2pConfigDir = new File(i2pDir, "config");
-        if(!i2pConfigDir.exists())
-            if(!i2pConfigDir.mkdir())
-                LOG.warning("Unable to create I2P config directory: " +i2pConfigDir);
-        if(i2pConfigDir.exists()) {
-            System.setProperty("i2p.dir.config",i2pConfigDir.getAbsolutePath());
-            config.setProperty("i2p.dir.config",i2pConfigDir.getAbsolutePath());
-        }
-        // Router Directory
-        File i2pRouterDir = new File(i2pDir,"router");
-        if(!i2pRouterDir.exists())
-            if(!i2pRouterDir.mkdir())
-                LOG.warning("Unable to create I2P router directory: "+i2pRouterDir);
-        if(i2pRouterDir.exists()) {
-            System.setProperty("i2p.dir.router",i2pRouterDir.getAbsolutePath());
-            config.setProperty("i2p.dir.router",i2pRouterDir.getAbsolutePath());
-        }
-        // PID Directory
-        File i2pPIDDir = new File(i2pDir, "pid");
-        if(!i2pPIDDir.exists())
-            if(!i2pPIDDir.mkdir())
-                LOG.warning("Unable to create I2P PID directory: "+i2pPIDDir.getAbsolutePath());
-        if(i2pPIDDir.exists()) {
-            System.setProperty("i2p.dir.pid",i2pPIDDir.getAbsolutePath());
-            config.setProperty("i2p.dir.pid",i2pPIDDir.getAbsolutePath());
-        }
-        // Log Directory
-        File i2pLogDir = new File(i2pDir,"log");
-        if(!i2pLogDir.exists())
-            if(!i2pLogDir.mkdir())
-                LOG.warning("Unable to create I2P log directory: "+i2pLogDir.getAbsolutePath());
-        if(i2pLogDir.exists()) {
-            System.setProperty("i2p.dir.log",i2pLogDir.getAbsolutePath());
-            config.setProperty("i2p.dir.log",i2pLogDir.getAbsolutePath());
-        }
-        // App Directory
-        File i2pAppDir = new File(i2pDir,"app");
-        if(!i2pAppDir.exists())
-            if(!i2pAppDir.mkdir())
-                LOG.warning("Unable to create I2P app directory: "+i2pAppDir.getAbsolutePath());
-        if(i2pAppDir.exists()) {
-            System.setProperty("i2p.dir.app", i2pAppDir.getAbsolutePath());
-            config.setProperty("i2p.dir.app", i2pAppDir.getAbsolutePath());
-        }
+        setUpDirectory("config", "i2p.dir.config");
+        setUpDirectory("router", "i2p.dir.router");
+        setUpDirectory("pid", "i2p.dir.pid");
+        setUpDirectory("log", "i2p.dir.log");
+        setUpDirectory("app", "i2p.dir.app");
+        startupTimer.phase("directories");
+
+        loadPeerStore();
+        startupTimer.phase("peerStore");
+        loadSpool();
+        startupTimer.phase("spool");
 
         // Running Internal I2P Router
         System.setProperty(I2PClient.PROP_TCP_HOST, "internal");
@@ -321,6 +821,7 @@ public final class I2PService extends NetworkService {
 
         // Merge router.config files
         mergeRouterConfig(null);
+        startupTimer.phase("routerConfig");
 
         // Certificates
         File certDir = new File(i2pDir, "certificates");
@@ -362,6 +863,7 @@ public final class I2PService extends NetworkService {
 
         if(!copyCertificatesToBaseDir(seedCertificates, sslCertificates))
             return false;
+        startupTimer.phase("certificates");
 
         // Set dependent services
 //        addDependentService(NotificationService.class);
@@ -389,23 +891,253 @@ public final class I2PService extends NetworkService {
         routerContext.logManager().setFileSize(100000000); // 100 MB
 
         Wait.aMs(500); // Give the router a bit of breathing room before launching tasks
+        startupTimer.phase("router");
+
+        startTasks();
+
+        metrics.register();
+        startupTimer.phase("tasks");
+        LOG.info("I2P Service started: "+startupTimer);
+        updateStatus(ServiceStatus.RUNNING);
+
+        return true;
+    }
+
+    /**
+     * Starts without a router: sessions connect to a {@link LoopbackNetwork} shared by every
+     * loopback service in the JVM. Each service needs its own ra.i2p.loopback.dir (a temporary
+     * directory by default) so each gets its own destination keys.
+     */
+    private boolean startLoopback() {
+        LOG.info("Starting I2P Service on loopback transport; no I2P Router will be launched.");
+        try {
+            i2pDir = config.getProperty(PROP_LOOPBACK_DIR)!=null ? new File(config.getProperty(PROP_LOOPBACK_DIR)) : Files.createTempDirectory("ra-i2p-loopback").toFile();
+        } catch (IOException e) {
+            LOG.severe("Unable to create loopback directory: "+e.getLocalizedMessage());
+            return false;
+        }
+        if(!i2pDir.exists() && !i2pDir.mkdirs()) {
+            LOG.severe("Unable to create loopback directory: "+i2pDir.getAbsolutePath());
+            return false;
+        }
+        startupTimer.phase("directories");
+        loadPeerStore();
+        startupTimer.phase("peerStore");
+        loadSpool();
+        startupTimer.phase("spool");
+        updateStatus(ServiceStatus.STARTING);
+        startTasks();
+        metrics.register();
+        startupTimer.phase("tasks");
+        updateNetworkStatus(NetworkStatus.CONNECTED);
+        metrics.recordNetworkStatus(NetworkStatus.CONNECTED);
+        establishSessions();
+        LOG.info("I2P Service started on loopback: "+startupTimer);
+        updateStatus(ServiceStatus.RUNNING);
+        return true;
+    }
+
+    boolean isLoopback() {
+        return I2PTransport.LOOPBACK.equals(transport);
+    }
+
+    /**
+     * @return a new, unopened transport for a session
+     */
+    I2PTransport newTransport() {
+        if(isLoopback()) {
+            return new LoopbackTransport(LoopbackNetwork.shared(), LoopbackNetwork.Link.fromConfig(config));
+        }
+        return new I2CPTransport();
+    }
+
+    /**
+     * Creates a directory under the base directory if missing and points the I2P property at it.
+     */
+    private void setUpDirectory(String name, String property) {
+        File dir = new File(i2pDir, name);
+        if(!dir.isDirectory() && !dir.mkdir())
+            LOG.warning("Unable to create I2P "+name+" directory: "+dir.getAbsolutePath());
+        if(dir.isDirectory()) {
+            System.setProperty(property, dir.getAbsolutePath());
+            config.setProperty(property, dir.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Loads peers known before the last shutdown so they are available before the first peer exchange.
+     */
+    private void loadPeerStore() {
+        if(peerStore!=null) {
+            return;
+        }
+        PeerStore store = PeerStore.fromConfig(config, i2pDir);
+        if(store==null) {
+            return;
+        }
+        try {
+            store.load();
+        } catch (IOException e) {
+            LOG.warning("Unable to load known peers: "+e.getLocalizedMessage());
+            return;
+        }
+        List<NetworkPeer> known = new ArrayList<>();
+        for(PeerStore.Entry entry : store.best(maxPeers!=null ? maxPeers : PeerStore.DEFAULT_MAX_PEERS)) {
+            NetworkPeer peer = new NetworkPeer();
+            peer.fromJSON(entry.getJson());
+            known.add(peer);
+        }
+        addPeers(known);
+        peerStore = store;
+    }
+
+    /**
+     * Records a peer in the peer store.
+     * @param seen true if received from directly, false if learned from another peer
+     */
+    void rememberPeer(NetworkPeer peer, boolean seen) {
+        PeerStore store = peerStore;
+        if(store==null || peer==null || peer.getDid()==null || peer.getDid().getPublicKey()==null) {
+            return;
+        }
+        store.put(peer.getDid().getPublicKey().getFingerprint(), peer.getDid().getPublicKey().getAddress(), peer::toJSON, seen);
+    }
+
+    void persistPeers() {
+        PeerStore store = peerStore;
+        if(store==null) {
+            return;
+        }
+        try {
+            store.flush();
+            if(store.needsCompaction()) {
+                store.compact();
+            }
+        } catch (IOException e) {
+            LOG.warning("Unable to persist known peers: "+e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Opens the spool of Envelopes left unsent by the last run, if enabled.
+     */
+    private void loadSpool() {
+        if(spool!=null) {
+            return;
+        }
+        OutboundSpool s = OutboundSpool.fromConfig(config, i2pDir);
+        if(s==null) {
+            return;
+        }
+        try {
+            s.open();
+        } catch (IOException e) {
+            LOG.warning("Unable to open spool; Envelopes will not be spooled: "+e.getLocalizedMessage());
+            return;
+        }
+        spool = s;
+    }
+
+    /**
+     * Syncs the spool and, once connected, sends what it holds on a session thread.
+     */
+    void drainSpool() {
+        OutboundSpool s = spool;
+        if(s==null) {
+            return;
+        }
+        try {
+            s.sync();
+        } catch (IOException e) {
+            LOG.warning("Unable to sync spool: "+e.getLocalizedMessage());
+        }
+        if(s.isEmpty() || getNetworkState().networkStatus!=NetworkStatus.CONNECTED
+                || restartCoordinator.getState()!=RestartCoordinator.State.IDLE || !spoolReplaying.compareAndSet(false, true)) {
+            return;
+        }
+        sessionExecutor.execute(() -> {
+            try {
+                s.replay(json -> {
+                    Envelope e = Envelope.documentFactory();
+                    e.fromJSON(json);
+                    SendResult result = deliver(e);
+                    if(result.isSuccess()) {
+                        return true;
+                    }
+                    if(SendResult.CODE_NOT_READY.equals(result.getCode()) || SendResult.CODE_SEND_FAILED.equals(result.getCode())) {
+                        // Router unavailable; stop and retry on the next drain
+                        return false;
+                    }
+                    // Anything else will not change on a retry
+                    spoolDiscarded.incrementAndGet();
+                    LOG.warning("Discarding spooled Envelope "+e.getId()+" ("+result.getCode()+"): "+result.getMessage());
+                    return true;
+                });
+            } catch (IOException e) {
+                LOG.warning("Unable to replay spool: "+e.getLocalizedMessage());
+            } finally {
+                spoolReplaying.set(false);
+            }
+        });
+    }
 
+    private void closeSpool() {
+        OutboundSpool s = spool;
+        spool = null;
+        if(s!=null) {
+            s.close();
+        }
+    }
+
+    private void closePacer() {
+        Pacer<I2PServiceSession.PacedFlow> p = pacer;
+        pacer = null;
+        if(p!=null) {
+            p.close();
+            LOG.info("Paced "+p.getSent()+" datagram(s); "+p.getPacedMs()+" ms waiting for bandwidth, "+p.getRejected()+" rejected.");
+        }
+    }
+
+    private void closePeerStore() {
+        PeerStore store = peerStore;
+        peerStore = null;
+        if(store!=null) {
+            store.close();
+        }
+    }
+
+    private void startTasks() {
         if(taskRunner==null) {
             taskRunner = new TaskRunner(1, 1);
             taskRunner.setPeriodicity(1000L); // Default check every second
-            CheckRouterStatus statusChecker = new CheckRouterStatus(this, taskRunner);
-            statusChecker.setPeriodicity(30 * 1000L); // Check status every 30 seconds
+            statusChecker = new CheckRouterStatus(this, taskRunner);
+            statusChecker.setPeriodicity(statusPoll.current()); // Adapts after each check
             taskRunner.addTask(statusChecker);
+            ExpireInflightRequests inflightExpirer = new ExpireInflightRequests(this, taskRunner);
+            inflightExpirer.setPeriodicity(5 * 1000L);
+            taskRunner.addTask(inflightExpirer);
+            ExpireIdleState idleExpirer = new ExpireIdleState(this, taskRunner);
+            idleExpirer.setPeriodicity(5 * 1000L);
+            taskRunner.addTask(idleExpirer);
+            PersistPeers peerPersister = new PersistPeers(this, taskRunner);
+            peerPersister.setPeriodicity(30 * 1000L);
+            taskRunner.addTask(peerPersister);
+            DrainSpool spoolDrainer = new DrainSpool(this, taskRunner);
+            // Also the only sync of the spool's tail once appends stop
+            OutboundSpool s = spool;
+            spoolDrainer.setPeriodicity(s==null ? OutboundSpool.DEFAULT_FSYNC_INTERVAL_MS : s.getFsyncIntervalMs());
+            taskRunner.addTask(spoolDrainer);
+            if(autoscaler!=null) {
+                ScaleTunnels tunnelScaler = new ScaleTunnels(this, taskRunner);
+                tunnelScaler.setPeriodicity(autoscaler.getIntervalMs());
+                taskRunner.addTask(tunnelScaler);
+            }
         }
 
         taskRunnerThread = new Thread(taskRunner);
         taskRunnerThread.setDaemon(true);
         taskRunnerThread.setName("I2PService-TaskRunnerThread");
         taskRunnerThread.start();
-
-        updateStatus(ServiceStatus.RUNNING);
-
-        return true;
     }
 
     @Override
@@ -418,44 +1150,73 @@ public final class I2PService extends NetworkService {
         return false;
     }
 
+    /**
+     * Requests a router restart without waiting for it. Envelopes sent while it runs are held
+     * and resent once sessions are re-established.
+     * Every fourth consecutive request without reaching CONNECTED is a full shutdown and start.
+     * @return true if the restart was requested
+     */
     @Override
     public boolean restart() {
-        if(router==null) {
+        if(isLoopback()) {
+            // Nothing to restart; replace any failed sessions
+            establishSessions();
+            return true;
+        }
+        if(router==null && routerContext!=null) {
             router = routerContext.router();
-            if(router==null) {
-                LOG.severe("Unable to restart I2P Router. Router instance not found in RouterContext.");
-                return false;
-            }
         }
-        if(restartAttempts.equals(RESTART_ATTEMPTS_UNTIL_HARD_RESTART)) {
-            LOG.info("Full restart of I2P Router...");
-            if(!shutdown()) {
-                LOG.warning("Issues shutting down I2P Router. Will attempt to start regardless...");
+        if(router==null) {
+            LOG.severe("Unable to restart I2P Router. Router instance not found in RouterContext.");
+            return false;
+        }
+        // Only a request that starts a restart counts; joining one already running does not
+        restartCoordinator.request(() -> restartAttempts.getAndUpdate(n -> n >= RESTART_ATTEMPTS_UNTIL_HARD_RESTART ? 0 : n + 1) >= RESTART_ATTEMPTS_UNTIL_HARD_RESTART);
+        return true;
+    }
+
+    private RestartCoordinator.Steps restartSteps() {
+        return new RestartCoordinator.Steps() {
+            @Override
+            public boolean restartSoft() {
+                updateStatus(ServiceStatus.RESTARTING);
+                // Sessions do not survive the router restart
+                closeSessions();
+                // Lookups failing while the router is down would otherwise stay negatively cached
+                destinationCache.clear();
+                router.restart();
+                return true;
             }
-            if(!start(config)) {
-                LOG.warning("Issues starting I2P Router.");
-                return false;
-            } else {
-                LOG.info("Hard restart of I2P Router completed.");
+
+            @Override
+            public boolean isRouterAlive() {
+                return routerContext.router().isAlive();
             }
-        } else {
-            LOG.info("Soft restart of I2P Router...");
-            updateStatus(ServiceStatus.RESTARTING);
-            router.restart();
-            int maxWaitSec = 10 * 60; // 10 minutes
-            int currentWait = 0;
-            while(!routerContext.router().isAlive()) {
-                Wait.aSec(10);
-                currentWait+=10;
-                if(currentWait > maxWaitSec) {
-                    LOG.warning("Restart failed.");
+
+            @Override
+            public boolean restartHard() {
+                if(!shutdown()) {
+                    LOG.warning("Issues shutting down I2P Router. Will attempt to start regardless...");
+                }
+                if(!start(config)) {
+                    LOG.warning("Issues starting I2P Router.");
                     return false;
                 }
+                return true;
             }
-            LOG.info("Router hiddenMode="+router.isHidden());
-            LOG.info("I2P Router soft restart completed.");
-        }
-        return true;
+
+            @Override
+            public CompletableFuture<?> reconnect() {
+                LOG.info("Router hiddenMode="+router.isHidden());
+                establishSessions();
+                return establishSessionAsync(null).thenRun(() -> updateStatus(ServiceStatus.RUNNING));
+            }
+
+            @Override
+            public CompletableFuture<SendResult> resend(Envelope envelope) {
+                return sendOutAsync(envelope);
+            }
+        };
     }
 
     @Override
@@ -468,15 +1229,29 @@ public final class I2PService extends NetworkService {
         }
         taskRunner = null;
         taskRunnerThread = null;
-        for(NetworkClientSession s : sessions.values()) {
-            s.disconnect();
-            s.close();
+        if(sendQueue!=null) {
+            if(restartCoordinator.getState()==RestartCoordinator.State.HARD_RESTARTING) {
+                // Queued sends wait out the restart with the rest instead of failing
+                sendQueue.shutdown(restartCoordinator::hold);
+            } else {
+                sendQueue.shutdown();
+            }
+            sendQueue = null;
         }
-        sessions.clear();
+        if(inboundPool!=null) {
+            inboundPool.shutdown();
+            inboundPool = null;
+        }
+        closeSessions();
+        destinationCache.clear();
+        closePacer();
+        closePeerStore();
+        closeSpool();
         if(router != null) {
             router.shutdown(Router.EXIT_HARD);
         }
         router = null;
+        metrics.unregister();
         updateStatus(ServiceStatus.SHUTDOWN);
         LOG.info("I2P router stopped.");
         return true;
@@ -492,21 +1267,60 @@ public final class I2PService extends NetworkService {
         }
         taskRunner = null;
         taskRunnerThread = null;
-        for(NetworkClientSession s : sessions.values()) {
-            s.disconnect();
-            s.close();
+        if(sendQueue!=null) {
+            sendQueue.shutdown();
+            sendQueue = null;
+        }
+        if(inboundPool!=null) {
+            inboundPool.shutdown();
+            inboundPool = null;
         }
-        sessions.clear();
+        closeSessions();
+        destinationCache.clear();
+        closePacer();
+        closePeerStore();
+        closeSpool();
         if(router != null) {
             router.shutdownGracefully(Router.EXIT_GRACEFUL);
         }
         router = null;
+        metrics.unregister();
         updateStatus(ServiceStatus.GRACEFULLY_SHUTDOWN);
         LOG.info("I2P router gracefully stopped.");
         return true;
     }
 
+    private void closeSessions() {
+        for(String key : new ArrayList<>(sessions.keySet())) {
+            CompletableFuture<I2PServiceSession> future = sessions.remove(key);
+            if(future!=null) {
+                // Sessions still connecting are closed once they finish
+                future.thenAccept(s -> {
+                    s.disconnect();
+                    s.close();
+                });
+            }
+        }
+    }
+
     public void reportRouterStatus() {
+        if(isLoopback()) {
+            if(getNetworkState().networkStatus==NetworkStatus.CONNECTED && sessions.isEmpty()) {
+                establishSessions();
+            }
+            return;
+        }
+        // Something happened; watch closely until it settles
+        statusPoll.reset();
+        CheckRouterStatus checker = statusChecker;
+        if(checker!=null) {
+            // The task only picks up a new period after its next run, which may be minutes away
+            checker.setPeriodicity(statusPoll.current());
+        }
+        if(i2pRouterStatus==null) {
+            // Not yet polled
+            return;
+        }
         switch (i2pRouterStatus) {
             case UNKNOWN:
                 LOG.info("Testing I2P Network...");
@@ -530,47 +1344,47 @@ public final class I2PService extends NetworkService {
                 break;
             case OK:
                 LOG.info("Connected to I2P Network. We are able to receive unsolicited connections.");
-                restartAttempts = 0; // Reset restart attempts
+                restartAttempts.set(0); // Reset restart attempts
                 updateNetworkStatus(NetworkStatus.CONNECTED);
                 break;
             case IPV4_DISABLED_IPV6_OK:
                 LOG.info("IPV4 Disabled but IPV6 OK: Connected to I2P Network.");
-                restartAttempts = 0; // Reset restart attempts
+                restartAttempts.set(0); // Reset restart attempts
                 updateNetworkStatus(NetworkStatus.CONNECTED);
                 break;
             case IPV4_FIREWALLED_IPV6_OK:
                 LOG.info("IPV4 Firewalled but IPV6 OK: Connected to I2P Network.");
-                restartAttempts = 0; // Reset restart attempts
+                restartAttempts.set(0); // Reset restart attempts
                 updateNetworkStatus(NetworkStatus.CONNECTED);
                 break;
             case IPV4_SNAT_IPV6_OK:
                 LOG.info("IPV4 SNAT but IPV6 OK: Connected to I2P Network.");
-                restartAttempts = 0; // Reset restart attempts
+                restartAttempts.set(0); // Reset restart attempts
                 updateNetworkStatus(NetworkStatus.CONNECTED);
                 break;
             case IPV4_UNKNOWN_IPV6_OK:
                 LOG.info("IPV4 Testing but IPV6 OK: Connected to I2P Network.");
-                restartAttempts = 0; // Reset restart attempts
+                restartAttempts.set(0); // Reset restart attempts
                 updateNetworkStatus(NetworkStatus.CONNECTED);
                 break;
             case IPV4_OK_IPV6_FIREWALLED:
                 LOG.info("IPV6 Firewalled but IPV4 OK: Connected to I2P Network.");
-                restartAttempts = 0; // Reset restart attempts
+                restartAttempts.set(0); // Reset restart attempts
                 updateNetworkStatus(NetworkStatus.CONNECTED);
                 break;
             case IPV4_OK_IPV6_UNKNOWN:
                 LOG.info("IPV6 Testing but IPV4 OK: Connected to I2P Network.");
-                restartAttempts = 0; // Reset restart attempts
+                restartAttempts.set(0); // Reset restart attempts
                 updateNetworkStatus(NetworkStatus.CONNECTED);
                 break;
             case IPV4_DISABLED_IPV6_FIREWALLED:
                 LOG.warning("IPV4 Disabled but IPV6 Firewalled. Connected to I2P network.");
-                restartAttempts = 0; // Reset restart attempts
+                restartAttempts.set(0); // Reset restart attempts
                 updateNetworkStatus(NetworkStatus.CONNECTED);
                 break;
             case REJECT_UNSOLICITED:
                 LOG.info("We are able to talk to peers that we initiate communication with, but cannot receive unsolicited connections. Connected to I2P network.");
-                restartAttempts = 0; // Reset restart attempts
+                restartAttempts.set(0); // Reset restart attempts
                 updateNetworkStatus(NetworkStatus.CONNECTED);
                 break;
             case DISCONNECTED:
@@ -591,7 +1405,8 @@ public final class I2PService extends NetworkService {
                 updateNetworkStatus(NetworkStatus.DISCONNECTED);
             }
         }
-        if(getNetworkState().networkStatus==NetworkStatus.CONNECTED && sessions.size()==0) {
+        metrics.recordNetworkStatus(getNetworkState().networkStatus);
+        if(getNetworkState().networkStatus==NetworkStatus.CONNECTED && sessions.isEmpty()) {
             LOG.info("Network Connected and no Sessions.");
             if(routerContext.commSystem().isInStrictCountry()) {
                 LOG.warning("This peer is in a 'strict' country defined by I2P.");
@@ -600,7 +1415,21 @@ public final class I2PService extends NetworkService {
                 LOG.warning("I2P Router is in Hidden mode. I2P Service setting for hidden mode: "+config.getProperty("ra.i2p.hidden"));
             }
             LOG.info("Establishing Session to speed up future outgoing messages...");
-            establishSession(null, true);
+            establishSessions();
+        }
+        if(getNetworkState().networkStatus==NetworkStatus.CONNECTED) {
+            drainSpool();
+        }
+    }
+
+    private void establishSessions() {
+        // Called from session listener threads too so don't wait for the connects
+        establishSessionAsync(null);
+        if(shardCount > 1) {
+            LOG.info("Establishing "+(shardCount-1)+" additional session shard(s)...");
+            for(int i=1; i<shardCount; i++) {
+                establishShardAsync(i);
+            }
         }
     }
 
@@ -612,12 +1441,153 @@ public final class I2PService extends NetworkService {
         if(routerContext==null)
             return; // Router not yet established
         CommSystemFacade.Status reportedStatus = getRouterStatus();
-        if(i2pRouterStatus != reportedStatus) {
+        boolean changed = i2pRouterStatus != reportedStatus;
+        if(changed) {
             // Status changed
+            CommSystemFacade.Status previous = i2pRouterStatus;
             i2pRouterStatus = reportedStatus;
             LOG.info("I2P Router Status changed to: "+i2pRouterStatus.name());
             reportRouterStatus();
+            for(RouterStatusListener listener : routerStatusListeners) {
+                try {
+                    listener.routerStatusChanged(previous, reportedStatus);
+                } catch (Exception e) {
+                    LOG.warning("Router status listener failed: "+e.getLocalizedMessage());
+                }
+            }
         }
+        prewarmSessions();
+        // Still testing the network counts as unsettled even when the status repeats
+        statusPoll.next(!changed && getNetworkState().networkStatus!=NetworkStatus.CONNECTING);
+    }
+
+    /**
+     * The router reports CONNECTED only after its peer tests finish, often long after it can
+     * build tunnels. Start opening sessions as soon as it has exploratory tunnels both ways so
+     * the first outbound message does not also wait on the client tunnel build.
+     */
+    private void prewarmSessions() {
+        if(!sessions.isEmpty()) {
+            return;
+        }
+        if(routerContext.tunnelManager().getFreeTunnelCount() > 0 && routerContext.tunnelManager().getOutboundTunnelCount() > 0) {
+            LOG.info("I2P Router has exploratory tunnels; establishing sessions ahead of network status...");
+            establishSessions();
+        }
+    }
+
+    /**
+     * @return router's current outbound bandwidth limit in bytes per second or 0 if there is no router
+     */
+    long outboundLimitBytesPerSecond() {
+        RouterContext ctx = routerContext;
+        if(ctx==null) {
+            return 0L;
+        }
+        return ctx.bandwidthLimiter().getOutboundKBytesPerSecond() * 1024L;
+    }
+
+    /**
+     * Sizes client tunnel pools and transport connection limits to the load since the last call;
+     * see {@link TunnelAutoscaler}. Tunnel quantity is changed on every open session and for
+     * sessions opened later; connection limits are saved to the router config and apply live.
+     */
+    void autoscale() {
+        TunnelAutoscaler scaler = autoscaler;
+        RouterContext ctx = routerContext;
+        if(scaler==null || ctx==null || getNetworkState().networkStatus!=NetworkStatus.CONNECTED) {
+            return;
+        }
+        long now = System.nanoTime();
+        long sent = metrics.getMessagesSent();
+        if(autoscaleNanos==0L) {
+            scaler.reset(configuredInt(config.getProperty(TunnelAutoscaler.INBOUND_QUANTITY), TunnelAutoscaler.DEFAULT_MIN_TUNNELS),
+                    configuredInt(ctx.router().getConfigSetting(RouterTuning.NTCP_MAX_CONNECTIONS), 0));
+            autoscaleMessagesSent = sent;
+            autoscaleNanos = now;
+            return;
+        }
+        double seconds = (now - autoscaleNanos) / 1e9;
+        List<I2PServiceSession> open = openSessions();
+        // Quantity is per session and sends are spread across the shards
+        int shards = Math.max(1, open.size());
+        TunnelAutoscaler.Load load = new TunnelAutoscaler.Load(
+                seconds <= 0 ? 0.0 : (sent - autoscaleMessagesSent) / seconds / shards,
+                metrics.getSendQueueDepth(),
+                tunnelBuildSuccess(ctx),
+                ctx.commSystem().countActivePeers());
+        autoscaleMessagesSent = sent;
+        autoscaleNanos = now;
+        int tunnels = scaler.getTunnels();
+        int connections = scaler.getConnections();
+        if(!scaler.next(load)) {
+            return;
+        }
+        LOG.info("Autoscaling for "+String.format("%.1f", load.sendRatePerSec)+" msgs/s per session ("+shards+"), "+load.queueDepth+" queued and "
+                +load.activePeers+" active peers: tunnels "+tunnels+" -> "+scaler.getTunnels()
+                +", connections "+connections+" -> "+scaler.getConnections());
+        if(scaler.getTunnels()!=tunnels) {
+            String quantity = String.valueOf(scaler.getTunnels());
+            // Sessions opened later pick it up from config
+            config.setProperty(TunnelAutoscaler.INBOUND_QUANTITY, quantity);
+            config.setProperty(TunnelAutoscaler.OUTBOUND_QUANTITY, quantity);
+            for(I2PServiceSession session : open) {
+                session.updateTunnelQuantity(scaler.getTunnels());
+            }
+        }
+        if(scaler.getConnections()!=connections) {
+            Map<String, String> requested = new HashMap<>();
+            requested.put(RouterTuning.NTCP_MAX_CONNECTIONS, String.valueOf(scaler.getConnections()));
+            requested.put(RouterTuning.UDP_MAX_CONNECTIONS, String.valueOf(scaler.getConnections()));
+            Map<String, String> changes = RouterTuning.changes(requested, ctx.router()::getConfigSetting);
+            if(!changes.isEmpty() && !saveRouterSettings(changes)) {
+                LOG.warning("Unable to save router settings: "+changes.keySet());
+            }
+        }
+    }
+
+    private static int configuredInt(String value, int defaultValue) {
+        if(value==null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return share of client tunnel builds that succeeded over the last ten minutes, or -1 if none were tried
+     */
+    private static double tunnelBuildSuccess(RouterContext ctx) {
+        long success = tunnelBuilds(ctx, "tunnel.buildClientSuccess");
+        long failed = tunnelBuilds(ctx, "tunnel.buildClientReject") + tunnelBuilds(ctx, "tunnel.buildClientExpire");
+        return success + failed == 0 ? -1.0 : (double)success / (success + failed);
+    }
+
+    private static long tunnelBuilds(RouterContext ctx, String name) {
+        RateStat stat = ctx.statManager().getRate(name);
+        if(stat==null) {
+            return 0L;
+        }
+        Rate rate = stat.getRate(10 * 60 * 1000L);
+        return rate==null ? 0L : rate.getLastEventCount() + rate.getCurrentEventCount();
+    }
+
+    /**
+     * @return milliseconds until the router status should next be checked
+     */
+    long statusPollMs() {
+        return statusPoll.current();
+    }
+
+    public void addRouterStatusListener(RouterStatusListener listener) {
+        routerStatusListeners.add(listener);
+    }
+
+    public void removeRouterStatusListener(RouterStatusListener listener) {
+        routerStatusListeners.remove(listener);
     }
 
     private Integer activePeersCount() {
@@ -629,7 +1599,7 @@ public final class I2PService extends NetworkService {
             LOG.warning("Network Peer with address is required to determine if peer is unreachable.");
             return false;
         }
-        I2PServiceSession session = establishSession("default", true);
+        I2PServiceSession session = establishSession(null);
         Destination dest = session.lookupDest(networkPeer.getDid().getPublicKey().getAddress());
         return routerContext.commSystem().wasUnreachable(dest.getHash());
     }
@@ -643,7 +1613,7 @@ public final class I2PService extends NetworkService {
             LOG.warning("Network Peer with address is required to determine if peer is in strict country.");
             return false;
         }
-        I2PServiceSession session = establishSession("default", true);
+        I2PServiceSession session = establishSession(null);
         Destination dest = session.lookupDest(networkPeer.getDid().getPublicKey().getAddress());
         return routerContext.commSystem().isInStrictCountry(dest.getHash());
     }
@@ -653,7 +1623,7 @@ public final class I2PService extends NetworkService {
             LOG.warning("Network Peer with address is required to determine if peer is backlogged.");
             return false;
         }
-        I2PServiceSession session = establishSession("default", true);
+        I2PServiceSession session = establishSession(null);
         Destination dest = session.lookupDest(networkPeer.getDid().getPublicKey().getAddress());
         return routerContext.commSystem().isBacklogged(dest.getHash());
     }
@@ -663,7 +1633,7 @@ public final class I2PService extends NetworkService {
             LOG.warning("Network Peer with address is required to determine if peer is established.");
             return false;
         }
-        I2PServiceSession session = establishSession("default", true);
+        I2PServiceSession session = establishSession(null);
         Destination dest = session.lookupDest(networkPeer.getDid().getPublicKey().getAddress());
         return routerContext.commSystem().isEstablished(dest.getHash());
     }
@@ -673,7 +1643,7 @@ public final class I2PService extends NetworkService {
             LOG.warning("Network Peer with address is required to determine country of peer.");
             return "NoPeer";
         }
-        I2PServiceSession session = establishSession("default", true);
+        I2PServiceSession session = establishSession(null);
         Destination dest = session.lookupDest(networkPeer.getDid().getPublicKey().getAddress());
         return routerContext.commSystem().getCountry(dest.getHash());
     }
@@ -682,48 +1652,39 @@ public final class I2PService extends NetworkService {
      *  Load defaults from internal router.config on classpath,
      *  then add props from i2pDir/router.config overriding any from internal router.config,
      *  then override these with the supplied overrides if not null which would likely come from 3rd party app (not yet supported),
-     *  then write back to i2pDir/router.config.
+     *  then write back to i2pDir/router.config if that changed it.
      *
      *  @param overrides local overrides or null
      */
     private void mergeRouterConfig(Properties overrides) {
         Properties props = new OrderedProperties();
+        Properties existing = new OrderedProperties();
         File f = new File(i2pDir,"router.config");
-        boolean i2pBaseRouterConfigIsNew = false;
-        if(!f.exists()) {
-            if(!f.mkdir()) {
-                LOG.warning("While merging router.config files, unable to create router.config in i2pBaseDirectory: "+i2pDir.getAbsolutePath());
-            } else {
-                i2pBaseRouterConfigIsNew = true;
-            }
-        }
-        InputStream i2pBaseRouterConfig = null;
         try {
             props.putAll(Config.loadFromClasspath("router.config"));
 
-            if(!i2pBaseRouterConfigIsNew) {
-                i2pBaseRouterConfig = new FileInputStream(f);
-                DataHelper.loadProps(props, i2pBaseRouterConfig);
+            if(f.isFile()) {
+                DataHelper.loadProps(existing, f);
+                props.putAll(existing);
             }
 
             // override with user settings
             if (overrides != null)
                 props.putAll(overrides);
 
-            DataHelper.storeProps(props, f);
+            // Only rewrite when the merge changed something
+            if(!props.equals(existing)) {
+                DataHelper.storeProps(props, f);
+                LOG.info("router.config updated in: "+i2pDir.getAbsolutePath());
+            }
         } catch (Exception e) {
             LOG.warning("Exception caught while merging router.config properties: "+e.getLocalizedMessage());
-        } finally {
-            if (i2pBaseRouterConfig != null) try {
-                i2pBaseRouterConfig.close();
-            } catch (IOException ioe) {
-            }
         }
     }
 
     /**
      *  Copy all certificates found in certificates on classpath
-     *  into i2pDir/certificates
+     *  into i2pDir/certificates, skipping those unchanged since last copied
      *
      *  @param reseedCertificates destination directory for reseed certificates
      *  @param sslCertificates destination directory for ssl certificates
@@ -733,57 +1694,49 @@ public final class I2PService extends NetworkService {
             String jarPath = getClass().getProtectionDomain().getCodeSource().getLocation().getPath();
             final File jarFile = new File(jarPath);
             if (jarFile.isFile()) {
-                try {
-                    final JarFile jar = new JarFile(jarFile);
-                    JarEntry entry;
-                    File f = null;
+                CertificateManifest manifest = new CertificateManifest(reseedCertificates.getParentFile());
+                manifest.load();
+                if(manifest.isJarUnchanged(jarFile)) {
+                    LOG.info("Certificates up to date.");
+                    return true;
+                }
+                try (JarFile jar = new JarFile(jarFile)) {
                     final Enumeration<JarEntry> entries = jar.entries(); //gives ALL entries in jar
                     while (entries.hasMoreElements()) {
-                        entry = entries.nextElement();
+                        JarEntry entry = entries.nextElement();
                         final String name = entry.getName();
+                        File dir = null;
                         if (name.startsWith("certificates/reseed/")) { //filter according to the path
-                            if (!name.endsWith("/")) {
-                                String fileName = name.substring(name.lastIndexOf("/") + 1);
-                                LOG.info("fileName to save: " + fileName);
-                                f = new File(reseedCertificates, fileName);
-                            }
+                            dir = reseedCertificates;
+                        } else if (name.startsWith("certificates/ssl/")) {
+                            dir = sslCertificates;
                         }
-                        if (name.startsWith("certificates/ssl/")) {
-                            if (!name.endsWith("/")) {
-                                String fileName = name.substring(name.lastIndexOf("/") + 1);
-                                LOG.info("fileName to save: " + fileName);
-                                f = new File(sslCertificates, fileName);
-                            }
+                        if (dir == null || name.endsWith("/")) {
+                            continue;
                         }
-                        if (f != null) {
-                            boolean fileReadyToSave = false;
-                            if (!f.exists() && f.createNewFile()) fileReadyToSave = true;
-                            else if (f.exists() && f.delete() && f.createNewFile()) fileReadyToSave = true;
-                            if (fileReadyToSave) {
-                                FileOutputStream fos = new FileOutputStream(f);
-                                byte[] byteArray = new byte[1024];
-                                int i;
-                                InputStream is = getClass().getClassLoader().getResourceAsStream(name);
-                                //While the input stream has bytes
-                                while ((i = is.read(byteArray)) > 0) {
-                                    //Write the bytes to the output stream
-                                    fos.write(byteArray, 0, i);
-                                }
-                                //Close streams to prevent errors
-                                is.close();
-                                fos.close();
-                                f = null;
-                            } else {
-                                LOG.warning("Unable to save file from 1M5 jar and is required: " + name);
-                                return false;
-                            }
+                        String fileName = name.substring(name.lastIndexOf("/") + 1);
+                        String path = dir.getName() + "/" + fileName;
+                        // Unchanged since last extracted
+                        if (manifest.isCurrent(path, entry.getCrc(), entry.getSize())) {
+                            continue;
+                        }
+                        LOG.info("fileName to save: " + fileName);
+                        try (InputStream is = jar.getInputStream(entry)) {
+                            Files.copy(is, new File(dir, fileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                        } catch (IOException e) {
+                            LOG.warning("Unable to save file from 1M5 jar and is required: " + name + ": " + e.getLocalizedMessage());
+                            manifest.store();
+                            return false;
                         }
+                        manifest.record(path, entry.getCrc(), entry.getSize());
                     }
-                    jar.close();
                 } catch (IOException e) {
                     LOG.warning(e.getLocalizedMessage());
+                    manifest.store();
                     return false;
                 }
+                manifest.recordJar(jarFile);
+                manifest.store();
             } else {
                 // called while testing in an IDE
                 URL resource = I2PService.class.getClassLoader().getResource(".");
@@ -808,12 +1761,12 @@ public final class I2PService extends NetworkService {
                         if ("reseed".equals(folder.getName())) {
                             File[] reseedCerts = folder.listFiles();
                             for (File reseedCert : reseedCerts) {
-                                FileUtil.copy(reseedCert, reseedCertificates, true, false);
+                                copyIfChanged(reseedCert, reseedCertificates);
                             }
                         } else if ("ssl".equals(folder.getName())) {
                             File[] sslCerts = folder.listFiles();
                             for (File sslCert : sslCerts) {
-                                FileUtil.copy(sslCert, sslCertificates, true, false);
+                                copyIfChanged(sslCert, sslCertificates);
                             }
                         }
                     }
@@ -825,6 +1778,14 @@ public final class I2PService extends NetworkService {
         return true;
     }
 
+    private static void copyIfChanged(File source, File targetDir) {
+        File target = new File(targetDir, source.getName());
+        if(target.exists() && target.length()==source.length() && target.lastModified() >= source.lastModified()) {
+            return;
+        }
+        FileUtil.copy(source, targetDir, true, false);
+    }
+
     public static void main(String[] args) {
         MessageProducer messageProducer = new MessageProducer() {
             @Override
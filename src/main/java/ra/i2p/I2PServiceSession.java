@@ -8,8 +8,6 @@ import net.i2p.client.I2PSessionMuxedListener;
 import net.i2p.client.datagram.I2PDatagramDissector;
 import net.i2p.client.datagram.I2PDatagramMaker;
 import net.i2p.client.datagram.I2PInvalidDatagramException;
-import net.i2p.client.streaming.I2PSocketManager;
-import net.i2p.client.streaming.I2PSocketManagerFactory;
 import net.i2p.crypto.SigType;
 import net.i2p.data.Base64;
 import net.i2p.data.DataFormatException;
@@ -22,11 +20,15 @@ import ra.common.identity.DID;
 import ra.common.network.*;
 import ra.common.route.ExternalRoute;
 import ra.common.route.Route;
-import ra.common.JSONParser;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 class I2PServiceSession extends BaseClientSession implements I2PSessionMuxedListener {
@@ -48,7 +50,15 @@ class I2PServiceSession extends BaseClientSession implements I2PSessionMuxedList
             "outbound.backupQuantity",
     });
 
-    private I2PSocketManager socketManager;
+    /**
+     * Lifecycle of a session for monitoring.
+     */
+    enum State { NEW, OPENING, CONNECTING, CONNECTED, FAILED, DISCONNECTED, CLOSED }
+
+    private I2PTransport transport;
+    private StreamConnectionPool streamPool;
+    private volatile Coalescer<Destination, Envelope> coalescer;
+    private volatile State state = State.NEW;
     private boolean isTest = false;
 
     protected I2PService service;
@@ -56,24 +66,64 @@ class I2PServiceSession extends BaseClientSession implements I2PSessionMuxedList
     protected boolean connected = false;
     protected String address;
 
+    // Shard 0 owns the service's local peer; other shards have their own destination and key file
+    protected final int shard;
+    protected NetworkPeer shardPeer;
+
     public I2PServiceSession(I2PService service) {
+        this(service, 0);
+    }
+
+    public I2PServiceSession(I2PService service, int shard) {
         this.service = service;
+        this.shard = shard;
     }
 
     public String getAddress() {
         return address;
     }
 
+    State getState() {
+        return state;
+    }
+
+    /**
+     * @return this shard's own peer; null for shard 0, whose peer is the service's local peer
+     */
+    NetworkPeer getShardPeer() {
+        return shardPeer;
+    }
+
     public Destination lookupDest(String address) {
         Destination destination = null;
         try {
-            destination = i2pSession.lookupDest(address);
+            destination = service.destinationCache.get(address, this::resolveDest);
         } catch (I2PSessionException e) {
             e.printStackTrace();
         }
         return destination;
     }
 
+    /**
+     * Resolves an address on a cache miss. Full base64 destinations are parsed locally;
+     * anything else (e.g. a hash) goes through the session's naming lookup.
+     */
+    private Destination resolveDest(String address) throws I2PSessionException {
+        if(address.length() >= 516) {
+            try {
+                return new Destination(address);
+            } catch (DataFormatException e) {
+                LOG.fine("Address not a valid base64 destination; falling back to lookup: "+e.getLocalizedMessage());
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            return transport.lookup(address);
+        } finally {
+            service.metrics.recordLookup(System.nanoTime() - start);
+        }
+    }
+
     /**
      * Initializes session properties
      */
@@ -95,13 +145,16 @@ class I2PServiceSession extends BaseClientSession implements I2PSessionMuxedList
     @Override
     public boolean open(String i2pAddress) {
         LOG.info("Opening connection...");
-        NetworkPeer localI2PPeer = service.getNetworkState().localPeer;
+        state = State.OPENING;
+        NetworkPeer servicePeer = service.getNetworkState().localPeer;
+        NetworkPeer localI2PPeer = shard==0 ? servicePeer : shardPeer;
         // read the local destination key from the key file if it exists
         String alias = "anon";
-        if(localI2PPeer!=null && localI2PPeer.getDid().getUsername()!=null) {
-            alias = localI2PPeer.getDid().getUsername();
+        if(servicePeer!=null && servicePeer.getDid().getUsername()!=null) {
+            alias = servicePeer.getDid().getUsername();
         }
-        File destinationKeyFile = new File(service.getDirectory(), alias);
+        String keyAlias = shard==0 ? alias : alias + "-shard-" + shard;
+        File destinationKeyFile = new File(service.getDirectory(), keyAlias);
         FileReader fileReader = null;
         try {
             fileReader = new FileReader(destinationKeyFile);
@@ -109,7 +162,8 @@ class I2PServiceSession extends BaseClientSession implements I2PSessionMuxedList
             fileReader.read(destKeyBuffer);
             byte[] localDestinationKey = Base64.decode(new String(destKeyBuffer));
             ByteArrayInputStream inputStream = new ByteArrayInputStream(localDestinationKey);
-            socketManager = I2PSocketManagerFactory.createDisconnectedManager(inputStream, null, 0, properties);
+            transport = service.newTransport();
+            transport.open(inputStream, properties);
         } catch (IOException e) {
             LOG.info("Destination key file doesn't exist or isn't readable." + e);
         } catch (I2PSessionException e) {
@@ -125,27 +179,45 @@ class I2PServiceSession extends BaseClientSession implements I2PSessionMuxedList
             }
         }
 
+        // an existing destination keeps its signature type unless migration was requested
+        SigType sigType = service.sigType;
+        if (transport != null && transport.isOpen()) {
+            SigType existingSigType = transport.getSession().getMyDestination().getSigningPublicKey().getType();
+            if (existingSigType != sigType) {
+                if (service.migrateSigType) {
+                    LOG.info("Migrating local destination from " + existingSigType + " to " + sigType + "; current key file will be kept as backup.");
+                    transport.close();
+                    transport = null;
+                } else {
+                    LOG.info("Local destination uses " + existingSigType + " instead of configured " + sigType + "; set " + I2PService.PROP_SIG_TYPE_MIGRATE + "=true to migrate.");
+                }
+            }
+        }
+
         // if the local destination key can't be read or is invalid, create a new one
-        if (socketManager == null) {
-            LOG.info("Creating new local destination key");
+        if (transport == null || !transport.isOpen()) {
+            LOG.info("Creating new local destination key with signature type " + sigType);
             try {
                 ByteArrayOutputStream arrayStream = new ByteArrayOutputStream();
-                I2PClientFactory.createClient().createDestination(arrayStream, SigType.ECDSA_SHA512_P521);
+                I2PClientFactory.createClient().createDestination(arrayStream, sigType);
                 byte[] localDestinationKey = arrayStream.toByteArray();
-                LOG.info("Creating I2P Socket Manager...");
+                LOG.info("Opening I2P transport...");
                 ByteArrayInputStream inputStream = new ByteArrayInputStream(localDestinationKey);
-                socketManager = I2PSocketManagerFactory.createDisconnectedManager(inputStream, null, 0, properties);
-                LOG.info("I2P Socket Manager created.");
+                transport = service.newTransport();
+                transport.open(inputStream, properties);
+                LOG.info("I2P transport opened.");
 
                 destinationKeyFile = new SecureFile(destinationKeyFile.getAbsolutePath());
                 if (destinationKeyFile.exists()) {
                     File oldKeyFile = new File(destinationKeyFile.getPath() + "_backup");
                     if (!destinationKeyFile.renameTo(oldKeyFile)) {
                         LOG.warning("Cannot rename destination key file <" + destinationKeyFile.getAbsolutePath() + "> to <" + oldKeyFile.getAbsolutePath() + ">");
+                        state = State.FAILED;
                         return false;
                     }
                 } else if (!destinationKeyFile.createNewFile()) {
                     LOG.warning("Cannot create destination key file: <" + destinationKeyFile.getAbsolutePath() + ">");
+                    state = State.FAILED;
                     return false;
                 }
 
@@ -158,20 +230,23 @@ class I2PServiceSession extends BaseClientSession implements I2PSessionMuxedList
                 }
             } catch (I2PException e) {
                 LOG.warning("Error creating local destination key: " + e.getLocalizedMessage());
+                state = State.FAILED;
                 return false;
             } catch (IOException e) {
                 LOG.warning("Error writing local destination key to file: " + e.getLocalizedMessage());
+                state = State.FAILED;
                 return false;
             }
         }
-        i2pSession = socketManager.getSession();
+        i2pSession = transport.getSession();
+        address = i2pSession.getMyDestination().toBase64();
         if(localI2PPeer==null
                 || localI2PPeer.getDid()==null
                 || localI2PPeer.getDid().getPublicKey()==null
                 || localI2PPeer.getDid().getPublicKey().getAddress()==null
-                || localI2PPeer.getDid().getPublicKey().getAddress().isEmpty()) {
+                || localI2PPeer.getDid().getPublicKey().getAddress().isEmpty()
+                || !localI2PPeer.getDid().getPublicKey().getAddress().equals(address)) {
             Destination localDestination = i2pSession.getMyDestination();
-            address = localDestination.toBase64();
             String fingerprint = localDestination.calculateHash().toBase64();
             String algorithm = localDestination.getPublicKey().getType().getAlgorithmName();
             // Ensure network is correct
@@ -189,7 +264,7 @@ class I2PServiceSession extends BaseClientSession implements I2PSessionMuxedList
             did.setDescription("DID for I2PSensorSession");
             did.setAuthenticated(true);
             did.setVerified(true);
-            did.getPublicKey().setAlias(alias);
+            did.getPublicKey().setAlias(keyAlias);
             did.getPublicKey().isIdentityKey(true);
             did.getPublicKey().setAddress(address);
             did.getPublicKey().setBase64Encoded(true);
@@ -198,7 +273,7 @@ class I2PServiceSession extends BaseClientSession implements I2PSessionMuxedList
             localI2PPeer.setDid(did);
 
             try {
-                File localI2PPeerFile = new SecureFile(service.getDirectory(), alias+".json");
+                File localI2PPeerFile = new SecureFile(service.getDirectory(), keyAlias+".json");
                 if (localI2PPeerFile.exists()) {
                     File oldKeyFile = new File(localI2PPeerFile.getPath() + "_backup");
                     if (!localI2PPeerFile.renameTo(oldKeyFile)) {
@@ -216,23 +291,26 @@ class I2PServiceSession extends BaseClientSession implements I2PSessionMuxedList
             }
 
             // Only for testing; remove for production
-            String country = service.routerContext.commSystem().getCountry(localDestination.getHash());
-            if(country==null)
-                LOG.info("Local I2P Peer in country: unknown");
-            else
-                LOG.info("Local I2P Peer in country: "+country);
+            if(service.routerContext!=null) {
+                String country = service.routerContext.commSystem().getCountry(localDestination.getHash());
+                if(country==null)
+                    LOG.info("Local I2P Peer in country: unknown");
+                else
+                    LOG.info("Local I2P Peer in country: "+country);
+            }
         }
-        if(service.router.getConfigSetting("i2np.udp.port") != null) {
+        if(shard!=0) {
+            shardPeer = localI2PPeer;
+            LOG.info("I2P Shard "+shard+" Fingerprint (hash) in base64: " + localI2PPeer.getDid().getPublicKey().getFingerprint());
+            return true;
+        }
+        if(service.router!=null && service.router.getConfigSetting("i2np.udp.port") != null) {
             service.getNetworkState().virtualPort = Integer.parseInt(service.router.getConfigSetting("i2np.udp.port"));
         }
         service.getNetworkState().localPeer = localI2PPeer;
         LOG.info("Local I2P Peer Address in base64: " + localI2PPeer.getDid().getPublicKey().getAddress());
         LOG.info("Local I2P Peer Fingerprint (hash) in base64: " + localI2PPeer.getDid().getPublicKey().getFingerprint());
-        // Update Network Manager
-        Envelope e = Envelope.documentFactory();
-        e.addNVP("ra.common.network.NetworkPeer", localI2PPeer);
-        e.addRoute("ra.networkmanager.NetworkManagerService","UPDATE_LOCAL_PEER");
-        service.send(e);
+        service.updateLocalPeer();
         return true;
     }
 
@@ -243,35 +321,83 @@ class I2PServiceSession extends BaseClientSession implements I2PSessionMuxedList
     @Override
     public boolean connect() {
         if(!isOpen()) {
-            LOG.info("No Socket Manager open.");
+            LOG.info("No I2P transport open.");
             open(null);
         }
-        i2pSession = socketManager.getSession();
+        if(!isOpen()) {
+            state = State.FAILED;
+            return false;
+        }
+        i2pSession = transport.getSession();
         LOG.info("I2P Session connecting...");
+        state = State.CONNECTING;
         long start = System.currentTimeMillis();
         try {
-            // Throws I2PSessionException if the connection fails
-            i2pSession.connect();
+            // Throws I2PSessionException if the connection fails; inbound datagrams flow once connected
+            transport.connect(this);
             connected = true;
         } catch (I2PSessionException e) {
             LOG.warning(e.getLocalizedMessage());
+            state = State.FAILED;
             return false;
         }
         long end = System.currentTimeMillis();
         long durationMs = end - start;
         LOG.info("I2P Session connected. Took "+(durationMs/1000)+" seconds.");
 
-        i2pSession.addMuxedSessionListener(this, I2PSession.PROTO_ANY, I2PSession.PORT_ANY);
-
+        if(StreamConnectionPool.isEnabled(properties) && streamPool==null && transport.getSocketManager()!=null) {
+            streamPool = StreamConnectionPool.fromConfig(properties, transport.getSocketManager(), this::receiveStreamed);
+            streamPool.start();
+        }
+        if(Coalescer.isEnabled(properties) && coalescer==null) {
+            coalescer = Coalescer.fromConfig(properties, service.fragmentSize, this::sendFrame);
+        }
+        state = State.CONNECTED;
         return true;
     }
 
+    /**
+     * Closes pooled streams that have been idle too long.
+     */
+    void evictIdleStreams() {
+        if(streamPool!=null) {
+            streamPool.evictIdle();
+        }
+    }
+
+    /**
+     * Asks the router to keep this many client tunnels each way for the session's destination.
+     */
+    void updateTunnelQuantity(int quantity) {
+        I2PSession session = i2pSession;
+        if(!connected || session==null) {
+            return;
+        }
+        Properties options = new Properties();
+        options.setProperty(TunnelAutoscaler.INBOUND_QUANTITY, String.valueOf(quantity));
+        options.setProperty(TunnelAutoscaler.OUTBOUND_QUANTITY, String.valueOf(quantity));
+        session.updateOptions(options);
+        properties.putAll(options);
+    }
+
     @Override
     public boolean disconnect() {
-        if(i2pSession!=null) {
+        Coalescer<Destination, Envelope> batcher = coalescer;
+        if(batcher!=null) {
+            // Send what is waiting while the transport is still up
+            coalescer = null;
+            batcher.close();
+            LOG.info("Batched "+batcher.getPayloads()+" Envelope(s) into "+batcher.getFrames()+" datagram(s).");
+        }
+        if(streamPool!=null) {
+            streamPool.close();
+            streamPool = null;
+        }
+        if(transport!=null) {
             try {
-                i2pSession.destroySession();
+                transport.disconnect();
                 connected = false;
+                state = State.DISCONNECTED;
             } catch (I2PSessionException e) {
                 LOG.warning(e.getLocalizedMessage());
                 return false;
@@ -281,97 +407,277 @@ class I2PServiceSession extends BaseClientSession implements I2PSessionMuxedList
     }
 
     public boolean isOpen() {
-        return socketManager!=null;
+        return transport!=null && transport.isOpen();
     }
 
     @Override
     public boolean isConnected() {
-        boolean isConnected = i2pSession != null && connected && !i2pSession.isClosed();
-        if(!isConnected) connected = false;
+        boolean isConnected = transport != null && connected && transport.isConnected();
+        if(!isConnected) {
+            connected = false;
+            if(state==State.CONNECTED) state = State.DISCONNECTED;
+        }
         return isConnected;
     }
 
     @Override
     public boolean close() {
         disconnect();
-        socketManager.destroySocketManager();
+        if(transport!=null) {
+            transport.close();
+        }
+        state = State.CLOSED;
         return true;
     }
 
     @Override
     public Boolean send(Envelope envelope) {
+        return deliver(envelope).isSuccess();
+    }
+
+    /**
+     * Sends the Envelope on the calling thread.
+     * @return result carrying the error code and message also added to the Envelope on failure
+     */
+    SendResult deliver(Envelope envelope) {
         if (envelope == null) {
             LOG.warning("No Envelope.");
-            return false;
+            return SendResult.failed(SendResult.CODE_NO_ENVELOPE, "No Envelope.");
         }
         if(service.getLocalPeer()==null) {
-            envelope.getMessage().addErrorMessage("I2P Embedded Service has no local peer yet.");
-            return false;
+            return fail(envelope, SendResult.CODE_NOT_READY, "I2P Embedded Service has no local peer yet.");
         }
         if(!(envelope.getRoute() instanceof ExternalRoute)) {
             LOG.warning("Not an external route.");
-            envelope.getMessage().addErrorMessage("Route must be external.");
-            return false;
+            return fail(envelope, SendResult.CODE_INVALID_ROUTE, "Route must be external.");
         }
         ExternalRoute er = (ExternalRoute)envelope.getRoute();
         if (er.getDestination() == null) {
             LOG.warning("No Destination Peer for I2P found in while sending to I2P.");
-            envelope.getMessage().addErrorMessage("Code:" + ExternalRoute.DESTINATION_PEER_REQUIRED+", Destination Peer Required.");
-            return false;
+            return fail(envelope, String.valueOf(ExternalRoute.DESTINATION_PEER_REQUIRED), "Code:" + ExternalRoute.DESTINATION_PEER_REQUIRED+", Destination Peer Required.");
         }
         if (!Network.I2P.equals(er.getDestination().getNetwork())) {
             LOG.warning("Not an envelope for I2P.");
-            envelope.getMessage().addErrorMessage("Code:" + ExternalRoute.DESTINATION_PEER_WRONG_NETWORK+", Not meant for I2P Network.");
-            return false;
+            return fail(envelope, String.valueOf(ExternalRoute.DESTINATION_PEER_WRONG_NETWORK), "Code:" + ExternalRoute.DESTINATION_PEER_WRONG_NETWORK+", Not meant for I2P Network.");
         }
         NetworkPeer localPeer = service.getLocalPeer();
         if(localPeer.getDid()==null || localPeer.getDid().getPublicKey()==null || localPeer.getDid().getPublicKey().getFingerprint()==null || localPeer.getDid().getPublicKey().getAddress()==null) {
-            envelope.getMessage().addErrorMessage("Local Peer not ready.");
-            return false;
+            return fail(envelope, SendResult.CODE_NOT_READY, "Local Peer not ready.");
         }
         if(er.getDestination().equals(localPeer)) {
-            envelope.getMessage().addErrorMessage("Can not send to self.");
-            return false;
+            return fail(envelope, SendResult.CODE_INVALID_ROUTE, "Can not send to self.");
         }
 
         LOG.info("Sending Envelope id: "+envelope.getId().substring(0,7)+"... to: "+er.getDestination().getDid().getPublicKey().getFingerprint().substring(0,7)+"...");
-        String content = envelope.toJSON();
-        LOG.fine("Content to send: \n\t" + content);
-        if (content.length() > 31500) {
-            // Just warn for now
-            // TODO: Split into multiple serialized packets
-            LOG.warning("Content longer than 31.5kb. May have issues.");
+        if(envelope.markerPresent("NetOpReq") && !envelope.markerPresent("NetOpRes")) {
+            // Time the peer's response; untracked again if the send fails
+            service.inflight.track(envelope.getId(), er.getDestination().getDid().getPublicKey().getFingerprint());
+            if(service.peerExchange.isEnabled()) {
+                // Responder only sends peers missing from this
+                envelope.addNVP(PeerExchange.NVP_DIGEST, service.peerExchange.digest(service.getPeers()));
+            }
+        }
+        byte[] data = service.compressor.compress(service.envelopeCodec.encode(envelope, er.getDestination().getDid().getPublicKey().getFingerprint()));
+        if(LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Content to send: \n\t" + envelope.toJSON());
         }
+        Destination destination;
         try {
-            Destination destination = i2pSession.lookupDest(er.getDestination().getDid().getPublicKey().getAddress());
-            if(destination == null) {
-                LOG.warning("I2P Destination Peer not found.");
-                envelope.getMessage().addErrorMessage("Code:" + ExternalRoute.DESTINATION_PEER_NOT_FOUND+", I2P Destination Peer not found.");
-                return false;
+            destination = service.destinationCache.get(er.getDestination().getDid().getPublicKey().getAddress(), this::resolveDest);
+        } catch (I2PSessionException e) {
+            return failSession(envelope, e);
+        }
+        if(destination == null) {
+            LOG.warning("I2P Destination Peer not found.");
+            return fail(envelope, String.valueOf(ExternalRoute.DESTINATION_PEER_NOT_FOUND), "Code:" + ExternalRoute.DESTINATION_PEER_NOT_FOUND+", I2P Destination Peer not found.");
+        }
+        Coalescer<Destination, Envelope> batcher = coalescer;
+        if(batcher==null) {
+            return sendDirect(envelope, destination, data);
+        }
+        if(batcher.offer(destination, data, envelope)) {
+            // Failures are reported on the Envelope once its batch is sent; see sendFrame
+            LOG.fine("I2P Message batched.");
+            return SendResult.success();
+        }
+        // Too large to batch; goes out after anything already batched for the destination
+        return batcher.bypass(destination, () -> sendDirect(envelope, destination, data));
+    }
+
+    /**
+     * Streams the data or sends it as datagrams, fragmented if too large for one.
+     */
+    private SendResult sendDirect(Envelope envelope, Destination destination, byte[] data) {
+        try {
+            if(streamPool!=null && streamPool.shouldStream(data.length)) {
+                if(streamPool.send(destination, data)) {
+                    LOG.fine("I2P Message streamed.");
+                    service.metrics.recordSent(data.length);
+                    return SendResult.success();
+                }
+                LOG.info("Stream unavailable; falling back to datagrams.");
             }
             I2PDatagramMaker m = new I2PDatagramMaker(i2pSession);
-            byte[] payload = m.makeI2PDatagram(content.getBytes());
-            if(i2pSession.sendMessage(destination, payload, net.i2p.client.I2PSession.PROTO_UNSPECIFIED, net.i2p.client.I2PSession.PORT_ANY, net.i2p.client.I2PSession.PORT_ANY)) {
+            if (data.length > service.fragmentSize) {
+                List<byte[]> fragments;
+                try {
+                    fragments = Fragmenter.split(data, service.fragmentSize);
+                } catch (IllegalArgumentException e) {
+                    LOG.warning(e.getLocalizedMessage());
+                    return fail(envelope, SendResult.CODE_SEND_FAILED, e.getLocalizedMessage());
+                }
+                LOG.fine("Content of "+data.length+" bytes split into "+fragments.size()+" fragments.");
+                for(byte[] fragment : fragments) {
+                    if(!transmit(destination, m.makeI2PDatagram(fragment))) {
+                        LOG.warning("I2P Message fragment sending failed.");
+                        return fail(envelope, SendResult.CODE_SEND_FAILED, "I2P Message fragment sending failed.");
+                    }
+                }
                 LOG.fine("I2P Message sent.");
-                return true;
+                service.metrics.recordSent(data.length);
+                return SendResult.success();
+            }
+            byte[] payload = m.makeI2PDatagram(data);
+            if(transmit(destination, payload)) {
+                LOG.fine("I2P Message sent.");
+                service.metrics.recordSent(data.length);
+                return SendResult.success();
             } else {
                 LOG.warning("I2P Message sending failed.");
-                envelope.getMessage().addErrorMessage("I2P Message sending failed.");
-                return false;
+                return fail(envelope, SendResult.CODE_SEND_FAILED, "I2P Message sending failed.");
             }
         } catch (I2PSessionException e) {
-            String errMsg = "Exception while sending I2P message: " + e.getLocalizedMessage();
-            LOG.warning(errMsg);
-            envelope.getMessage().addErrorMessage(errMsg);
-            if("Already closed".equals(e.getLocalizedMessage())) {
-                LOG.info("I2P Connection closed. Could be no internet access, getting blocked, or forced shutdown of I2P router. Assume blocked for re-route. If not blocked, I2P will automatically re-establish connection when network access returns.");
-                service.getNetworkState().networkStatus = NetworkStatus.BLOCKED;
-                service.restart();
+            return failSession(envelope, e);
+        }
+    }
+
+    private SendResult failSession(Envelope envelope, I2PSessionException e) {
+        String errMsg = "Exception while sending I2P message: " + e.getLocalizedMessage();
+        LOG.warning(errMsg);
+        SendResult result = fail(envelope, SendResult.CODE_SEND_FAILED, errMsg);
+        restartIfClosed(e);
+        return result;
+    }
+
+    /**
+     * @return true if the session was closed under us and a restart has been requested
+     */
+    private boolean restartIfClosed(I2PSessionException e) {
+        if(!"Already closed".equals(e.getLocalizedMessage())) {
+            return false;
+        }
+        LOG.info("I2P Connection closed. Could be no internet access, getting blocked, or forced shutdown of I2P router. Assume blocked for re-route. If not blocked, I2P will automatically re-establish connection when network access returns.");
+        service.getNetworkState().networkStatus = NetworkStatus.BLOCKED;
+        service.restart();
+        return true;
+    }
+
+    /**
+     * A flow through the service's pacer: datagrams signed by one session for one destination.
+     */
+    static final class PacedFlow {
+        private final I2PServiceSession session;
+        private final Destination destination;
+
+        PacedFlow(I2PServiceSession session, Destination destination) {
+            this.session = session;
+            this.destination = destination;
+        }
+
+        /**
+         * Sends on the flow's session once the pacer lets the datagram go.
+         */
+        boolean send(byte[] datagram) throws I2PSessionException {
+            return session.transport.send(destination, datagram);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof PacedFlow)) {
+                return false;
             }
+            PacedFlow other = (PacedFlow)o;
+            return session==other.session && destination.equals(other.destination);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(session) + destination.hashCode();
+        }
+    }
+
+    /**
+     * Hands a signed datagram to the transport, through the service's pacer if pacing is enabled.
+     * @return false if it was not sent, including when it waited on the pacer too long
+     */
+    private boolean transmit(Destination destination, byte[] datagram) throws I2PSessionException {
+        Pacer<PacedFlow> p = service.pacer;
+        if(p==null) {
+            return transport.send(destination, datagram);
+        }
+        CompletableFuture<Boolean> sent = p.submit(new PacedFlow(this, destination), datagram);
+        try {
+            return sent.get(p.getMaxWaitMs(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // Skipped by the pacer when its turn comes
+            sent.cancel(false);
+            LOG.warning("I2P Message waited more than "+p.getMaxWaitMs()+" ms for bandwidth.");
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sent.cancel(false);
+            return false;
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof I2PSessionException) {
+                throw (I2PSessionException)e.getCause();
+            }
+            LOG.warning("Paced send failed: "+e.getCause().getLocalizedMessage());
             return false;
         }
     }
 
+    /**
+     * Sends a frame from the coalescer. Its Envelopes were reported sent when batched, so each
+     * one is failed as a direct send would be; if the session closed under us they go back to
+     * the service to be held or spooled across the restart instead.
+     */
+    private void sendFrame(Destination destination, byte[] frame, List<byte[]> payloads, List<Envelope> envelopes) {
+        String message;
+        try {
+            if(transmit(destination, new I2PDatagramMaker(i2pSession).makeI2PDatagram(frame))) {
+                for(byte[] payload : payloads) {
+                    service.metrics.recordSent(payload.length);
+                }
+                return;
+            }
+            message = "I2P batch sending failed.";
+        } catch (I2PSessionException e) {
+            message = "Exception while sending I2P batch: " + e.getLocalizedMessage();
+            if(restartIfClosed(e)) {
+                LOG.warning(message+" Resending "+envelopes.size()+" Envelope(s) after restart.");
+                service.metrics.recordSendFailure();
+                service.resendAsync(envelopes);
+                return;
+            }
+        }
+        LOG.warning(message);
+        for(Envelope envelope : envelopes) {
+            fail(envelope, SendResult.CODE_SEND_FAILED, message);
+        }
+    }
+
+    private SendResult fail(Envelope envelope, String code, String message) {
+        service.inflight.cancel(envelope.getId());
+        service.metrics.recordSendFailure();
+        PeerStore store = service.peerStore;
+        if(store!=null
+                && (SendResult.CODE_SEND_FAILED.equals(code) || String.valueOf(ExternalRoute.DESTINATION_PEER_NOT_FOUND).equals(code))) {
+            store.recordFailure(((ExternalRoute)envelope.getRoute()).getDestination().getDid().getPublicKey().getFingerprint());
+        }
+        envelope.getMessage().addErrorMessage(message);
+        return SendResult.failed(code, message);
+    }
+
     /**
      * Will be called only if you register via
      * setSessionListener() or addSessionListener().
@@ -393,7 +699,7 @@ class I2PServiceSession extends BaseClientSession implements I2PSessionMuxedList
     @Override
     public void messageAvailable(net.i2p.client.I2PSession session, int msgId, long size) {
         LOG.fine("Message received by I2P Service...");
-        long end = new Date().getTime();
+        long end = System.nanoTime();
         byte[] msg;
         try {
             msg = session.receiveMessage(msgId);
@@ -408,71 +714,49 @@ class I2PServiceSession extends BaseClientSession implements I2PSessionMuxedList
 //        if(sensor.getStatus()==SensorStatus.NETWORK_CONNECTED) {
 //            sensor.updateStatus(SensorStatus.NETWORK_VERIFIED);
 //        }
+        datagramReceived(msg, end);
+    }
+
+    /**
+     * Hands a signed datagram received by the transport to the inbound workers.
+     * @param end {@link System#nanoTime()} when received; used for round trip time
+     */
+    void datagramReceived(byte[] msg, long end) {
+        final I2PDatagramDissector d = new I2PDatagramDissector();
         try {
             LOG.fine("Loading I2P Datagram...");
-            I2PDatagramDissector d = new I2PDatagramDissector();
             d.loadI2PDatagram(msg);
             LOG.fine("I2P Datagram loaded.");
+        } catch (DataFormatException e) {
+            LOG.warning("Invalid datagram received: " + e.getLocalizedMessage());
+            return;
+        }
+        InboundWorkerPool inboundPool = service.inboundPool;
+        if(inboundPool==null) {
+            process(d, end);
+            return;
+        }
+        // Unverified sender only picks the worker lane; verification happens on the worker
+        Destination claimedSender = d.extractSender();
+        if(claimedSender==null) {
+            LOG.warning("Datagram received without sender.");
+            return;
+        }
+        if(!inboundPool.submit(claimedSender, () -> process(d, end))) {
+            LOG.fine("Inbound datagram dropped: size=" + msg.length);
+        }
+    }
+
+    /**
+     * Verifies the datagram then handles its payload.
+     */
+    private void process(I2PDatagramDissector d, long end) {
+        try {
+            long start = System.nanoTime();
             byte[] payload = d.getPayload();
-            String strPayload = new String(payload);
-            Map<String, Object> pm = (Map<String, Object>) JSONParser.parse(strPayload);
-            Envelope envelope = Envelope.documentFactory();
-            envelope.fromMap(pm);
-            LOG.fine("Getting sender as I2P Destination...");
-            Route r = envelope.getRoute();
-            if(!(r instanceof ExternalRoute)) {
-                // Received external message without an External Route. Ignoring.
-                return;
-            }
-            ExternalRoute er = (ExternalRoute)r;
-            NetworkPeer origination = er.getOrigination();
             Destination sender = d.getSender();
-            // Ensure origination provided correct address and fingerprint
-            String address = sender.toBase64();
-            origination.getDid().getPublicKey().setAddress(address);
-            String fingerprint = sender.getHash().toBase64();
-            origination.getDid().getPublicKey().setFingerprint(fingerprint);
-
-            // Update local cache
-            service.addPeer(origination);
-            if(envelope.markerPresent("NetOpRes")) {
-                List<NetworkPeer> recommendedPeers = (List<NetworkPeer>) envelope.getValue(NetworkPeer.class.getName());
-                if (recommendedPeers != null) {
-                    LOG.info(recommendedPeers.size() + " Known Peers Received.");
-                    service.addPeers(recommendedPeers);
-                }
-                Long start = service.inflightTimers.get(envelope.getId());
-                long diff = 0L;
-                if(start!=null) {
-                    diff = end-start;
-                    synchronized (service.inflightTimers) {
-                        service.inflightTimers.remove(envelope.getId());
-                    }
-                }
-                LOG.info("Received NetOpRes id: "+envelope.getId().substring(0,7)+"... from: "+fingerprint.substring(0,7) + (diff > 0L ? ("... in " + diff + " ms roundtrip; ") : "..." )+" total peers known: "+service.getNumberPeers());
-                // Update Network Manager
-                Envelope netMgrEnv = Envelope.documentFactory();
-                netMgrEnv.addNVP(NetworkPeer.class.getName(), recommendedPeers);
-                netMgrEnv.addRoute("ra.networkmanager.NetworkManagerService", "OPERATION_UPDATE_PEERS");
-                send(netMgrEnv);
-            } else if(envelope.markerPresent("NetOpReq")) {
-                List<NetworkPeer> recommendedPeers = (List<NetworkPeer>) envelope.getContent();
-                if (recommendedPeers != null) {
-                    LOG.info(recommendedPeers.size() + " Known Peers Received.");
-                    service.addPeers(recommendedPeers);
-                }
-                envelope.mark("NetOpRes");
-                envelope.addNVP(NetworkPeer.class.getName(), service.getPeers());
-                envelope.addExternalRoute(I2PService.class, I2PService.OPERATION_SEND, service.getNetworkState().localPeer, origination);
-                LOG.info("Received NetOpReq id: "+envelope.getId().substring(0,7)+"... from: "+fingerprint.substring(0,7)+"... total peers known: "+service.getNumberPeers());
-                send(envelope);
-            } else {
-                LOG.info("Received Envelope id: "+envelope.getId().substring(0,7)+"... from: "+fingerprint.substring(0,7)+"...");
-                if (!service.send(envelope)) {
-                    LOG.warning("Unsuccessful sending of Envelope to bus.");
-                }
-            }
-            LOG.fine("Content Received: \n\t"+strPayload);
+            service.metrics.recordVerify(System.nanoTime() - start);
+            receive(sender, payload, end);
         } catch (DataFormatException e) {
             LOG.warning("Invalid datagram received: " + e.getLocalizedMessage());
         } catch (I2PInvalidDatagramException e) {
@@ -482,6 +766,136 @@ class I2PServiceSession extends BaseClientSession implements I2PSessionMuxedList
         }
     }
 
+    /**
+     * Handles a frame read from an inbound stream. Streams authenticate the sender themselves.
+     */
+    private void receiveStreamed(Destination sender, byte[] payload) {
+        try {
+            receive(sender, payload, System.nanoTime());
+        } catch (DataFormatException e) {
+            LOG.warning("Invalid stream frame received: " + e.getLocalizedMessage());
+        } catch (Exception e) {
+            LOG.severe("Error processing stream frame: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Dispatches each payload of a batch on its own so one bad Envelope does not drop the rest.
+     */
+    private void receiveBatch(Destination sender, byte[] frame, long end) throws DataFormatException {
+        List<byte[]> payloads = Coalescer.unpack(frame);
+        LOG.fine("Batch of "+payloads.size()+" received.");
+        for(byte[] payload : payloads) {
+            if(Coalescer.isBatch(payload) || Fragmenter.isFragment(payload)) {
+                LOG.warning("Nested batch or fragment in batch ignored.");
+                continue;
+            }
+            try {
+                receive(sender, payload, end);
+            } catch (DataFormatException e) {
+                LOG.warning("Invalid Envelope in batch: " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * Reassembles, decompresses, decodes and dispatches a payload from a verified sender.
+     * @param sender verified sender
+     * @param payload datagram payload or stream frame
+     * @param end {@link System#nanoTime()} when received; used for round trip time
+     */
+    private void receive(Destination sender, byte[] payload, long end) throws DataFormatException {
+        if(Coalescer.isBatch(payload)) {
+            receiveBatch(sender, payload, end);
+            return;
+        }
+        service.metrics.recordBytesReceived(payload.length);
+        String fingerprint = sender.calculateHash().toBase64();
+        if(Fragmenter.isFragment(payload)) {
+            payload = service.reassembler.accept(fingerprint, payload);
+            if(payload==null) {
+                // Waiting on remaining fragments
+                return;
+            }
+        }
+        if(PayloadCompressor.isCompressed(payload)) {
+            payload = service.compressor.decompress(payload);
+        }
+        Envelope envelope = service.envelopeCodec.decode(payload, fingerprint);
+        service.metrics.recordReceived();
+        LOG.fine("Getting sender as I2P Destination...");
+        Route r = envelope.getRoute();
+        if(!(r instanceof ExternalRoute)) {
+            // Received external message without an External Route. Ignoring.
+            return;
+        }
+        ExternalRoute er = (ExternalRoute)r;
+        NetworkPeer origination = er.getOrigination();
+        service.destinationCache.put(sender);
+        // Ensure origination provided correct address and fingerprint
+        String address = sender.toBase64();
+        origination.getDid().getPublicKey().setAddress(address);
+        origination.getDid().getPublicKey().setFingerprint(fingerprint);
+
+        // Update local cache
+        service.addPeer(origination);
+        service.rememberPeer(origination, true);
+        if(envelope.markerPresent("NetOpRes")) {
+            List<NetworkPeer> recommendedPeers = (List<NetworkPeer>) envelope.getValue(NetworkPeer.class.getName());
+            if (recommendedPeers != null) {
+                LOG.info(recommendedPeers.size() + " Known Peers Received.");
+                service.addPeers(recommendedPeers);
+                for(NetworkPeer peer : recommendedPeers) {
+                    service.rememberPeer(peer, false);
+                }
+            }
+            long rtt = service.inflight.complete(envelope.getId(), end);
+            PeerStore store = service.peerStore;
+            if(rtt >= 0L && store!=null) {
+                store.recordRtt(fingerprint, rtt);
+            }
+            long diff = TimeUnit.NANOSECONDS.toMillis(rtt);
+            LOG.info("Received NetOpRes id: "+envelope.getId().substring(0,7)+"... from: "+fingerprint.substring(0,7) + (rtt >= 0L ? ("... in " + diff + " ms roundtrip; ") : "..." )+" total peers known: "+service.getNumberPeers());
+            // Update Network Manager
+            Envelope netMgrEnv = Envelope.documentFactory();
+            netMgrEnv.addNVP(NetworkPeer.class.getName(), recommendedPeers);
+            netMgrEnv.addRoute("ra.networkmanager.NetworkManagerService", "OPERATION_UPDATE_PEERS");
+            if(!service.send(netMgrEnv)) {
+                LOG.warning("Unsuccessful sending of received peers to Network Manager.");
+            }
+        } else if(envelope.markerPresent("NetOpReq")) {
+            List<NetworkPeer> recommendedPeers = (List<NetworkPeer>) envelope.getContent();
+            if (recommendedPeers != null) {
+                LOG.info(recommendedPeers.size() + " Known Peers Received.");
+                service.addPeers(recommendedPeers);
+                for(NetworkPeer peer : recommendedPeers) {
+                    service.rememberPeer(peer, false);
+                }
+            }
+            envelope.mark("NetOpRes");
+            envelope.addExternalRoute(I2PService.class, I2PService.OPERATION_SEND, service.getNetworkState().localPeer, origination);
+            if(service.peerExchange.isEnabled()) {
+                String digest = (String)envelope.getValue(PeerExchange.NVP_DIGEST);
+                // Not echoed back
+                envelope.addNVP(PeerExchange.NVP_DIGEST, null);
+                int usedBytes = envelope.toJSON().getBytes(StandardCharsets.UTF_8).length;
+                envelope.addNVP(NetworkPeer.class.getName(), service.peerExchange.select(service.getPeers(), digest, origination, usedBytes));
+            } else {
+                envelope.addNVP(NetworkPeer.class.getName(), service.getPeers());
+            }
+            LOG.info("Received NetOpReq id: "+envelope.getId().substring(0,7)+"... from: "+fingerprint.substring(0,7)+"... total peers known: "+service.getNumberPeers());
+            send(envelope);
+        } else {
+            LOG.info("Received Envelope id: "+envelope.getId().substring(0,7)+"... from: "+fingerprint.substring(0,7)+"...");
+            if (!service.send(envelope)) {
+                LOG.warning("Unsuccessful sending of Envelope to bus.");
+            }
+        }
+        if(LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Content Received: \n\t"+envelope.toJSON());
+        }
+    }
+
     /**
      * Instruct the client that the given session has received a message
      *
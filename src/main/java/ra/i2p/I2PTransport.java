@@ -0,0 +1,65 @@
+package ra.i2p;
+
+import net.i2p.client.I2PSession;
+import net.i2p.client.I2PSessionException;
+import net.i2p.client.streaming.I2PSocketManager;
+import net.i2p.data.Destination;
+
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Carries signed datagrams for an {@link I2PServiceSession}.
+ *
+ * The session does its own signing, fragmentation and decoding using {@link #getSession()};
+ * a transport only opens the destination's keys, moves datagram bytes and resolves addresses.
+ */
+interface I2PTransport {
+
+    String PROP_TRANSPORT = "ra.i2p.transport";
+    String I2CP = "i2cp";
+    String LOOPBACK = "loopback";
+
+    /**
+     * Loads the local destination from its private keys.
+     * @param privateKeys destination, private key and signing private key as written by I2PClient.createDestination
+     */
+    void open(InputStream privateKeys, Properties options) throws I2PSessionException;
+
+    boolean isOpen();
+
+    /**
+     * @return session holding the local destination and signing key; null until opened
+     */
+    I2PSession getSession();
+
+    /**
+     * @return socket manager for streams or null if the transport only carries datagrams
+     */
+    I2PSocketManager getSocketManager();
+
+    /**
+     * Connects and starts handing inbound datagrams to the session.
+     */
+    void connect(I2PServiceSession listener) throws I2PSessionException;
+
+    boolean isConnected();
+
+    /**
+     * @return true if accepted for delivery; like I2P, acceptance does not mean it arrived
+     */
+    boolean send(Destination to, byte[] datagram) throws I2PSessionException;
+
+    /**
+     * @param address destination hash or host name
+     * @return destination or null if not found
+     */
+    Destination lookup(String address) throws I2PSessionException;
+
+    void disconnect() throws I2PSessionException;
+
+    /**
+     * Releases the keys and any connections; the transport can not be reopened.
+     */
+    void close();
+}
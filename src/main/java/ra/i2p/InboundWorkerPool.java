@@ -0,0 +1,176 @@
+package ra.i2p;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded pool that verifies, decodes and dispatches inbound messages off the I2CP listener thread.
+ *
+ * Work is spread over lanes, each a queue drained by a single thread. All work for one sender
+ * goes to the same lane, so messages from a sender are processed in the order they arrived
+ * while different senders are processed in parallel. When a lane is full, new work for it is dropped.
+ */
+class InboundWorkerPool {
+
+    private static final Logger LOG = Logger.getLogger(InboundWorkerPool.class.getName());
+
+    public static final String PROP_WORKERS = "ra.i2p.inbound.workers";
+    public static final String PROP_QUEUE_CAPACITY = "ra.i2p.inbound.queueCapacity";
+
+    static final int DEFAULT_QUEUE_CAPACITY = 500;
+
+    private final List<LinkedBlockingQueue<Runnable>> lanes;
+    private final Thread[] workers;
+    private volatile boolean running = false;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    InboundWorkerPool(int workerCount, int queueCapacityPerWorker) {
+        this.lanes = new ArrayList<>(workerCount);
+        for(int i=0; i<workerCount; i++) {
+            lanes.add(new LinkedBlockingQueue<>(queueCapacityPerWorker));
+        }
+        this.workers = new Thread[workerCount];
+    }
+
+    /**
+     * @return pool from config or null if ra.i2p.inbound.workers is 0, meaning process on the listener thread
+     */
+    static InboundWorkerPool fromConfig(Properties config) {
+        int workerCount = Runtime.getRuntime().availableProcessors();
+        int capacity = DEFAULT_QUEUE_CAPACITY;
+        if(config.getProperty(PROP_WORKERS)!=null) {
+            workerCount = Integer.parseInt(config.getProperty(PROP_WORKERS));
+        }
+        if(config.getProperty(PROP_QUEUE_CAPACITY)!=null) {
+            capacity = Integer.parseInt(config.getProperty(PROP_QUEUE_CAPACITY));
+        }
+        if(workerCount <= 0) {
+            return null;
+        }
+        return new InboundWorkerPool(workerCount, capacity);
+    }
+
+    void start() {
+        running = true;
+        for(int i=0; i<workers.length; i++) {
+            final LinkedBlockingQueue<Runnable> lane = lanes.get(i);
+            workers[i] = new Thread(() -> drain(lane));
+            workers[i].setDaemon(true);
+            workers[i].setName("I2PService-InboundWorker-"+i);
+            workers[i].start();
+        }
+        LOG.info("Inbound worker pool started with "+workers.length+" workers.");
+    }
+
+    /**
+     * Queues work on the lane for the sender.
+     * @param senderKey stable key for the sender, e.g. its destination hash
+     * @return false if not running or the sender's lane is full and the work was dropped
+     */
+    boolean submit(Object senderKey, Runnable work) {
+        if(!running) {
+            return false;
+        }
+        LinkedBlockingQueue<Runnable> lane = lanes.get(Math.floorMod(senderKey.hashCode(), lanes.size()));
+        if(!lane.offer(work)) {
+            long count = dropped.incrementAndGet();
+            if(count==1 || count % 100==0) {
+                LOG.warning("Inbound worker lane full; "+count+" inbound message(s) dropped so far.");
+            }
+            return false;
+        }
+        accepted.incrementAndGet();
+        return true;
+    }
+
+    private void drain(LinkedBlockingQueue<Runnable> lane) {
+        while(running) {
+            Runnable work;
+            try {
+                work = lane.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if(work==null) {
+                continue;
+            }
+            try {
+                work.run();
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                LOG.log(Level.WARNING, "Exception processing inbound message: "+e.getLocalizedMessage(), e);
+            }
+            processed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stops the workers; queued work is discarded.
+     */
+    void shutdown() {
+        running = false;
+        for(Thread worker : workers) {
+            if(worker!=null) {
+                worker.interrupt();
+            }
+        }
+        int discarded = 0;
+        for(LinkedBlockingQueue<Runnable> lane : lanes) {
+            discarded += lane.size();
+            lane.clear();
+        }
+        LOG.info("Inbound worker pool stopped; "+discarded+" queued inbound message(s) discarded.");
+    }
+
+    /**
+     * @return total queued across all lanes
+     */
+    int depth() {
+        int depth = 0;
+        for(LinkedBlockingQueue<Runnable> lane : lanes) {
+            depth += lane.size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return queued in the fullest lane
+     */
+    int maxLaneDepth() {
+        int max = 0;
+        for(LinkedBlockingQueue<Runnable> lane : lanes) {
+            max = Math.max(max, lane.size());
+        }
+        return max;
+    }
+
+    int getWorkers() {
+        return workers.length;
+    }
+
+    long getAccepted() {
+        return accepted.get();
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    long getProcessed() {
+        return processed.get();
+    }
+
+    long getFailed() {
+        return failed.get();
+    }
+}
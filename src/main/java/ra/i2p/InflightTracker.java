@@ -0,0 +1,214 @@
+package ra.i2p;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+/**
+ * Tracks requests awaiting a response, expiring them at their deadline, and keeps
+ * a round trip time histogram per peer. All times come from {@link System#nanoTime()}.
+ */
+class InflightTracker {
+
+    private static final Logger LOG = Logger.getLogger(InflightTracker.class.getName());
+
+    public static final String PROP_TIMEOUT_SEC = "ra.i2p.inflight.timeoutSec";
+    public static final String PROP_MAX_PENDING = "ra.i2p.inflight.maxPending";
+    public static final String PROP_MAX_PEERS = "ra.i2p.rtt.maxPeers";
+
+    static final long DEFAULT_TIMEOUT_SEC = 60;
+    static final int DEFAULT_MAX_PENDING = 10000;
+    static final int DEFAULT_MAX_PEERS = 1000;
+
+    private static final class Inflight {
+        private final String peer;
+        private final long startNanos;
+        private final long deadlineNanos;
+
+        private Inflight(String peer, long startNanos, long deadlineNanos) {
+            this.peer = peer;
+            this.startNanos = startNanos;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    private final long timeoutNanos;
+    private final int maxPending;
+    private final Map<String, Inflight> inflight = new ConcurrentHashMap<>();
+    // Least recently used peer's histogram dropped first once over maxPeers
+    private final Map<String, RttHistogram> histograms;
+    private volatile BiConsumer<String, String> timeoutListener;
+
+    private final AtomicLong tracked = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong untracked = new AtomicLong();
+
+    InflightTracker() {
+        this(TimeUnit.SECONDS.toMillis(DEFAULT_TIMEOUT_SEC), DEFAULT_MAX_PENDING, DEFAULT_MAX_PEERS);
+    }
+
+    InflightTracker(long timeoutMs, int maxPending, final int maxPeers) {
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        this.maxPending = maxPending;
+        this.histograms = Collections.synchronizedMap(new LinkedHashMap<String, RttHistogram>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RttHistogram> eldest) {
+                return size() > maxPeers;
+            }
+        });
+    }
+
+    static InflightTracker fromConfig(Properties config) {
+        long timeoutSec = DEFAULT_TIMEOUT_SEC;
+        int maxPending = DEFAULT_MAX_PENDING;
+        int maxPeers = DEFAULT_MAX_PEERS;
+        if(config.getProperty(PROP_TIMEOUT_SEC)!=null) {
+            timeoutSec = Long.parseLong(config.getProperty(PROP_TIMEOUT_SEC));
+        }
+        if(config.getProperty(PROP_MAX_PENDING)!=null) {
+            maxPending = Integer.parseInt(config.getProperty(PROP_MAX_PENDING));
+        }
+        if(config.getProperty(PROP_MAX_PEERS)!=null) {
+            maxPeers = Integer.parseInt(config.getProperty(PROP_MAX_PEERS));
+        }
+        return new InflightTracker(TimeUnit.SECONDS.toMillis(timeoutSec), maxPending, maxPeers);
+    }
+
+    /**
+     * @param listener called with request id and peer for each request that expires unanswered
+     */
+    void setTimeoutListener(BiConsumer<String, String> listener) {
+        this.timeoutListener = listener;
+    }
+
+    /**
+     * Starts timing a request to the peer.
+     * @return false if too many requests are already in flight and this one is not tracked
+     */
+    boolean track(String id, String peer) {
+        if(inflight.size() >= maxPending) {
+            untracked.incrementAndGet();
+            return false;
+        }
+        long now = System.nanoTime();
+        inflight.put(id, new Inflight(peer, now, now + timeoutNanos));
+        tracked.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Stops timing a request and records its round trip time.
+     * @param receivedNanos {@link System#nanoTime()} when the response arrived
+     * @return round trip time in nanoseconds or -1 if the request was not in flight
+     */
+    long complete(String id, long receivedNanos) {
+        Inflight request = inflight.remove(id);
+        if(request==null) {
+            return -1L;
+        }
+        long rtt = receivedNanos - request.startNanos;
+        histogram(request.peer).record(rtt);
+        completed.incrementAndGet();
+        return rtt;
+    }
+
+    /**
+     * Stops tracking a request without recording it, e.g. when it could not be sent.
+     */
+    void cancel(String id) {
+        inflight.remove(id);
+    }
+
+    /**
+     * Removes requests past their deadline and notifies the timeout listener.
+     * @return number expired
+     */
+    int expire() {
+        return expire(System.nanoTime());
+    }
+
+    int expire(long now) {
+        int count = 0;
+        BiConsumer<String, String> listener = timeoutListener;
+        Iterator<Map.Entry<String, Inflight>> i = inflight.entrySet().iterator();
+        while(i.hasNext()) {
+            Map.Entry<String, Inflight> entry = i.next();
+            Inflight request = entry.getValue();
+            if(now - request.deadlineNanos < 0) {
+                continue;
+            }
+            // Only the remover reports it so a late response and expiry never both count
+            if(inflight.remove(entry.getKey(), request)) {
+                count++;
+                histogram(request.peer).recordTimeout();
+                if(listener!=null) {
+                    try {
+                        listener.accept(entry.getKey(), request.peer);
+                    } catch (Exception e) {
+                        LOG.warning("Inflight timeout listener failed: "+e.getLocalizedMessage());
+                    }
+                }
+            }
+        }
+        if(count > 0) {
+            timedOut.addAndGet(count);
+            LOG.fine(count+" in-flight request(s) timed out.");
+        }
+        return count;
+    }
+
+    private RttHistogram histogram(String peer) {
+        synchronized (histograms) {
+            RttHistogram histogram = histograms.get(peer);
+            if(histogram==null) {
+                histogram = new RttHistogram();
+                histograms.put(peer, histogram);
+            }
+            return histogram;
+        }
+    }
+
+    /**
+     * @return histogram for the peer or null if none recorded
+     */
+    RttHistogram getHistogram(String peer) {
+        return histograms.get(peer);
+    }
+
+    /**
+     * @return summary of each peer's round trip times in milliseconds keyed by peer
+     */
+    Map<String, Map<String, Object>> summary() {
+        Map<String, Map<String, Object>> summary = new HashMap<>();
+        synchronized (histograms) {
+            for(Map.Entry<String, RttHistogram> entry : histograms.entrySet()) {
+                summary.put(entry.getKey(), entry.getValue().toMap());
+            }
+        }
+        return summary;
+    }
+
+    int getPending() {
+        return inflight.size();
+    }
+
+    long getTracked() {
+        return tracked.get();
+    }
+
+    long getCompleted() {
+        return completed.get();
+    }
+
+    long getTimedOut() {
+        return timedOut.get();
+    }
+
+    long getUntracked() {
+        return untracked.get();
+    }
+}
@@ -0,0 +1,173 @@
+package ra.i2p;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * In-memory datagram network connecting endpoints in the same JVM, keyed by destination hash.
+ *
+ * Each sender's {@link Link} adds latency, jitter and random loss and serializes its datagrams
+ * at a fixed bandwidth, so load tests see queuing much like a real tunnel without any router.
+ * Delivery is best effort like I2P: lost and undeliverable datagrams are only counted.
+ */
+class LoopbackNetwork {
+
+    private static final Logger LOG = Logger.getLogger(LoopbackNetwork.class.getName());
+
+    public static final String PROP_LATENCY_MS = "ra.i2p.loopback.latencyMs";
+    public static final String PROP_JITTER_MS = "ra.i2p.loopback.jitterMs";
+    public static final String PROP_LOSS_RATE = "ra.i2p.loopback.lossRate";
+    public static final String PROP_BANDWIDTH_KBPS = "ra.i2p.loopback.bandwidthKBps";
+
+    private static final LoopbackNetwork SHARED = new LoopbackNetwork();
+
+    /**
+     * Receives datagrams sent to its key.
+     */
+    interface Endpoint {
+        void deliver(byte[] datagram);
+    }
+
+    /**
+     * Characteristics of a sender's outbound link.
+     */
+    static class Link {
+        private final long latencyNanos;
+        private final long jitterNanos;
+        private final double lossRate;
+        private final long bytesPerSecond;
+        // When the link finishes serializing what was already sent
+        private long nextFreeNanos;
+
+        /**
+         * @param bandwidthKBps 0 for unlimited
+         */
+        Link(long latencyMs, long jitterMs, double lossRate, long bandwidthKBps) {
+            this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMs);
+            this.jitterNanos = TimeUnit.MILLISECONDS.toNanos(jitterMs);
+            this.lossRate = lossRate;
+            this.bytesPerSecond = bandwidthKBps * 1024;
+        }
+
+        static Link fromConfig(Properties config) {
+            return new Link(
+                    Long.parseLong(config.getProperty(PROP_LATENCY_MS, "0")),
+                    Long.parseLong(config.getProperty(PROP_JITTER_MS, "0")),
+                    Double.parseDouble(config.getProperty(PROP_LOSS_RATE, "0")),
+                    Long.parseLong(config.getProperty(PROP_BANDWIDTH_KBPS, "0")));
+        }
+
+        boolean lose() {
+            return lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate;
+        }
+
+        /**
+         * Reserves the link for the datagram.
+         * @return nanoseconds from now until it arrives
+         */
+        synchronized long delayNanos(int bytes, long now) {
+            long arrival = now;
+            if(bytesPerSecond > 0) {
+                long start = Math.max(now, nextFreeNanos);
+                nextFreeNanos = start + bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+                arrival = nextFreeNanos;
+            }
+            arrival += latencyNanos;
+            if(jitterNanos > 0) {
+                arrival += ThreadLocalRandom.current().nextLong(jitterNanos + 1);
+            }
+            return arrival - now;
+        }
+    }
+
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "I2PService-Loopback");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private final AtomicLong undeliverable = new AtomicLong();
+
+    /**
+     * @return network shared by every loopback transport in the JVM
+     */
+    static LoopbackNetwork shared() {
+        return SHARED;
+    }
+
+    void register(String key, Endpoint endpoint) {
+        endpoints.put(key, endpoint);
+    }
+
+    void unregister(String key, Endpoint endpoint) {
+        endpoints.remove(key, endpoint);
+    }
+
+    Endpoint endpoint(String key) {
+        return endpoints.get(key);
+    }
+
+    /**
+     * Queues the datagram for delivery to the endpoint registered under the key.
+     */
+    void send(Link link, String to, final byte[] datagram) {
+        sent.incrementAndGet();
+        if(!endpoints.containsKey(to)) {
+            undeliverable.incrementAndGet();
+            return;
+        }
+        if(link.lose()) {
+            lost.incrementAndGet();
+            return;
+        }
+        long delay = link.delayNanos(datagram.length, System.nanoTime());
+        Runnable delivery = () -> deliver(to, datagram);
+        if(delay <= 0) {
+            scheduler.execute(delivery);
+        } else {
+            scheduler.schedule(delivery, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void deliver(String to, byte[] datagram) {
+        // May have left while in flight
+        Endpoint endpoint = endpoints.get(to);
+        if(endpoint==null) {
+            undeliverable.incrementAndGet();
+            return;
+        }
+        try {
+            endpoint.deliver(datagram);
+            delivered.incrementAndGet();
+        } catch (Exception e) {
+            LOG.warning("Loopback delivery failed: "+e.getLocalizedMessage());
+        }
+    }
+
+    long getSent() {
+        return sent.get();
+    }
+
+    long getDelivered() {
+        return delivered.get();
+    }
+
+    long getLost() {
+        return lost.get();
+    }
+
+    long getUndeliverable() {
+        return undeliverable.get();
+    }
+}
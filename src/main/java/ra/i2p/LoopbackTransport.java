@@ -0,0 +1,106 @@
+package ra.i2p;
+
+import net.i2p.client.I2PClientFactory;
+import net.i2p.client.I2PSession;
+import net.i2p.client.I2PSessionException;
+import net.i2p.client.streaming.I2PSocketManager;
+import net.i2p.data.Destination;
+
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Transport over a {@link LoopbackNetwork} for load testing without a router.
+ *
+ * The destination's keys are loaded into an I2P session that is never connected, so datagrams
+ * are signed and verified exactly as on the real network. Streams are not supported.
+ */
+class LoopbackTransport implements I2PTransport, LoopbackNetwork.Endpoint {
+
+    private final LoopbackNetwork network;
+    private final LoopbackNetwork.Link link;
+    private I2PSession session;
+    private String key;
+    private volatile I2PServiceSession listener;
+
+    LoopbackTransport(LoopbackNetwork network, LoopbackNetwork.Link link) {
+        this.network = network;
+        this.link = link;
+    }
+
+    @Override
+    public void open(InputStream privateKeys, Properties options) throws I2PSessionException {
+        session = I2PClientFactory.createClient().createSession(privateKeys, options);
+        key = session.getMyDestination().calculateHash().toBase64();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return session!=null;
+    }
+
+    @Override
+    public I2PSession getSession() {
+        return session;
+    }
+
+    @Override
+    public I2PSocketManager getSocketManager() {
+        return null;
+    }
+
+    @Override
+    public void connect(I2PServiceSession listener) throws I2PSessionException {
+        if(session==null) {
+            throw new I2PSessionException("Not open");
+        }
+        this.listener = listener;
+        network.register(key, this);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return listener!=null;
+    }
+
+    @Override
+    public boolean send(Destination to, byte[] datagram) throws I2PSessionException {
+        if(listener==null) {
+            // Same message as a closed I2CP session so callers react the same way
+            throw new I2PSessionException("Already closed");
+        }
+        network.send(link, to.calculateHash().toBase64(), datagram);
+        return true;
+    }
+
+    @Override
+    public Destination lookup(String address) {
+        LoopbackNetwork.Endpoint endpoint = network.endpoint(address);
+        if(endpoint instanceof LoopbackTransport) {
+            return ((LoopbackTransport)endpoint).session.getMyDestination();
+        }
+        return null;
+    }
+
+    @Override
+    public void deliver(byte[] datagram) {
+        I2PServiceSession l = listener;
+        if(l!=null) {
+            l.datagramReceived(datagram, System.nanoTime());
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        if(key!=null) {
+            network.unregister(key, this);
+        }
+        listener = null;
+    }
+
+    @Override
+    public void close() {
+        disconnect();
+        session = null;
+    }
+}
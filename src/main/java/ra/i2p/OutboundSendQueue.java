@@ -0,0 +1,401 @@
+package ra.i2p;
+
+import ra.common.Envelope;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Bounded outbound queue drained by a pool of sender threads so that callers of
+ * {@link I2PService#sendOutAsync(Envelope)} never block on serialization, destination lookups,
+ * datagram signing or I2CP.
+ *
+ * Each {@link Priority} has its own queue with its own capacity and {@link Backpressure} policy,
+ * set with ra.i2p.send.&lt;priority&gt;.capacity and .backpressure and defaulting to the shared settings.
+ * Workers take the next send by {@link Scheduling}: strictly highest priority first, or weighted
+ * round robin by ra.i2p.send.&lt;priority&gt;.weight so lower classes still get a share under load.
+ *
+ * Sends are not kept in order per destination: a higher priority overtakes queued lower ones
+ * and with more than one worker two sends to the same peer may go out in either order.
+ */
+class OutboundSendQueue {
+
+    private static final Logger LOG = Logger.getLogger(OutboundSendQueue.class.getName());
+
+    public static final String PROP_ASYNC = "ra.i2p.send.async";
+    public static final String PROP_CAPACITY = "ra.i2p.send.queueCapacity";
+    public static final String PROP_WORKERS = "ra.i2p.send.workers";
+    public static final String PROP_BACKPRESSURE = "ra.i2p.send.backpressure";
+    public static final String PROP_BLOCK_TIMEOUT_MS = "ra.i2p.send.blockTimeoutMs";
+    public static final String PROP_SCHEDULING = "ra.i2p.send.scheduling";
+
+    static final int DEFAULT_CAPACITY = 1000;
+    static final int DEFAULT_WORKERS = 2;
+    static final long DEFAULT_BLOCK_TIMEOUT_MS = 5000L;
+    // By Priority ordinal: CONTROL, INTERACTIVE, NORMAL, BULK
+    static final int[] DEFAULT_WEIGHTS = {8, 4, 2, 1};
+
+    /**
+     * What to do with a new send when the queue is full.
+     */
+    enum Backpressure {
+        /** Fail the new send immediately with {@link SendResult#CODE_QUEUE_FULL}. */
+        REJECT,
+        /** Block the caller until space frees up or the block timeout passes, then reject. */
+        BLOCK,
+        /** Fail the oldest queued send with {@link SendResult#CODE_DROPPED} to make room. */
+        DROP_OLDEST
+    }
+
+    /**
+     * Which queue workers take the next send from.
+     */
+    enum Scheduling {
+        /** Always the highest priority queue with anything waiting. */
+        STRICT,
+        /** Smooth weighted round robin over the queues with anything waiting. */
+        WEIGHTED
+    }
+
+    private static final class Lane {
+        private final LinkedBlockingDeque<PendingSend> queue;
+        private final Backpressure backpressure;
+        private final int weight;
+        private int credit;
+
+        private Lane(int capacity, Backpressure backpressure, int weight) {
+            this.queue = new LinkedBlockingDeque<>(capacity);
+            this.backpressure = backpressure;
+            this.weight = weight;
+        }
+    }
+
+    private static final class PendingSend {
+        private final Envelope envelope;
+        private final CompletableFuture<SendResult> result = new CompletableFuture<>();
+
+        private PendingSend(Envelope envelope) {
+            this.envelope = envelope;
+        }
+    }
+
+    private final Lane[] lanes = new Lane[Priority.values().length];
+    // One permit per queued send across all lanes
+    private final Semaphore available = new Semaphore(0);
+    private final Scheduling scheduling;
+    private final Map<String, Priority> byOperation;
+    private final Function<Envelope, SendResult> sender;
+    private final long blockTimeoutMs;
+    private final Thread[] workers;
+    private volatile boolean running = false;
+    // Set by shutdown before running is cleared so late submits hand off the same way
+    private volatile Function<Envelope, CompletableFuture<SendResult>> handoff = envelope -> null;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Every priority gets the same capacity and backpressure with the default weights.
+     */
+    OutboundSendQueue(int capacity, int workerCount, Backpressure backpressure, long blockTimeoutMs, Function<Envelope, SendResult> sender) {
+        this(uniform(capacity), uniform(backpressure), DEFAULT_WEIGHTS, Scheduling.WEIGHTED, workerCount, blockTimeoutMs,
+                Collections.<String, Priority>emptyMap(), sender);
+    }
+
+    /**
+     * @param capacities queue capacity by Priority ordinal
+     * @param backpressures policy when full by Priority ordinal
+     * @param weights share of sends under {@link Scheduling#WEIGHTED} by Priority ordinal
+     * @param byOperation priorities by route operation
+     */
+    OutboundSendQueue(int[] capacities, Backpressure[] backpressures, int[] weights, Scheduling scheduling, int workerCount,
+                      long blockTimeoutMs, Map<String, Priority> byOperation, Function<Envelope, SendResult> sender) {
+        for(int i=0; i<lanes.length; i++) {
+            lanes[i] = new Lane(capacities[i], backpressures[i], Math.max(1, weights[i]));
+        }
+        this.scheduling = scheduling;
+        this.byOperation = byOperation;
+        this.workers = new Thread[workerCount];
+        this.blockTimeoutMs = blockTimeoutMs;
+        this.sender = sender;
+    }
+
+    private static int[] uniform(int capacity) {
+        int[] capacities = new int[Priority.values().length];
+        Arrays.fill(capacities, capacity);
+        return capacities;
+    }
+
+    private static Backpressure[] uniform(Backpressure backpressure) {
+        Backpressure[] backpressures = new Backpressure[Priority.values().length];
+        Arrays.fill(backpressures, backpressure);
+        return backpressures;
+    }
+
+    static OutboundSendQueue fromConfig(Properties config, Function<Envelope, SendResult> sender) {
+        int capacity = DEFAULT_CAPACITY;
+        int workerCount = DEFAULT_WORKERS;
+        Backpressure backpressure = Backpressure.REJECT;
+        long blockTimeoutMs = DEFAULT_BLOCK_TIMEOUT_MS;
+        if(config.getProperty(PROP_CAPACITY)!=null) {
+            capacity = Integer.parseInt(config.getProperty(PROP_CAPACITY));
+        }
+        if(config.getProperty(PROP_WORKERS)!=null) {
+            workerCount = Integer.parseInt(config.getProperty(PROP_WORKERS));
+        }
+        if(config.getProperty(PROP_BACKPRESSURE)!=null) {
+            backpressure = Backpressure.valueOf(config.getProperty(PROP_BACKPRESSURE).toUpperCase());
+        }
+        if(config.getProperty(PROP_BLOCK_TIMEOUT_MS)!=null) {
+            blockTimeoutMs = Long.parseLong(config.getProperty(PROP_BLOCK_TIMEOUT_MS));
+        }
+        Scheduling scheduling = Scheduling.WEIGHTED;
+        if(config.getProperty(PROP_SCHEDULING)!=null) {
+            scheduling = Scheduling.valueOf(config.getProperty(PROP_SCHEDULING).toUpperCase());
+        }
+        int[] capacities = uniform(capacity);
+        Backpressure[] backpressures = uniform(backpressure);
+        int[] weights = DEFAULT_WEIGHTS.clone();
+        for(Priority priority : Priority.values()) {
+            String prefix = "ra.i2p.send." + priority.name().toLowerCase() + ".";
+            int i = priority.ordinal();
+            if(config.getProperty(prefix + "capacity")!=null) {
+                capacities[i] = Integer.parseInt(config.getProperty(prefix + "capacity"));
+            }
+            if(config.getProperty(prefix + "backpressure")!=null) {
+                backpressures[i] = Backpressure.valueOf(config.getProperty(prefix + "backpressure").toUpperCase());
+            }
+            if(config.getProperty(prefix + "weight")!=null) {
+                weights[i] = Integer.parseInt(config.getProperty(prefix + "weight"));
+            }
+        }
+        return new OutboundSendQueue(capacities, backpressures, weights, scheduling, workerCount, blockTimeoutMs, Priority.byOperation(config), sender);
+    }
+
+    void start() {
+        running = true;
+        for(int i=0; i<workers.length; i++) {
+            workers[i] = new Thread(this::drain);
+            workers[i].setDaemon(true);
+            workers[i].setName("I2PService-SendWorker-"+i);
+            workers[i].start();
+        }
+        LOG.info("Outbound send queue started with "+workers.length+" workers; scheduling="+scheduling.name());
+    }
+
+    /**
+     * Queues the Envelope for sending at its {@link Priority}.
+     * @return future completed with the send result; never completed exceptionally
+     */
+    CompletableFuture<SendResult> submit(Envelope envelope) {
+        return submit(envelope, Priority.of(envelope, byOperation));
+    }
+
+    CompletableFuture<SendResult> submit(Envelope envelope, Priority priority) {
+        Lane lane = lanes[priority.ordinal()];
+        LinkedBlockingDeque<PendingSend> queue = lane.queue;
+        PendingSend pending = new PendingSend(envelope);
+        if(!running) {
+            complete(pending, failure(envelope, SendResult.CODE_SHUTDOWN, "I2P outbound send queue not running."));
+            return pending.result;
+        }
+        submitted.incrementAndGet();
+        boolean queued;
+        switch (lane.backpressure) {
+            case BLOCK: {
+                try {
+                    queued = queue.offerLast(pending, blockTimeoutMs, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    queued = false;
+                }
+                break;
+            }
+            case DROP_OLDEST: {
+                while(!(queued = queue.offerLast(pending))) {
+                    PendingSend oldest = queue.pollFirst();
+                    if(oldest!=null) {
+                        // Its permit; a worker may already hold it and find nothing, which it tolerates
+                        available.tryAcquire();
+                        dropped.incrementAndGet();
+                        complete(oldest, failure(oldest.envelope, SendResult.CODE_DROPPED, "Dropped from full I2P outbound send queue."));
+                    }
+                }
+                break;
+            }
+            default: {
+                queued = queue.offerLast(pending);
+            }
+        }
+        if(queued) {
+            available.release();
+            // Shutdown may have drained the lanes while this offer was in flight or blocked
+            if(!running && queue.removeFirstOccurrence(pending)) {
+                available.tryAcquire();
+                handOff(pending);
+            }
+        } else {
+            rejected.incrementAndGet();
+            complete(pending, failure(envelope, SendResult.CODE_QUEUE_FULL, "I2P outbound "+priority.name()+" send queue full."));
+        }
+        return pending.result;
+    }
+
+    /**
+     * @return next send by the scheduling policy or null if none is waiting
+     */
+    private synchronized PendingSend next() {
+        if(scheduling==Scheduling.STRICT) {
+            for(Lane lane : lanes) {
+                PendingSend pending = lane.queue.pollFirst();
+                if(pending!=null) {
+                    return pending;
+                }
+            }
+            return null;
+        }
+        Lane best = null;
+        int total = 0;
+        for(Lane lane : lanes) {
+            if(lane.queue.isEmpty()) {
+                // No credit saved up while idle
+                lane.credit = 0;
+                continue;
+            }
+            lane.credit += lane.weight;
+            total += lane.weight;
+            if(best==null || lane.credit > best.credit) {
+                best = lane;
+            }
+        }
+        if(best==null) {
+            return null;
+        }
+        best.credit -= total;
+        return best.queue.pollFirst();
+    }
+
+    private void drain() {
+        while(running) {
+            PendingSend pending;
+            try {
+                if(!available.tryAcquire(1, TimeUnit.SECONDS)) {
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                continue;
+            }
+            pending = next();
+            if(pending==null) {
+                continue;
+            }
+            SendResult result;
+            try {
+                result = sender.apply(pending.envelope);
+            } catch (Exception e) {
+                LOG.warning("Exception while sending queued I2P message: "+e.getLocalizedMessage());
+                result = SendResult.failed(SendResult.CODE_SEND_FAILED, "Exception while sending I2P message: "+e.getLocalizedMessage());
+            }
+            complete(pending, result);
+        }
+    }
+
+    private void complete(PendingSend pending, SendResult result) {
+        if(result.isSuccess()) {
+            succeeded.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+        }
+        pending.result.complete(result);
+    }
+
+    private static SendResult failure(Envelope envelope, String code, String message) {
+        LOG.warning(message);
+        if(envelope!=null) {
+            envelope.getMessage().addErrorMessage(message);
+        }
+        return SendResult.failed(code, message);
+    }
+
+    /**
+     * Stops the workers and fails anything still queued with {@link SendResult#CODE_SHUTDOWN}.
+     */
+    void shutdown() {
+        shutdown(envelope -> null);
+    }
+
+    /**
+     * Stops the workers and hands anything still queued to handoff, e.g. the restart buffer,
+     * completing each send with the handed-off result. Sends handoff returns null for fail
+     * with {@link SendResult#CODE_SHUTDOWN}.
+     */
+    void shutdown(Function<Envelope, CompletableFuture<SendResult>> handoff) {
+        this.handoff = handoff;
+        running = false;
+        for(Thread worker : workers) {
+            if(worker!=null) {
+                worker.interrupt();
+            }
+        }
+        for(Lane lane : lanes) {
+            PendingSend pending;
+            while((pending = lane.queue.pollFirst())!=null) {
+                handOff(pending);
+            }
+        }
+        LOG.info("Outbound send queue stopped.");
+    }
+
+    private void handOff(PendingSend pending) {
+        CompletableFuture<SendResult> handedOff = handoff.apply(pending.envelope);
+        if(handedOff==null) {
+            complete(pending, failure(pending.envelope, SendResult.CODE_SHUTDOWN, "I2P outbound send queue shut down."));
+        } else {
+            handedOff.whenComplete((r, t) -> complete(pending, t==null ? r : SendResult.failed(SendResult.CODE_SEND_FAILED, t.getLocalizedMessage())));
+        }
+    }
+
+    int depth() {
+        int depth = 0;
+        for(Lane lane : lanes) {
+            depth += lane.queue.size();
+        }
+        return depth;
+    }
+
+    int depth(Priority priority) {
+        return lanes[priority.ordinal()].queue.size();
+    }
+
+    long getSubmitted() {
+        return submitted.get();
+    }
+
+    long getRejected() {
+        return rejected.get();
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    long getSucceeded() {
+        return succeeded.get();
+    }
+
+    long getFailed() {
+        return failed.get();
+    }
+}
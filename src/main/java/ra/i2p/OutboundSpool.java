@@ -0,0 +1,432 @@
+package ra.i2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Disk-backed journal of Envelopes waiting for the router, so they survive outages and
+ * process restarts.
+ *
+ * Envelopes are appended as [length][crc32][expiresAt][json] records to numbered segment files
+ * under i2pDir/spool. Once the active segment reaches segmentBytes a new one is started.
+ * {@link #replay(Predicate)} sends records oldest first, drops expired ones and deletes
+ * segments once fully sent. The position reached is kept in a cursor file, so a crash
+ * mid-replay resends at most the records after the cursor; delivery is at-least-once.
+ * How often appends are synced to disk trades latency for durability: ALWAYS syncs every
+ * append, INTERVAL at most every fsyncIntervalMs and NEVER leaves it to the OS.
+ */
+class OutboundSpool {
+
+    private static final Logger LOG = Logger.getLogger(OutboundSpool.class.getName());
+
+    public static final String PROP_ENABLED = "ra.i2p.spool.enabled";
+    public static final String PROP_FSYNC = "ra.i2p.spool.fsync";
+    public static final String PROP_FSYNC_INTERVAL_MS = "ra.i2p.spool.fsyncIntervalMs";
+    public static final String PROP_TTL_SEC = "ra.i2p.spool.ttlSec";
+    public static final String PROP_SEGMENT_BYTES = "ra.i2p.spool.segmentBytes";
+    public static final String PROP_MAX_BYTES = "ra.i2p.spool.maxBytes";
+
+    static final String DIR_NAME = "spool";
+    static final String CURSOR_FILE = "cursor";
+    static final long DEFAULT_FSYNC_INTERVAL_MS = 1000;
+    static final long DEFAULT_TTL_SEC = 60 * 60;
+    static final long DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+    static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+    private static final int RECORD_HEADER = 8;
+    private static final Pattern SEGMENT_NAME = Pattern.compile("spool-(\\d+)\\.log");
+
+    enum Fsync { ALWAYS, INTERVAL, NEVER }
+
+    private final File dir;
+    private final Fsync fsync;
+    private final long fsyncIntervalMs;
+    private final long ttlMs;
+    private final long segmentBytes;
+    private final long maxBytes;
+
+    // Segment files by sequence number, including the active one
+    private final TreeMap<Long, File> segments = new TreeMap<>();
+    private long activeSeq;
+    private FileChannel active;
+    private long activeSize;
+    private long totalBytes;
+    // Next record to replay
+    private long cursorSeq;
+    private long cursorOffset;
+    private long pending;
+    private boolean unsynced;
+    private long lastSyncMs;
+    private final Object replayLock = new Object();
+
+    private final AtomicLong spooled = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    OutboundSpool(File dir, Fsync fsync, long fsyncIntervalMs, long ttlMs, long segmentBytes, long maxBytes) {
+        this.dir = dir;
+        this.fsync = fsync;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+        this.ttlMs = ttlMs;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return spool in the directory's spool subdirectory or null if disabled
+     */
+    static OutboundSpool fromConfig(Properties config, File i2pDir) {
+        if(!"true".equals(config.getProperty(PROP_ENABLED))) {
+            return null;
+        }
+        Fsync fsync = Fsync.INTERVAL;
+        long fsyncIntervalMs = DEFAULT_FSYNC_INTERVAL_MS;
+        long ttlSec = DEFAULT_TTL_SEC;
+        long segmentBytes = DEFAULT_SEGMENT_BYTES;
+        long maxBytes = DEFAULT_MAX_BYTES;
+        if(config.getProperty(PROP_FSYNC)!=null) {
+            fsync = Fsync.valueOf(config.getProperty(PROP_FSYNC).toUpperCase());
+        }
+        if(config.getProperty(PROP_FSYNC_INTERVAL_MS)!=null) {
+            fsyncIntervalMs = Long.parseLong(config.getProperty(PROP_FSYNC_INTERVAL_MS));
+        }
+        if(config.getProperty(PROP_TTL_SEC)!=null) {
+            ttlSec = Long.parseLong(config.getProperty(PROP_TTL_SEC));
+        }
+        if(config.getProperty(PROP_SEGMENT_BYTES)!=null) {
+            segmentBytes = Long.parseLong(config.getProperty(PROP_SEGMENT_BYTES));
+        }
+        if(config.getProperty(PROP_MAX_BYTES)!=null) {
+            maxBytes = Long.parseLong(config.getProperty(PROP_MAX_BYTES));
+        }
+        return new OutboundSpool(new File(i2pDir, DIR_NAME), fsync, fsyncIntervalMs, TimeUnit.SECONDS.toMillis(ttlSec), segmentBytes, maxBytes);
+    }
+
+    /**
+     * Finds the segments left by the last run, truncating any torn tail, and starts a new active segment.
+     * @return number of records waiting to be replayed
+     */
+    synchronized long open() throws IOException {
+        if(!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create spool directory: "+dir.getAbsolutePath());
+        }
+        readCursor();
+        File[] files = dir.listFiles();
+        if(files!=null) {
+            for(File f : files) {
+                Matcher m = SEGMENT_NAME.matcher(f.getName());
+                if(m.matches()) {
+                    segments.put(Long.parseLong(m.group(1)), f);
+                }
+            }
+        }
+        for(Long seq : new ArrayList<>(segments.keySet())) {
+            File f = segments.get(seq);
+            if(seq < cursorSeq || f.length()==0) {
+                // Already replayed or never written to
+                Files.deleteIfExists(f.toPath());
+                segments.remove(seq);
+                continue;
+            }
+            long[] counted = new long[1];
+            long validEnd = scan(f, 0, (offset, end, expiresAt, json) -> {
+                if(seq > cursorSeq || offset >= cursorOffset) {
+                    counted[0]++;
+                }
+                return true;
+            });
+            if(validEnd < f.length()) {
+                LOG.warning("Spool segment "+f.getName()+" had "+(f.length()-validEnd)+" bytes of torn or corrupt records; truncated.");
+                try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+                    ch.truncate(validEnd);
+                }
+            }
+            pending += counted[0];
+            totalBytes += validEnd;
+        }
+        startSegment(segments.isEmpty() ? Math.max(cursorSeq, 0) : segments.lastKey() + 1);
+        if(pending > 0) {
+            LOG.info(pending+" spooled Envelope(s) waiting to be sent.");
+        }
+        return pending;
+    }
+
+    /**
+     * @return false if the spool is full or closed
+     */
+    synchronized boolean append(String json) throws IOException {
+        if(active==null) {
+            return false;
+        }
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + body.length;
+        if(totalBytes + RECORD_HEADER + length > maxBytes) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        if(activeSize > 0 && activeSize + RECORD_HEADER + length > segmentBytes) {
+            rotate();
+        }
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putLong(System.currentTimeMillis() + ttlMs);
+        record.put(body);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, length);
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER + length);
+        buf.putInt(length);
+        buf.putInt((int)crc.getValue());
+        buf.put(record.array());
+        buf.flip();
+        while(buf.hasRemaining()) {
+            active.write(buf);
+        }
+        activeSize += RECORD_HEADER + length;
+        totalBytes += RECORD_HEADER + length;
+        pending++;
+        spooled.incrementAndGet();
+        unsynced = true;
+        if(fsync==Fsync.ALWAYS || (fsync==Fsync.INTERVAL && System.currentTimeMillis() - lastSyncMs >= fsyncIntervalMs)) {
+            sync();
+        }
+        return true;
+    }
+
+    /**
+     * Syncs appends not yet on disk unless the policy is NEVER.
+     */
+    synchronized void sync() throws IOException {
+        if(active==null || !unsynced || fsync==Fsync.NEVER) {
+            return;
+        }
+        active.force(false);
+        unsynced = false;
+        lastSyncMs = System.currentTimeMillis();
+    }
+
+    /**
+     * Sends spooled records oldest first until one cannot be sent yet.
+     * Appends during replay go to a new segment and wait for the next replay.
+     * @param sender sends the Envelope JSON; false to stop and retry it on the next replay
+     * @return number of records sent
+     */
+    int replay(Predicate<String> sender) throws IOException {
+        synchronized (replayLock) {
+            List<Long> toRead;
+            synchronized (this) {
+                if(pending==0 || active==null) {
+                    return 0;
+                }
+                if(activeSize > 0) {
+                    rotate();
+                }
+                toRead = new ArrayList<>(segments.headMap(activeSeq).keySet());
+            }
+            int sent = 0;
+            long now = System.currentTimeMillis();
+            for(long seq : toRead) {
+                File f;
+                long from;
+                synchronized (this) {
+                    f = segments.get(seq);
+                    from = seq==cursorSeq ? cursorOffset : 0;
+                }
+                int[] count = new int[1];
+                boolean[] stopped = new boolean[1];
+                scan(f, from, (offset, end, expiresAt, json) -> {
+                    if(expiresAt < now) {
+                        expired.incrementAndGet();
+                    } else if(sender.test(json)) {
+                        replayed.incrementAndGet();
+                        count[0]++;
+                    } else {
+                        stopped[0] = true;
+                        return false;
+                    }
+                    synchronized (OutboundSpool.this) {
+                        pending--;
+                        cursorSeq = seq;
+                        cursorOffset = end;
+                    }
+                    return true;
+                });
+                sent += count[0];
+                if(stopped[0]) {
+                    writeCursor();
+                    return sent;
+                }
+                synchronized (this) {
+                    segments.remove(seq);
+                    totalBytes -= f.length();
+                    cursorSeq = seq + 1;
+                    cursorOffset = 0;
+                }
+                // Cursor first so a crash before the delete does not replay the segment again
+                writeCursor();
+                Files.deleteIfExists(f.toPath());
+            }
+            if(sent > 0) {
+                LOG.info(sent+" spooled Envelope(s) sent.");
+            }
+            return sent;
+        }
+    }
+
+    synchronized long pending() {
+        return pending;
+    }
+
+    synchronized boolean isEmpty() {
+        return pending==0;
+    }
+
+    long getFsyncIntervalMs() {
+        return fsyncIntervalMs;
+    }
+
+    long getSpooled() {
+        return spooled.get();
+    }
+
+    long getReplayed() {
+        return replayed.get();
+    }
+
+    long getExpired() {
+        return expired.get();
+    }
+
+    long getRejected() {
+        return rejected.get();
+    }
+
+    synchronized void close() {
+        if(active==null) {
+            return;
+        }
+        try {
+            sync();
+            active.close();
+            if(activeSize==0) {
+                Files.deleteIfExists(segments.remove(activeSeq).toPath());
+            }
+        } catch (IOException e) {
+            LOG.warning("Unable to close spool: "+e.getLocalizedMessage());
+        }
+        active = null;
+    }
+
+    private void rotate() throws IOException {
+        if(fsync!=Fsync.NEVER) {
+            active.force(false);
+        }
+        active.close();
+        startSegment(activeSeq + 1);
+    }
+
+    private void startSegment(long seq) throws IOException {
+        File f = new File(dir, String.format("spool-%016d.log", seq));
+        active = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        activeSeq = seq;
+        activeSize = 0;
+        unsynced = false;
+        segments.put(seq, f);
+    }
+
+    private interface RecordVisitor {
+        /**
+         * @return false to stop scanning
+         */
+        boolean visit(long offset, long end, long expiresAt, String json);
+    }
+
+    /**
+     * @return offset after the last valid record read
+     */
+    private static long scan(File f, long from, RecordVisitor visitor) throws IOException {
+        long validEnd = from;
+        try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            if(in.size() <= from) {
+                return validEnd;
+            }
+            MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY, from, in.size() - from);
+            CRC32 crc = new CRC32();
+            while(map.remaining() >= RECORD_HEADER) {
+                long offset = from + map.position();
+                int length = map.getInt();
+                int expectedCrc = map.getInt();
+                if(length < 8 || length > map.remaining()) {
+                    break;
+                }
+                byte[] record = new byte[length];
+                map.get(record);
+                crc.reset();
+                crc.update(record, 0, length);
+                if((int)crc.getValue()!=expectedCrc) {
+                    break;
+                }
+                ByteBuffer buf = ByteBuffer.wrap(record);
+                long expiresAt = buf.getLong();
+                String json = new String(record, 8, length - 8, StandardCharsets.UTF_8);
+                long end = from + map.position();
+                if(!visitor.visit(offset, end, expiresAt, json)) {
+                    break;
+                }
+                validEnd = end;
+            }
+        }
+        return validEnd;
+    }
+
+    private void readCursor() throws IOException {
+        File f = new File(dir, CURSOR_FILE);
+        if(!f.exists()) {
+            return;
+        }
+        byte[] b = Files.readAllBytes(f.toPath());
+        if(b.length!=16) {
+            LOG.warning("Ignoring spool cursor of "+b.length+" bytes; spooled Envelopes may be sent again.");
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(b);
+        cursorSeq = buf.getLong();
+        cursorOffset = buf.getLong();
+    }
+
+    private void writeCursor() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(16);
+        synchronized (this) {
+            buf.putLong(cursorSeq);
+            buf.putLong(cursorOffset);
+        }
+        buf.flip();
+        File tmp = new File(dir, CURSOR_FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while(buf.hasRemaining()) {
+                out.write(buf);
+            }
+            if(fsync!=Fsync.NEVER) {
+                out.force(true);
+            }
+        }
+        Files.move(tmp.toPath(), new File(dir, CURSOR_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
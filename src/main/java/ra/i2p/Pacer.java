@@ -0,0 +1,311 @@
+package ra.i2p;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Shapes outbound datagrams to stay under the router's outbound bandwidth limit and shares
+ * that bandwidth fairly between destinations.
+ *
+ * Datagrams wait in a queue per destination. One pacer thread serves the destinations in
+ * deficit round robin: each turn a destination may send up to quantumBytes more, so a chatty
+ * destination gets no more than its share while others wait. A token bucket refilled at
+ * share times the limit, holding up to burstMs of it, decides when the next datagram may go.
+ * The limit is read again on every refill so router bandwidth changes apply at once; a limit
+ * of 0 means unlimited.
+ */
+class Pacer<K> {
+
+    private static final Logger LOG = Logger.getLogger(Pacer.class.getName());
+
+    public static final String PROP_ENABLED = "ra.i2p.pacing.enabled";
+    public static final String PROP_SHARE = "ra.i2p.pacing.share";
+    public static final String PROP_BURST_MS = "ra.i2p.pacing.burstMs";
+    public static final String PROP_QUANTUM_BYTES = "ra.i2p.pacing.quantumBytes";
+    public static final String PROP_MAX_QUEUED_BYTES = "ra.i2p.pacing.maxQueuedBytes";
+    public static final String PROP_MAX_WAIT_MS = "ra.i2p.pacing.maxWaitMs";
+
+    static final double DEFAULT_SHARE = 0.8;
+    static final long DEFAULT_BURST_MS = 500;
+    static final long DEFAULT_MAX_QUEUED_BYTES = 1024 * 1024;
+    static final long DEFAULT_MAX_WAIT_MS = 30 * 1000;
+
+    /**
+     * Sends a datagram once the pacer lets it go.
+     */
+    interface Link<K> {
+        boolean send(K key, byte[] datagram) throws Exception;
+    }
+
+    private static final class Queued {
+        private final byte[] datagram;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        private Queued(byte[] datagram) {
+            this.datagram = datagram;
+        }
+    }
+
+    private final class Flow {
+        private final K key;
+        private final Deque<Queued> queue = new ArrayDeque<>();
+        private long queuedBytes;
+        private long deficit;
+        // In the active list or being served
+        private boolean scheduled;
+
+        private Flow(K key) {
+            this.key = key;
+        }
+    }
+
+    private final LongSupplier limitBytesPerSec;
+    private final double share;
+    private final long burstMs;
+    private final int quantumBytes;
+    private final long maxQueuedBytes;
+    private final long maxWaitMs;
+    private final Link<K> link;
+
+    private final Map<K, Flow> flows = new HashMap<>();
+    // Destinations with datagrams waiting, in round robin order
+    private final Deque<Flow> active = new ArrayDeque<>();
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+    private volatile boolean running = false;
+    private Thread thread;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong pacedNanos = new AtomicLong();
+
+    /**
+     * @param limitBytesPerSec current outbound limit in bytes per second; 0 for unlimited
+     * @param share fraction of the limit to use, leaving the rest for the router's own traffic
+     */
+    Pacer(LongSupplier limitBytesPerSec, double share, long burstMs, int quantumBytes, long maxQueuedBytes, long maxWaitMs, Link<K> link) {
+        this.limitBytesPerSec = limitBytesPerSec;
+        this.share = share;
+        this.burstMs = burstMs;
+        this.quantumBytes = quantumBytes;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.maxWaitMs = maxWaitMs;
+        this.link = link;
+    }
+
+    static boolean isEnabled(Properties config) {
+        return "true".equals(config.getProperty(PROP_ENABLED));
+    }
+
+    /**
+     * @param datagramBytes largest payload sent as one datagram; the default quantum
+     */
+    static <K> Pacer<K> fromConfig(Properties config, int datagramBytes, LongSupplier limitBytesPerSec, Link<K> link) {
+        double share = DEFAULT_SHARE;
+        long burstMs = DEFAULT_BURST_MS;
+        int quantumBytes = datagramBytes;
+        long maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+        long maxWaitMs = DEFAULT_MAX_WAIT_MS;
+        if(config.getProperty(PROP_SHARE)!=null) {
+            share = Double.parseDouble(config.getProperty(PROP_SHARE));
+        }
+        if(config.getProperty(PROP_BURST_MS)!=null) {
+            burstMs = Long.parseLong(config.getProperty(PROP_BURST_MS));
+        }
+        if(config.getProperty(PROP_QUANTUM_BYTES)!=null) {
+            quantumBytes = Integer.parseInt(config.getProperty(PROP_QUANTUM_BYTES));
+        }
+        if(config.getProperty(PROP_MAX_QUEUED_BYTES)!=null) {
+            maxQueuedBytes = Long.parseLong(config.getProperty(PROP_MAX_QUEUED_BYTES));
+        }
+        if(config.getProperty(PROP_MAX_WAIT_MS)!=null) {
+            maxWaitMs = Long.parseLong(config.getProperty(PROP_MAX_WAIT_MS));
+        }
+        return new Pacer<>(limitBytesPerSec, share, burstMs, quantumBytes, maxQueuedBytes, maxWaitMs, link);
+    }
+
+    void start() {
+        running = true;
+        thread = new Thread(this::run);
+        thread.setDaemon(true);
+        thread.setName("I2PService-Pacer");
+        thread.start();
+        LOG.info("Outbound pacing started at "+(int)(share*100)+"% of the router's outbound limit.");
+    }
+
+    /**
+     * Queues the datagram behind others to the same destination.
+     * @return future completed with whether the link sent it, exceptionally if the link threw,
+     * or false at once if the destination already has maxQueuedBytes waiting
+     */
+    CompletableFuture<Boolean> submit(K key, byte[] datagram) {
+        Queued queued = new Queued(datagram);
+        synchronized (this) {
+            if(!running) {
+                queued.result.complete(false);
+                return queued.result;
+            }
+            Flow flow = flows.computeIfAbsent(key, Flow::new);
+            if(flow.queuedBytes > 0 && flow.queuedBytes + datagram.length > maxQueuedBytes) {
+                rejected.incrementAndGet();
+                queued.result.complete(false);
+                return queued.result;
+            }
+            if(!flow.scheduled) {
+                flow.scheduled = true;
+                active.addLast(flow);
+            }
+            flow.queue.addLast(queued);
+            flow.queuedBytes += datagram.length;
+            notifyAll();
+        }
+        return queued.result;
+    }
+
+    /**
+     * @return how long a caller should wait for a submitted datagram before giving up on it
+     */
+    long getMaxWaitMs() {
+        return maxWaitMs;
+    }
+
+    private void run() {
+        while(running) {
+            Flow flow;
+            synchronized (this) {
+                while(running && active.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Checked by the loop
+                    }
+                }
+                if(!running) {
+                    return;
+                }
+                flow = active.pollFirst();
+                flow.deficit += quantumBytes;
+            }
+            while(running) {
+                Queued next;
+                synchronized (this) {
+                    next = flow.queue.peekFirst();
+                    if(next==null || next.datagram.length > flow.deficit) {
+                        if(next==null) {
+                            // Idle flows keep no credit
+                            flow.deficit = 0;
+                            flow.scheduled = false;
+                            flows.remove(flow.key);
+                        } else {
+                            active.addLast(flow);
+                        }
+                        break;
+                    }
+                    flow.queue.pollFirst();
+                    flow.queuedBytes -= next.datagram.length;
+                    flow.deficit -= next.datagram.length;
+                }
+                if(next.result.isDone()) {
+                    // Caller gave up waiting
+                    continue;
+                }
+                awaitTokens(next.datagram.length);
+                try {
+                    boolean ok = link.send(flow.key, next.datagram);
+                    if(ok) {
+                        sent.incrementAndGet();
+                        bytesSent.addAndGet(next.datagram.length);
+                    }
+                    next.result.complete(ok);
+                } catch (Exception e) {
+                    next.result.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until the bucket is not in debt then takes the bytes, so a datagram larger than
+     * the bucket still goes out and the debt delays the next one.
+     */
+    private void awaitTokens(int bytes) {
+        long start = System.nanoTime();
+        while(running) {
+            long rate = (long)(limitBytesPerSec.getAsLong() * share);
+            if(rate <= 0) {
+                break;
+            }
+            long now = System.nanoTime();
+            double capacity = Math.max(1.0, rate * burstMs / 1000.0);
+            tokens = Math.min(capacity, tokens + rate * ((now - lastRefillNanos) / 1e9));
+            lastRefillNanos = now;
+            if(tokens >= 0) {
+                tokens -= bytes;
+                break;
+            }
+            long waitNanos = (long)(-tokens / rate * 1e9);
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.max(waitNanos, TimeUnit.MILLISECONDS.toNanos(1)));
+            } catch (InterruptedException e) {
+                // Checked by the loop
+            }
+        }
+        pacedNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * Stops the pacer thread and completes anything still waiting with false.
+     */
+    void close() {
+        synchronized (this) {
+            running = false;
+            for(Flow flow : flows.values()) {
+                for(Queued queued : flow.queue) {
+                    queued.result.complete(false);
+                }
+            }
+            active.clear();
+            flows.clear();
+            notifyAll();
+        }
+        if(thread!=null) {
+            thread.interrupt();
+        }
+    }
+
+    synchronized long queuedBytes() {
+        long bytes = 0;
+        for(Flow flow : flows.values()) {
+            bytes += flow.queuedBytes;
+        }
+        return bytes;
+    }
+
+    long getSent() {
+        return sent.get();
+    }
+
+    long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return milliseconds spent waiting for bandwidth
+     */
+    long getPacedMs() {
+        return TimeUnit.NANOSECONDS.toMillis(pacedNanos.get());
+    }
+}
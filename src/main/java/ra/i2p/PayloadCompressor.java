@@ -0,0 +1,236 @@
+package ra.i2p;
+
+import net.i2p.data.DataFormatException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates encoded Envelopes above a size threshold before they go out as datagrams.
+ *
+ * Compressed layout (big-endian):
+ * <pre>
+ * [0xC1][dictionary id: 1][original length: 4][deflate data]
+ * </pre>
+ * A preset dictionary of strings common to Envelope and NetworkPeer JSON gives small
+ * payloads something to reference. Inflation is capped at the declared length, which must
+ * not exceed the configured maximum, so a small frame can not expand into unbounded memory.
+ */
+class PayloadCompressor {
+
+    public static final String PROP_ENABLED = "ra.i2p.compress.enabled";
+    public static final String PROP_THRESHOLD = "ra.i2p.compress.threshold";
+    public static final String PROP_LEVEL = "ra.i2p.compress.level";
+    public static final String PROP_MAX_DECOMPRESSED_BYTES = "ra.i2p.compress.maxDecompressedBytes";
+
+    static final int HEADER_SIZE = 1 + 1 + 4;
+    static final int DEFAULT_THRESHOLD = 512;
+    static final int DEFAULT_MAX_DECOMPRESSED_BYTES = FragmentReassembler.DEFAULT_MAX_MESSAGE_BYTES;
+
+    static final byte NO_DICTIONARY = 0;
+    static final byte ENVELOPE_DICTIONARY = 1;
+
+    /**
+     * Strings seen in most JSON Envelopes and NetworkPeers. Deflate references closer
+     * matches more cheaply, so the most frequent strings are at the end.
+     * Never change this once released; add a new dictionary id instead.
+     */
+    private static final byte[] ENVELOPE_DICTIONARY_BYTES = (
+            "\"description\":\"DID for I2PSensorSession\",\"didType\":\"NODE\",\"status\":\"ACTIVE\","
+            + "\"authenticated\":true,\"verified\":true,\"identityKey\":true,\"base64Encoded\":true,"
+            + "\"errorMessages\":[],\"headers\":{},\"content\":null,\"commandPath\":\"\","
+            + "\"ra.networkmanager.NetworkManagerService\",\"OPERATION_UPDATE_PEERS\","
+            + "\"ra.i2p.I2PService\",\"SEND\",\"markers\":[\"NetOpReq\"],\"markers\":[\"NetOpRes\"],"
+            + "\"dynamicRoutingSlip\":{\"routes\":[],\"route\":{\"service\":\"ra.i2p.I2PService\",\"operation\":\"SEND\","
+            + "\"origination\":{\"network\":\"I2P\",\"destination\":{\"network\":\"I2P\","
+            + "\"ra.common.network.NetworkPeer\":[{\"network\":\"I2P\",\"id\":\""
+            + "\"did\":{\"username\":\"anon\",\"publicKey\":{\"alias\":\"anon\",\"type\":\"EC\","
+            + "\"address\":\"\",\"fingerprint\":\"\"}},\"id\":\"\",\"network\":\"I2P\""
+        ).getBytes(StandardCharsets.UTF_8);
+
+    private final boolean enabled;
+    private final int threshold;
+    private final int level;
+    private final int maxDecompressedBytes;
+
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong bytesBeforeCompression = new AtomicLong();
+    private final AtomicLong bytesAfterCompression = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong decompressed = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    PayloadCompressor() {
+        this(false, DEFAULT_THRESHOLD, Deflater.DEFAULT_COMPRESSION, DEFAULT_MAX_DECOMPRESSED_BYTES);
+    }
+
+    PayloadCompressor(boolean enabled, int threshold, final int level, int maxDecompressedBytes) {
+        this.enabled = enabled;
+        this.threshold = threshold;
+        this.level = level;
+        this.maxDecompressedBytes = maxDecompressedBytes;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+    }
+
+    static PayloadCompressor fromConfig(Properties config) {
+        boolean enabled = "true".equals(config.getProperty(PROP_ENABLED));
+        int threshold = DEFAULT_THRESHOLD;
+        int level = Deflater.DEFAULT_COMPRESSION;
+        int maxDecompressedBytes = DEFAULT_MAX_DECOMPRESSED_BYTES;
+        if(config.getProperty(PROP_THRESHOLD)!=null) {
+            threshold = Integer.parseInt(config.getProperty(PROP_THRESHOLD));
+        }
+        if(config.getProperty(PROP_LEVEL)!=null) {
+            level = Integer.parseInt(config.getProperty(PROP_LEVEL));
+        }
+        if(config.getProperty(PROP_MAX_DECOMPRESSED_BYTES)!=null) {
+            maxDecompressedBytes = Integer.parseInt(config.getProperty(PROP_MAX_DECOMPRESSED_BYTES));
+        } else if(config.getProperty(FragmentReassembler.PROP_MAX_MESSAGE_BYTES)!=null) {
+            maxDecompressedBytes = Integer.parseInt(config.getProperty(FragmentReassembler.PROP_MAX_MESSAGE_BYTES));
+        }
+        return new PayloadCompressor(enabled, threshold, level, maxDecompressedBytes);
+    }
+
+    /**
+     * Compresses the payload when enabled, above the threshold, and when it actually gets smaller.
+     * @return compressed frame or the payload unchanged
+     */
+    byte[] compress(byte[] payload) {
+        if(!enabled || payload.length < threshold) {
+            return payload;
+        }
+        long start = System.nanoTime();
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setDictionary(ENVELOPE_DICTIONARY_BYTES);
+        deflater.setInput(payload);
+        deflater.finish();
+        // Not worth sending compressed unless smaller
+        byte[] frame = new byte[payload.length];
+        int len = HEADER_SIZE;
+        while(!deflater.finished() && len < frame.length) {
+            len += deflater.deflate(frame, len, frame.length - len);
+        }
+        if(!deflater.finished()) {
+            skipped.incrementAndGet();
+            return payload;
+        }
+        frame[0] = WireFormat.COMPRESSED;
+        frame[1] = ENVELOPE_DICTIONARY;
+        WireFormat.writeInt(frame, 2, payload.length);
+        byte[] result = new byte[len];
+        System.arraycopy(frame, 0, result, 0, len);
+        compressNanos.addAndGet(System.nanoTime() - start);
+        compressed.incrementAndGet();
+        bytesBeforeCompression.addAndGet(payload.length);
+        bytesAfterCompression.addAndGet(len);
+        return result;
+    }
+
+    static boolean isCompressed(byte[] payload) {
+        return WireFormat.frameType(payload)==WireFormat.COMPRESSED && payload.length > HEADER_SIZE;
+    }
+
+    /**
+     * Inflates a compressed frame. Compressed frames are always accepted even when
+     * compression of outbound payloads is disabled.
+     * @throws DataFormatException if the frame is malformed or would inflate beyond its declared or maximum size
+     */
+    byte[] decompress(byte[] frame) throws DataFormatException {
+        if(!isCompressed(frame)) {
+            throw new DataFormatException("Not a compressed payload.");
+        }
+        byte dictionary = frame[1];
+        int originalLength = WireFormat.readInt(frame, 2);
+        if(originalLength <= 0 || originalLength > maxDecompressedBytes) {
+            rejected.incrementAndGet();
+            throw new DataFormatException("Compressed payload declares "+originalLength+" bytes; maximum is "+maxDecompressedBytes);
+        }
+        if(dictionary!=NO_DICTIONARY && dictionary!=ENVELOPE_DICTIONARY) {
+            rejected.incrementAndGet();
+            throw new DataFormatException("Unknown compression dictionary: "+dictionary);
+        }
+        long start = System.nanoTime();
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(frame, HEADER_SIZE, frame.length - HEADER_SIZE);
+        byte[] payload = new byte[originalLength];
+        int len = 0;
+        try {
+            while(len < originalLength && !inflater.finished()) {
+                int n = inflater.inflate(payload, len, originalLength - len);
+                if(n==0) {
+                    if(inflater.needsDictionary()) {
+                        inflater.setDictionary(ENVELOPE_DICTIONARY_BYTES);
+                    } else if(inflater.needsInput()) {
+                        break;
+                    }
+                }
+                len += n;
+            }
+            if(len!=originalLength || !inflater.finished()) {
+                // Either truncated or there is more data than declared
+                rejected.incrementAndGet();
+                throw new DataFormatException("Compressed payload does not inflate to its declared length of "+originalLength+" bytes.");
+            }
+        } catch (java.util.zip.DataFormatException e) {
+            rejected.incrementAndGet();
+            throw new DataFormatException("Invalid compressed payload: "+e.getLocalizedMessage());
+        }
+        decompressNanos.addAndGet(System.nanoTime() - start);
+        decompressed.incrementAndGet();
+        return payload;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    long getCompressed() {
+        return compressed.get();
+    }
+
+    long getSkipped() {
+        return skipped.get();
+    }
+
+    long getDecompressed() {
+        return decompressed.get();
+    }
+
+    long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return compressed bytes divided by original bytes across all compressed payloads; 1.0 if none
+     */
+    double getCompressionRatio() {
+        long before = bytesBeforeCompression.get();
+        return before == 0 ? 1.0 : (double)bytesAfterCompression.get() / before;
+    }
+
+    /**
+     * @return average compression time in microseconds
+     */
+    double getAverageCompressMicros() {
+        long count = compressed.get();
+        return count == 0 ? 0.0 : compressNanos.get() / 1000.0 / count;
+    }
+
+    /**
+     * @return average decompression time in microseconds
+     */
+    double getAverageDecompressMicros() {
+        long count = decompressed.get();
+        return count == 0 ? 0.0 : decompressNanos.get() / 1000.0 / count;
+    }
+}
@@ -0,0 +1,119 @@
+package ra.i2p;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+/**
+ * Bloom filter summarizing the peer entries a node already knows, sent with a peer request
+ * so the response only carries entries missing from it.
+ *
+ * Each digest is salted with its own seed so a false positive hides an entry for one
+ * exchange only, not every time. Serialized as [version][hashes][seed 4][bits].
+ */
+final class PeerDigest {
+
+    private static final byte VERSION = 1;
+    private static final int HEADER = 6;
+
+    private final int hashes;
+    private final int seed;
+    private final long[] bits;
+    private final int numBits;
+
+    private PeerDigest(int hashes, int seed, long[] bits, int numBits) {
+        this.hashes = hashes;
+        this.seed = seed;
+        this.bits = bits;
+        this.numBits = numBits;
+    }
+
+    /**
+     * @param expected number of entries to be added
+     * @param falsePositiveRate target rate at the expected size, e.g. 0.01
+     * @param maxBytes cap on the bit array; large peer sets get a higher false positive rate instead
+     */
+    static PeerDigest create(int expected, double falsePositiveRate, int maxBytes, int seed) {
+        int n = Math.max(1, expected);
+        double ln2 = Math.log(2);
+        long optimalBits = (long)Math.ceil(-n * Math.log(falsePositiveRate) / (ln2 * ln2));
+        int numBits = (int)Math.max(64, Math.min(optimalBits, maxBytes * 8L));
+        numBits = (numBits + 63) & ~63;
+        int hashes = (int)Math.max(1, Math.min(16, Math.round((double)numBits / n * ln2)));
+        return new PeerDigest(hashes, seed, new long[numBits / 64], numBits);
+    }
+
+    void add(String key) {
+        long h = hash(key);
+        int h1 = (int)h;
+        int h2 = (int)(h >>> 32);
+        for(int i=0; i<hashes; i++) {
+            int bit = Math.floorMod(h1 + i * h2, numBits);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(String key) {
+        long h = hash(key);
+        int h1 = (int)h;
+        int h2 = (int)(h >>> 32);
+        for(int i=0; i<hashes; i++) {
+            int bit = Math.floorMod(h1 + i * h2, numBits);
+            if((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long hash(String key) {
+        // FNV-1a finished with the murmur3 mixer; seeded per digest
+        long h = 0xcbf29ce484222325L ^ (seed * 0x9E3779B97F4A7C15L);
+        for(int i=0; i<key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    int sizeBytes() {
+        return HEADER + bits.length * 8;
+    }
+
+    String toBase64() {
+        ByteBuffer buf = ByteBuffer.allocate(sizeBytes());
+        buf.put(VERSION);
+        buf.put((byte)hashes);
+        buf.putInt(seed);
+        for(long word : bits) {
+            buf.putLong(word);
+        }
+        return Base64.getEncoder().encodeToString(buf.array());
+    }
+
+    /**
+     * @throws IllegalArgumentException if not a digest this version understands
+     */
+    static PeerDigest fromBase64(String encoded) {
+        byte[] data = Base64.getDecoder().decode(encoded);
+        if(data.length < HEADER + 8 || data[0] != VERSION || (data.length - HEADER) % 8 != 0) {
+            throw new IllegalArgumentException("Unsupported peer digest.");
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        buf.get();
+        int hashes = buf.get();
+        if(hashes < 1 || hashes > 16) {
+            throw new IllegalArgumentException("Invalid peer digest hash count: "+hashes);
+        }
+        int seed = buf.getInt();
+        long[] bits = new long[(data.length - HEADER) / 8];
+        for(int i=0; i<bits.length; i++) {
+            bits[i] = buf.getLong();
+        }
+        return new PeerDigest(hashes, seed, bits, bits.length * 64);
+    }
+}
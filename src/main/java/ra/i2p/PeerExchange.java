@@ -0,0 +1,142 @@
+package ra.i2p;
+
+import ra.common.network.NetworkPeer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+/**
+ * Incremental peer exchange for NetOpReq/NetOpRes.
+ *
+ * Requests carry a {@link PeerDigest} of the requester's known peer entries; responses carry
+ * only entries missing from it, capped so the response fits one datagram. An entry is versioned
+ * by its fingerprint and address, so a peer whose address changed is sent again.
+ * Requests without a digest, e.g. from older nodes, get a capped sample of all peers.
+ */
+class PeerExchange {
+
+    private static final Logger LOG = Logger.getLogger(PeerExchange.class.getName());
+
+    public static final String PROP_ENABLED = "ra.i2p.peerExchange.enabled";
+    public static final String PROP_FALSE_POSITIVE_RATE = "ra.i2p.peerExchange.falsePositiveRate";
+    public static final String PROP_MAX_DIGEST_BYTES = "ra.i2p.peerExchange.maxDigestBytes";
+    public static final String PROP_MAX_RESPONSE_BYTES = "ra.i2p.peerExchange.maxResponseBytes";
+
+    public static final String NVP_DIGEST = "ra.i2p.peerDigest";
+
+    static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+    static final int DEFAULT_MAX_DIGEST_BYTES = 4096;
+
+    private final boolean enabled;
+    private final double falsePositiveRate;
+    private final int maxDigestBytes;
+    private final int maxResponseBytes;
+
+    PeerExchange(boolean enabled, double falsePositiveRate, int maxDigestBytes, int maxResponseBytes) {
+        this.enabled = enabled;
+        this.falsePositiveRate = falsePositiveRate;
+        this.maxDigestBytes = maxDigestBytes;
+        this.maxResponseBytes = maxResponseBytes;
+    }
+
+    /**
+     * @param datagramBytes largest payload sent as one datagram; the default response cap
+     */
+    static PeerExchange fromConfig(Properties config, int datagramBytes) {
+        boolean enabled = !"false".equals(config.getProperty(PROP_ENABLED));
+        double falsePositiveRate = DEFAULT_FALSE_POSITIVE_RATE;
+        int maxDigestBytes = DEFAULT_MAX_DIGEST_BYTES;
+        int maxResponseBytes = datagramBytes;
+        if(config.getProperty(PROP_FALSE_POSITIVE_RATE)!=null) {
+            falsePositiveRate = Double.parseDouble(config.getProperty(PROP_FALSE_POSITIVE_RATE));
+        }
+        if(config.getProperty(PROP_MAX_DIGEST_BYTES)!=null) {
+            maxDigestBytes = Integer.parseInt(config.getProperty(PROP_MAX_DIGEST_BYTES));
+        }
+        if(config.getProperty(PROP_MAX_RESPONSE_BYTES)!=null) {
+            maxResponseBytes = Integer.parseInt(config.getProperty(PROP_MAX_RESPONSE_BYTES));
+        }
+        return new PeerExchange(enabled, falsePositiveRate, maxDigestBytes, maxResponseBytes);
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return version key of the peer's entry or null if it has no address yet
+     */
+    static String entryKey(NetworkPeer peer) {
+        if(peer==null || peer.getDid()==null || peer.getDid().getPublicKey()==null) {
+            return null;
+        }
+        String fingerprint = peer.getDid().getPublicKey().getFingerprint();
+        String address = peer.getDid().getPublicKey().getAddress();
+        if(fingerprint==null || address==null) {
+            return null;
+        }
+        return fingerprint + "|" + address;
+    }
+
+    /**
+     * @return digest of the known peers to send with a request
+     */
+    String digest(List<NetworkPeer> known) {
+        PeerDigest digest = PeerDigest.create(known.size(), falsePositiveRate, maxDigestBytes, ThreadLocalRandom.current().nextInt());
+        for(NetworkPeer peer : known) {
+            String key = entryKey(peer);
+            if(key!=null) {
+                digest.add(key);
+            }
+        }
+        return digest.toBase64();
+    }
+
+    /**
+     * Picks the peers to answer a request with.
+     * @param known peers known locally
+     * @param encodedDigest requester's digest or null if it sent none
+     * @param requester requester's own peer; never sent back
+     * @param usedBytes bytes of the response already taken by the rest of the envelope
+     */
+    List<NetworkPeer> select(List<NetworkPeer> known, String encodedDigest, NetworkPeer requester, int usedBytes) {
+        PeerDigest digest = null;
+        if(encodedDigest!=null) {
+            try {
+                digest = PeerDigest.fromBase64(encodedDigest);
+            } catch (IllegalArgumentException e) {
+                LOG.fine("Ignoring peer digest: "+e.getLocalizedMessage());
+            }
+        }
+        String requesterKey = entryKey(requester);
+        List<NetworkPeer> candidates = new ArrayList<>(known.size());
+        for(NetworkPeer peer : known) {
+            String key = entryKey(peer);
+            if(key==null || key.equals(requesterKey) || (digest!=null && digest.mightContain(key))) {
+                continue;
+            }
+            candidates.add(peer);
+        }
+        // Different peers make the cut each time when there are more than fit
+        Collections.shuffle(candidates, ThreadLocalRandom.current());
+        int budget = maxResponseBytes - usedBytes;
+        List<NetworkPeer> selected = new ArrayList<>();
+        for(NetworkPeer peer : candidates) {
+            int size = peer.toJSON().getBytes(StandardCharsets.UTF_8).length + 1;
+            if(size > budget) {
+                continue;
+            }
+            selected.add(peer);
+            budget -= size;
+        }
+        if(selected.size() < candidates.size()) {
+            LOG.fine("Peer response capped at "+selected.size()+" of "+candidates.size()+" missing peers.");
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,399 @@
+package ra.i2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Known peers with last seen time, round trip time and reliability, persisted across restarts.
+ *
+ * The file is an append-only log of [length][crc32][entry] records; the newest record for a
+ * fingerprint wins. Loading maps the file and stops at the first torn or corrupt record,
+ * truncating it, so a crash mid-append loses at most the unflushed updates. Changes are
+ * buffered in memory and appended by {@link #flush()}; {@link #compact()} rewrites the log
+ * with only live entries and atomically replaces it.
+ */
+class PeerStore {
+
+    private static final Logger LOG = Logger.getLogger(PeerStore.class.getName());
+
+    public static final String PROP_ENABLED = "ra.i2p.peerStore.enabled";
+    public static final String PROP_MAX_PEERS = "ra.i2p.peerStore.maxPeers";
+    public static final String PROP_MAX_AGE_DAYS = "ra.i2p.peerStore.maxAgeDays";
+
+    static final String FILE_NAME = "peers.db";
+    static final int DEFAULT_MAX_PEERS = 5000;
+    static final long DEFAULT_MAX_AGE_DAYS = 30;
+
+    private static final byte VERSION = 1;
+    private static final int RECORD_HEADER = 8;
+    private static final int MAX_RECORD = 1024 * 1024;
+    // Compact once the log holds this many times more records than live entries
+    private static final int COMPACT_RATIO = 3;
+    private static final int COMPACT_MIN_RECORDS = 1000;
+    // How often to look for entries past maxAge when nothing else triggers a compaction
+    private static final long EXPIRY_CHECK_MS = TimeUnit.HOURS.toMillis(1);
+
+    static final class Entry {
+        final String fingerprint;
+        private String address;
+        private String json;
+        // Last received from directly; 0 if only learned from other peers
+        private long lastSeenMs;
+        // Last learned from another peer
+        private long learnedMs;
+        private long rttMicros;
+        private int responses;
+        private int failures;
+
+        private Entry(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        synchronized String getJson() {
+            return json;
+        }
+
+        synchronized long getLastSeenMs() {
+            return lastSeenMs;
+        }
+
+        synchronized long getRttMicros() {
+            return rttMicros;
+        }
+
+        synchronized int getResponses() {
+            return responses;
+        }
+
+        synchronized int getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return estimated probability the peer answers; 0.5 with no history
+         */
+        synchronized double reliability() {
+            return (responses + 1.0) / (responses + failures + 2.0);
+        }
+
+        synchronized long lastActivityMs() {
+            return Math.max(lastSeenMs, learnedMs);
+        }
+
+        private synchronized byte[] encode() {
+            byte[] fp = fingerprint.getBytes(StandardCharsets.UTF_8);
+            byte[] addr = address==null ? new byte[0] : address.getBytes(StandardCharsets.UTF_8);
+            byte[] js = json==null ? new byte[0] : json.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer buf = ByteBuffer.allocate(1 + 4 + fp.length + 4 + addr.length + 8 + 8 + 8 + 4 + 4 + 4 + js.length);
+            buf.put(VERSION);
+            buf.putInt(fp.length).put(fp);
+            buf.putInt(addr.length).put(addr);
+            buf.putLong(lastSeenMs);
+            buf.putLong(learnedMs);
+            buf.putLong(rttMicros);
+            buf.putInt(responses);
+            buf.putInt(failures);
+            buf.putInt(js.length).put(js);
+            return buf.array();
+        }
+
+        private static Entry decode(ByteBuffer buf) {
+            if(buf.get()!=VERSION) {
+                throw new IllegalArgumentException("Unknown peer record version.");
+            }
+            Entry entry = new Entry(readString(buf));
+            entry.address = readString(buf);
+            entry.lastSeenMs = buf.getLong();
+            entry.learnedMs = buf.getLong();
+            entry.rttMicros = buf.getLong();
+            entry.responses = buf.getInt();
+            entry.failures = buf.getInt();
+            entry.json = readString(buf);
+            return entry;
+        }
+
+        private static String readString(ByteBuffer buf) {
+            int len = buf.getInt();
+            if(len < 0 || len > buf.remaining()) {
+                throw new IllegalArgumentException("Invalid peer record field length: "+len);
+            }
+            byte[] b = new byte[len];
+            buf.get(b);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+    }
+
+    private final File file;
+    private final int maxPeers;
+    private final long maxAgeMs;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private FileChannel channel;
+    private long records;
+    private long lastExpiryCheckMs = System.currentTimeMillis();
+
+    PeerStore(File file, int maxPeers, long maxAgeMs) {
+        this.file = file;
+        this.maxPeers = maxPeers;
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    /**
+     * @return store in the directory or null if disabled
+     */
+    static PeerStore fromConfig(Properties config, File dir) {
+        if("false".equals(config.getProperty(PROP_ENABLED))) {
+            return null;
+        }
+        int maxPeers = DEFAULT_MAX_PEERS;
+        long maxAgeDays = DEFAULT_MAX_AGE_DAYS;
+        if(config.getProperty(PROP_MAX_PEERS)!=null) {
+            maxPeers = Integer.parseInt(config.getProperty(PROP_MAX_PEERS));
+        }
+        if(config.getProperty(PROP_MAX_AGE_DAYS)!=null) {
+            maxAgeDays = Long.parseLong(config.getProperty(PROP_MAX_AGE_DAYS));
+        }
+        return new PeerStore(new File(dir, FILE_NAME), maxPeers, TimeUnit.DAYS.toMillis(maxAgeDays));
+    }
+
+    /**
+     * Reads the log into memory, truncating any torn or corrupt tail, and opens it for appending.
+     * @return number of peers loaded
+     */
+    synchronized int load() throws IOException {
+        long start = System.nanoTime();
+        long validEnd = 0;
+        if(file.exists() && file.length() > 0) {
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+                CRC32 crc = new CRC32();
+                while(map.remaining() >= RECORD_HEADER) {
+                    int length = map.getInt();
+                    int expectedCrc = map.getInt();
+                    if(length <= 0 || length > MAX_RECORD || length > map.remaining()) {
+                        break;
+                    }
+                    byte[] record = new byte[length];
+                    map.get(record);
+                    crc.reset();
+                    crc.update(record, 0, length);
+                    if((int)crc.getValue()!=expectedCrc) {
+                        break;
+                    }
+                    try {
+                        Entry entry = Entry.decode(ByteBuffer.wrap(record));
+                        entries.put(entry.fingerprint, entry);
+                    } catch (RuntimeException e) {
+                        break;
+                    }
+                    validEnd = map.position();
+                    records++;
+                }
+            }
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if(channel.size() > validEnd) {
+            LOG.warning("Peer store "+file.getName()+" had "+(channel.size()-validEnd)+" bytes of torn or corrupt records; truncated.");
+            channel.truncate(validEnd);
+        }
+        channel.position(validEnd);
+        LOG.info(entries.size()+" known peers loaded in "+TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start)+" ms.");
+        return entries.size();
+    }
+
+    /**
+     * Records a peer.
+     * @param json supplies the peer's JSON; only called when the entry is new or its address changed
+     * @param seen true if received from directly, false if learned from another peer
+     */
+    void put(String fingerprint, String address, Supplier<String> json, boolean seen) {
+        if(fingerprint==null || address==null) {
+            return;
+        }
+        Entry entry = entries.computeIfAbsent(fingerprint, Entry::new);
+        long now = System.currentTimeMillis();
+        synchronized (entry) {
+            boolean changed = !address.equals(entry.address);
+            if(changed) {
+                entry.address = address;
+                entry.json = json.get();
+            } else if(!seen) {
+                // Already known; hearing of it again is not news
+                return;
+            }
+            if(seen) {
+                entry.lastSeenMs = now;
+            } else {
+                entry.learnedMs = now;
+            }
+        }
+        dirty.add(fingerprint);
+    }
+
+    void recordRtt(String fingerprint, long rttNanos) {
+        Entry entry = fingerprint==null ? null : entries.get(fingerprint);
+        if(entry==null) {
+            return;
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(rttNanos);
+        synchronized (entry) {
+            entry.rttMicros = entry.rttMicros==0 ? micros : (entry.rttMicros * 7 + micros) / 8;
+            entry.responses++;
+        }
+        dirty.add(fingerprint);
+    }
+
+    void recordFailure(String fingerprint) {
+        Entry entry = fingerprint==null ? null : entries.get(fingerprint);
+        if(entry==null) {
+            return;
+        }
+        synchronized (entry) {
+            entry.failures++;
+        }
+        dirty.add(fingerprint);
+    }
+
+    Entry get(String fingerprint) {
+        return entries.get(fingerprint);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return up to limit entries, most reliable and then most recently active first
+     */
+    List<Entry> best(int limit) {
+        List<Entry> sorted = new ArrayList<>(entries.values());
+        sorted.sort(BEST_FIRST);
+        return sorted.size() > limit ? sorted.subList(0, limit) : sorted;
+    }
+
+    private static final Comparator<Entry> BEST_FIRST = (a, b) -> {
+        int c = Double.compare(b.reliability(), a.reliability());
+        return c!=0 ? c : Long.compare(b.lastActivityMs(), a.lastActivityMs());
+    };
+
+    /**
+     * Appends changed entries to the log and syncs it.
+     * @return number of records appended
+     */
+    synchronized int flush() throws IOException {
+        if(channel==null || dirty.isEmpty()) {
+            return 0;
+        }
+        int count = 0;
+        for(Iterator<String> i = dirty.iterator(); i.hasNext(); ) {
+            String fingerprint = i.next();
+            i.remove();
+            Entry entry = entries.get(fingerprint);
+            if(entry!=null) {
+                write(channel, entry);
+                count++;
+            }
+        }
+        channel.force(false);
+        records += count;
+        return count;
+    }
+
+    /**
+     * @return true if there are more than maxPeers entries, the log has grown well past the
+     * live entries, or, checked hourly, an entry is older than maxAge
+     */
+    synchronized boolean needsCompaction() {
+        if(entries.size() > maxPeers) {
+            return true;
+        }
+        if(records > COMPACT_MIN_RECORDS && records > (long)entries.size() * COMPACT_RATIO) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if(now - lastExpiryCheckMs < EXPIRY_CHECK_MS) {
+            return false;
+        }
+        lastExpiryCheckMs = now;
+        long cutoff = now - maxAgeMs;
+        for(Entry e : entries.values()) {
+            if(e.lastActivityMs() < cutoff) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops expired and excess entries and rewrites the log with one record per peer.
+     */
+    synchronized void compact() throws IOException {
+        if(channel==null) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - maxAgeMs;
+        entries.values().removeIf(e -> e.lastActivityMs() < cutoff);
+        if(entries.size() > maxPeers) {
+            Set<String> keep = new HashSet<>();
+            for(Entry e : best(maxPeers)) {
+                keep.add(e.fingerprint);
+            }
+            entries.keySet().retainAll(keep);
+        }
+        // Everything changed from here on is appended after the rewrite
+        dirty.clear();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for(Entry entry : entries.values()) {
+                write(out, entry);
+            }
+            out.force(true);
+        }
+        channel.close();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        records = entries.size();
+        LOG.fine("Peer store compacted to "+records+" peers.");
+    }
+
+    private static void write(FileChannel out, Entry entry) throws IOException {
+        byte[] record = entry.encode();
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER + record.length);
+        buf.putInt(record.length);
+        buf.putInt((int)crc.getValue());
+        buf.put(record);
+        buf.flip();
+        while(buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    synchronized void close() {
+        if(channel==null) {
+            return;
+        }
+        try {
+            flush();
+            channel.close();
+        } catch (IOException e) {
+            LOG.warning("Unable to close peer store: "+e.getLocalizedMessage());
+        }
+        channel = null;
+    }
+}
@@ -0,0 +1,20 @@
+package ra.i2p;
+
+import ra.common.tasks.BaseTask;
+import ra.common.tasks.TaskRunner;
+
+class PersistPeers extends BaseTask {
+
+    private I2PService service;
+
+    public PersistPeers(I2PService service, TaskRunner taskRunner) {
+        super(PersistPeers.class.getSimpleName(), taskRunner);
+        this.service = service;
+    }
+
+    @Override
+    public Boolean execute() {
+        service.persistPeers();
+        return true;
+    }
+}
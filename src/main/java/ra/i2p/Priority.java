@@ -0,0 +1,87 @@
+package ra.i2p;
+
+import ra.common.Envelope;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Outbound traffic class of an Envelope, highest first. Each class has its own queue in
+ * {@link OutboundSendQueue} so bulk traffic can not starve peer discovery.
+ *
+ * Set per Envelope with the {@link #NVP} value, e.g. envelope.addNVP(Priority.NVP, "BULK"),
+ * or per route operation with ra.i2p.send.priority.&lt;operation&gt;=BULK.
+ * NetOpReq/NetOpRes peer discovery is CONTROL and everything else NORMAL.
+ */
+public enum Priority {
+    /** Peer discovery and other control messages */
+    CONTROL,
+    /** Latency sensitive application messages */
+    INTERACTIVE,
+    NORMAL,
+    /** Transfers that can wait */
+    BULK;
+
+    private static final Logger LOG = Logger.getLogger(Priority.class.getName());
+
+    public static final String NVP = "ra.i2p.priority";
+    public static final String PROP_OPERATION_PREFIX = "ra.i2p.send.priority.";
+
+    /**
+     * @return priorities by route operation from ra.i2p.send.priority.&lt;operation&gt; properties;
+     * unknown classes are logged and skipped
+     */
+    static Map<String, Priority> byOperation(Properties config) {
+        Map<String, Priority> byOperation = new HashMap<>();
+        for(String name : config.stringPropertyNames()) {
+            if(name.startsWith(PROP_OPERATION_PREFIX)) {
+                Priority priority = parse(config.getProperty(name), name);
+                if(priority!=null) {
+                    byOperation.put(name.substring(PROP_OPERATION_PREFIX.length()), priority);
+                }
+            }
+        }
+        return byOperation;
+    }
+
+    /**
+     * @param source where the value came from, for the log
+     * @return the priority or null, logged, if the value names none
+     */
+    private static Priority parse(String value, String source) {
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            LOG.warning("Unknown priority '"+value+"' in "+source+"; ignored.");
+            return null;
+        }
+    }
+
+    /**
+     * @param byOperation priorities by route operation
+     */
+    static Priority of(Envelope envelope, Map<String, Priority> byOperation) {
+        if(envelope==null) {
+            return NORMAL;
+        }
+        Object value = envelope.getValue(NVP);
+        if(value!=null) {
+            Priority priority = parse(value.toString(), NVP+" of Envelope "+envelope.getId());
+            if(priority!=null) {
+                return priority;
+            }
+        }
+        if(envelope.markerPresent("NetOpReq") || envelope.markerPresent("NetOpRes")) {
+            return CONTROL;
+        }
+        if(envelope.getRoute()!=null && envelope.getRoute().getOperation()!=null) {
+            Priority priority = byOperation.get(envelope.getRoute().getOperation());
+            if(priority!=null) {
+                return priority;
+            }
+        }
+        return NORMAL;
+    }
+}
@@ -0,0 +1,68 @@
+package ra.i2p;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Events per second over a sliding window, kept in a ring of fixed-width buckets.
+ *
+ * Recording is two atomic operations on the current bucket; a bucket left over from an earlier
+ * lap of the ring is cleared by the first event that lands in it. Reading sums the buckets
+ * still inside the window, so the rate covers between (buckets - 1) and buckets bucket widths.
+ */
+class RateWindow {
+
+    private final long originNanos;
+    private final long bucketNanos;
+    private final int buckets;
+    private final AtomicLongArray counts;
+    // Bucket number since origin each slot currently holds
+    private final AtomicLongArray epochs;
+
+    RateWindow(long bucketMs, int buckets) {
+        this(bucketMs, buckets, System.nanoTime());
+    }
+
+    RateWindow(long bucketMs, int buckets, long originNanos) {
+        this.originNanos = originNanos;
+        this.bucketNanos = TimeUnit.MILLISECONDS.toNanos(bucketMs);
+        this.buckets = buckets;
+        this.counts = new AtomicLongArray(buckets);
+        this.epochs = new AtomicLongArray(buckets);
+    }
+
+    void record() {
+        record(1, System.nanoTime());
+    }
+
+    void record(long events, long nowNanos) {
+        long epoch = (nowNanos - originNanos) / bucketNanos;
+        int slot = (int)(epoch % buckets);
+        long seen = epochs.get(slot);
+        if(seen!=epoch && epochs.compareAndSet(slot, seen, epoch)) {
+            counts.set(slot, 0L);
+        }
+        counts.addAndGet(slot, events);
+    }
+
+    double perSecond() {
+        return perSecond(System.nanoTime());
+    }
+
+    double perSecond(long nowNanos) {
+        long elapsed = nowNanos - originNanos;
+        if(elapsed <= 0) {
+            return 0.0;
+        }
+        long epoch = elapsed / bucketNanos;
+        long sum = 0L;
+        for(int slot=0; slot<buckets; slot++) {
+            if(epoch - epochs.get(slot) < buckets) {
+                sum += counts.get(slot);
+            }
+        }
+        // Full buckets behind the current one plus the part of the current one so far
+        long windowNanos = Math.min(elapsed, (buckets - 1) * bucketNanos + elapsed % bucketNanos);
+        return windowNanos <= 0 ? 0.0 : sum / (windowNanos / 1e9);
+    }
+}
@@ -0,0 +1,281 @@
+package ra.i2p;
+
+import ra.common.Envelope;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Runs router restarts on their own thread so no sender or listener thread waits on one.
+ *
+ * IDLE -> SOFT_RESTARTING (router.restart, then polled until alive) or HARD_RESTARTING
+ * (shutdown and start) -> RECONNECTING (sessions re-established) -> IDLE.
+ * Requests while not IDLE join the restart in progress. Envelopes sent meanwhile are held
+ * in a bounded buffer and resent, in order, once the restart finishes.
+ */
+class RestartCoordinator {
+
+    private static final Logger LOG = Logger.getLogger(RestartCoordinator.class.getName());
+
+    public static final String PROP_BUFFER_SIZE = "ra.i2p.restart.bufferSize";
+    public static final String PROP_TIMEOUT_SEC = "ra.i2p.restart.timeoutSec";
+    public static final String PROP_POLL_SEC = "ra.i2p.restart.pollSec";
+
+    static final int DEFAULT_BUFFER_SIZE = 1000;
+    static final long DEFAULT_TIMEOUT_SEC = 10 * 60;
+    static final long DEFAULT_POLL_SEC = 10;
+
+    enum State { IDLE, SOFT_RESTARTING, HARD_RESTARTING, RECONNECTING }
+
+    /**
+     * The service's side of a restart.
+     */
+    interface Steps {
+        /**
+         * Starts a soft restart of the router.
+         * @return false if it could not be started
+         */
+        boolean restartSoft();
+
+        boolean isRouterAlive();
+
+        /**
+         * Shuts down and starts the service.
+         * @return false if it did not start again
+         */
+        boolean restartHard();
+
+        /**
+         * @return completes once the default session is connected again
+         */
+        CompletableFuture<?> reconnect();
+
+        CompletableFuture<SendResult> resend(Envelope envelope);
+    }
+
+    private static final class Held {
+        private final Envelope envelope;
+        private final CompletableFuture<SendResult> result = new CompletableFuture<>();
+
+        private Held(Envelope envelope) {
+            this.envelope = envelope;
+        }
+    }
+
+    private final Steps steps;
+    private final int bufferSize;
+    private final long timeoutMs;
+    private final long pollMs;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "I2PService-Restart");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private State state = State.IDLE;
+    private CompletableFuture<Boolean> current;
+    private final Deque<Held> buffer = new ArrayDeque<>();
+
+    private final AtomicLong restarts = new AtomicLong();
+    private final AtomicLong buffered = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    RestartCoordinator(Steps steps, int bufferSize, long timeoutMs, long pollMs) {
+        this.steps = steps;
+        this.bufferSize = bufferSize;
+        this.timeoutMs = timeoutMs;
+        this.pollMs = pollMs;
+    }
+
+    static RestartCoordinator fromConfig(Properties config, Steps steps) {
+        int bufferSize = DEFAULT_BUFFER_SIZE;
+        long timeoutSec = DEFAULT_TIMEOUT_SEC;
+        long pollSec = DEFAULT_POLL_SEC;
+        if(config.getProperty(PROP_BUFFER_SIZE)!=null) {
+            bufferSize = Integer.parseInt(config.getProperty(PROP_BUFFER_SIZE));
+        }
+        if(config.getProperty(PROP_TIMEOUT_SEC)!=null) {
+            timeoutSec = Long.parseLong(config.getProperty(PROP_TIMEOUT_SEC));
+        }
+        if(config.getProperty(PROP_POLL_SEC)!=null) {
+            pollSec = Long.parseLong(config.getProperty(PROP_POLL_SEC));
+        }
+        return new RestartCoordinator(steps, bufferSize, TimeUnit.SECONDS.toMillis(timeoutSec), TimeUnit.SECONDS.toMillis(pollSec));
+    }
+
+    /**
+     * Starts a restart unless one is already running.
+     * @param hard shut down and start the whole service rather than restart the router
+     * @return completes with whether the restart succeeded
+     */
+    CompletableFuture<Boolean> request(boolean hard) {
+        return request(() -> hard);
+    }
+
+    /**
+     * Starts a restart unless one is already running.
+     * @param hard asked only if this request starts the restart, so it may count attempts
+     * @return completes with whether the restart succeeded
+     */
+    CompletableFuture<Boolean> request(BooleanSupplier hard) {
+        CompletableFuture<Boolean> result;
+        boolean full;
+        synchronized (this) {
+            if(state!=State.IDLE) {
+                LOG.fine("Restart already in progress: "+state.name());
+                return current;
+            }
+            full = hard.getAsBoolean();
+            state = full ? State.HARD_RESTARTING : State.SOFT_RESTARTING;
+            current = result = new CompletableFuture<>();
+        }
+        restarts.incrementAndGet();
+        executor.execute(full ? this::hardRestart : this::softRestart);
+        return result;
+    }
+
+    private void softRestart() {
+        LOG.info("Soft restart of I2P Router...");
+        boolean started;
+        try {
+            started = steps.restartSoft();
+        } catch (Exception e) {
+            LOG.warning("Soft restart failed: "+e.getLocalizedMessage());
+            started = false;
+        }
+        if(!started) {
+            finish(false);
+            return;
+        }
+        pollAlive(System.currentTimeMillis() + timeoutMs);
+    }
+
+    private void pollAlive(long deadline) {
+        if(steps.isRouterAlive()) {
+            LOG.info("I2P Router soft restart completed.");
+            reconnect();
+        } else if(System.currentTimeMillis() > deadline) {
+            LOG.warning("Restart failed; I2P Router not alive after "+TimeUnit.MILLISECONDS.toSeconds(timeoutMs)+" seconds.");
+            finish(false);
+        } else {
+            executor.schedule(() -> pollAlive(deadline), pollMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void hardRestart() {
+        LOG.info("Full restart of I2P Router...");
+        boolean started;
+        try {
+            started = steps.restartHard();
+        } catch (Exception e) {
+            LOG.warning("Hard restart failed: "+e.getLocalizedMessage());
+            started = false;
+        }
+        if(!started) {
+            finish(false);
+            return;
+        }
+        LOG.info("Hard restart of I2P Router completed.");
+        reconnect();
+    }
+
+    private void reconnect() {
+        synchronized (this) {
+            state = State.RECONNECTING;
+        }
+        CompletableFuture<?> reconnected;
+        try {
+            reconnected = steps.reconnect();
+        } catch (Exception e) {
+            LOG.warning("Unable to re-establish sessions: "+e.getLocalizedMessage());
+            finish(false);
+            return;
+        }
+        reconnected.whenComplete((v, t) -> executor.execute(() -> {
+            if(t!=null) {
+                LOG.warning("Unable to re-establish sessions: "+t.getLocalizedMessage());
+            }
+            finish(t==null);
+        }));
+    }
+
+    private void finish(boolean success) {
+        Deque<Held> held;
+        CompletableFuture<Boolean> result;
+        synchronized (this) {
+            held = new ArrayDeque<>(buffer);
+            buffer.clear();
+            result = current;
+            current = null;
+            state = State.IDLE;
+        }
+        if(!held.isEmpty()) {
+            // Even after a failed restart the router may recover; sending reports the real outcome
+            LOG.info("Resending "+held.size()+" Envelope(s) held during restart.");
+        }
+        for(Held h : held) {
+            try {
+                steps.resend(h.envelope).whenComplete((r, t) -> h.result.complete(t==null ? r : SendResult.failed(SendResult.CODE_SEND_FAILED, t.getLocalizedMessage())));
+            } catch (Exception e) {
+                h.result.complete(SendResult.failed(SendResult.CODE_SEND_FAILED, e.getLocalizedMessage()));
+            }
+        }
+        result.complete(success);
+    }
+
+    /**
+     * Holds the Envelope if a restart is in progress.
+     * @return future completed once the Envelope is resent after the restart, completed with
+     * {@link SendResult#CODE_QUEUE_FULL} if the buffer is full, or null if not restarting
+     */
+    CompletableFuture<SendResult> hold(Envelope envelope) {
+        synchronized (this) {
+            if(state==State.IDLE) {
+                return null;
+            }
+            if(buffer.size() < bufferSize) {
+                Held h = new Held(envelope);
+                buffer.addLast(h);
+                buffered.incrementAndGet();
+                return h.result;
+            }
+        }
+        rejected.incrementAndGet();
+        return CompletableFuture.completedFuture(SendResult.failed(SendResult.CODE_QUEUE_FULL, "I2P restart buffer full."));
+    }
+
+    /**
+     * Stops the restart thread; a restart in progress is abandoned.
+     */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    synchronized int held() {
+        return buffer.size();
+    }
+
+    long getRestarts() {
+        return restarts.get();
+    }
+
+    long getBuffered() {
+        return buffered.get();
+    }
+
+    long getRejected() {
+        return rejected.get();
+    }
+}
@@ -0,0 +1,16 @@
+package ra.i2p;
+
+import net.i2p.router.CommSystemFacade;
+
+/**
+ * Notified by {@link I2PService} when the embedded router's reported status changes.
+ */
+public interface RouterStatusListener {
+
+    /**
+     * Called on the status checking thread; must not block.
+     * @param previous status before the change; null on the first status seen
+     * @param current status now reported by the router
+     */
+    void routerStatusChanged(CommSystemFacade.Status previous, CommSystemFacade.Status current);
+}
@@ -0,0 +1,112 @@
+package ra.i2p;
+
+import net.i2p.router.Router;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Router settings that can be changed while running, and how each takes effect.
+ *
+ * Bandwidth limits and the share percentage are read by the bandwidth limiter, so they apply
+ * once it is reinitialized. The participating tunnel cap, transport connection limits and GeoIP
+ * are read from the router config each time they are used. Only hidden mode needs a restart as
+ * the router must republish its RouterInfo without addresses.
+ */
+final class RouterTuning {
+
+    static final String SHARE_PERCENTAGE = "router.sharePercentage";
+    static final String INBOUND_KBPS = "i2np.bandwidth.inboundKBytesPerSecond";
+    static final String OUTBOUND_KBPS = "i2np.bandwidth.outboundKBytesPerSecond";
+    static final String INBOUND_BURST_KBPS = "i2np.bandwidth.inboundBurstKBytesPerSecond";
+    static final String OUTBOUND_BURST_KBPS = "i2np.bandwidth.outboundBurstKBytesPerSecond";
+    static final String MAX_PARTICIPATING_TUNNELS = "router.maxParticipatingTunnels";
+    static final String NTCP_MAX_CONNECTIONS = "i2np.ntcp.maxConnections";
+    static final String UDP_MAX_CONNECTIONS = "i2np.udp.maxConnections";
+    static final String GEOIP_ENABLED = "routerconsole.geoip.enable";
+
+    private static final Set<String> BANDWIDTH = new HashSet<>(Arrays.asList(
+            SHARE_PERCENTAGE, INBOUND_KBPS, OUTBOUND_KBPS, INBOUND_BURST_KBPS, OUTBOUND_BURST_KBPS));
+    private static final Set<String> COUNTS = new HashSet<>(Arrays.asList(
+            INBOUND_KBPS, OUTBOUND_KBPS, INBOUND_BURST_KBPS, OUTBOUND_BURST_KBPS,
+            MAX_PARTICIPATING_TUNNELS, NTCP_MAX_CONNECTIONS, UDP_MAX_CONNECTIONS));
+    private static final Set<String> FLAGS = new HashSet<>(Arrays.asList(Router.PROP_HIDDEN, GEOIP_ENABLED));
+    private static final Set<String> RESTART = Collections.singleton(Router.PROP_HIDDEN);
+
+    private RouterTuning() {}
+
+    /**
+     * @param requested settings to change
+     * @param current reads a setting's current value from the router config
+     * @return the requested settings whose value differs from the current one
+     * @throws IllegalArgumentException if a setting is not tunable or its value is invalid
+     */
+    static Map<String, String> changes(Map<String, String> requested, Function<String, String> current) {
+        Map<String, String> changes = new LinkedHashMap<>();
+        for(Map.Entry<String, String> entry : requested.entrySet()) {
+            String key = entry.getKey();
+            String value = validate(key, entry.getValue());
+            if(!value.equals(current.apply(key))) {
+                changes.put(key, value);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * @return the value normalized, e.g. booleans lower case and numbers without padding
+     */
+    static String validate(String key, String value) {
+        if(value==null) {
+            throw new IllegalArgumentException("No value for "+key);
+        }
+        value = value.trim();
+        if(SHARE_PERCENTAGE.equals(key)) {
+            int share = parseInt(key, value);
+            if(share < 0 || share > 100) {
+                throw new IllegalArgumentException(key+" must be between 0 and 100: "+value);
+            }
+            return String.valueOf(share);
+        }
+        if(COUNTS.contains(key)) {
+            int count = parseInt(key, value);
+            if(count < 0) {
+                throw new IllegalArgumentException(key+" must not be negative: "+value);
+            }
+            return String.valueOf(count);
+        }
+        if(FLAGS.contains(key)) {
+            if(!"true".equalsIgnoreCase(value) && !"false".equalsIgnoreCase(value)) {
+                throw new IllegalArgumentException(key+" must be true or false: "+value);
+            }
+            return value.toLowerCase();
+        }
+        throw new IllegalArgumentException(key+" can not be tuned at runtime.");
+    }
+
+    private static int parseInt(String key, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key+" must be a whole number: "+value);
+        }
+    }
+
+    static boolean needsBandwidthReinit(Collection<String> keys) {
+        for(String key : keys) {
+            if(BANDWIDTH.contains(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean needsRestart(Collection<String> keys) {
+        for(String key : keys) {
+            if(RESTART.contains(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,114 @@
+package ra.i2p;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free, log-bucketed histogram of round trip times.
+ *
+ * Values are recorded in microseconds into buckets four per power of two, so any
+ * percentile is reported within about 25% of the true value using a fixed 2 KB of counters.
+ * Percentiles report the upper bound of the bucket they fall in; max is exact.
+ */
+class RttHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    void record(long rttNanos) {
+        long micros = Math.max(1L, TimeUnit.NANOSECONDS.toMicros(rttNanos));
+        counts.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        sumMicros.addAndGet(micros);
+        long max;
+        while(micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+            // retry
+        }
+    }
+
+    void recordTimeout() {
+        timeouts.incrementAndGet();
+    }
+
+    static int bucket(long micros) {
+        int exp = 63 - Long.numberOfLeadingZeros(micros);
+        int sub;
+        if(exp >= SUB_BUCKET_BITS) {
+            sub = (int)(micros >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        } else {
+            sub = (int)(micros << (SUB_BUCKET_BITS - exp)) & (SUB_BUCKETS - 1);
+        }
+        return exp * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return exclusive upper bound in microseconds of values in the bucket
+     */
+    static long bucketUpperBound(int bucket) {
+        int exp = bucket / SUB_BUCKETS;
+        int sub = bucket % SUB_BUCKETS;
+        long upper = SUB_BUCKETS + sub + 1;
+        return exp >= SUB_BUCKET_BITS ? upper << (exp - SUB_BUCKET_BITS) : Math.max(1L, upper >>> (SUB_BUCKET_BITS - exp));
+    }
+
+    /**
+     * @param percentile 0-100
+     * @return approximate round trip time in microseconds at the percentile; 0 if nothing recorded
+     */
+    long percentileMicros(double percentile) {
+        long total = count.get();
+        if(total==0) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long)Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for(int i=0; i<BUCKETS; i++) {
+            seen += counts.get(i);
+            if(seen >= rank) {
+                return Math.min(bucketUpperBound(i), maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    long getTimeouts() {
+        return timeouts.get();
+    }
+
+    double getMeanMicros() {
+        long total = count.get();
+        return total==0 ? 0.0 : (double)sumMicros.get() / total;
+    }
+
+    /**
+     * @return summary in milliseconds for reporting
+     */
+    Map<String, Object> toMap() {
+        Map<String, Object> m = new HashMap<>();
+        m.put("count", getCount());
+        m.put("timeouts", getTimeouts());
+        m.put("meanMs", getMeanMicros() / 1000.0);
+        m.put("p50Ms", percentileMicros(50) / 1000.0);
+        m.put("p99Ms", percentileMicros(99) / 1000.0);
+        m.put("maxMs", getMaxMicros() / 1000.0);
+        return m;
+    }
+}
@@ -0,0 +1,20 @@
+package ra.i2p;
+
+import ra.common.tasks.BaseTask;
+import ra.common.tasks.TaskRunner;
+
+class ScaleTunnels extends BaseTask {
+
+    private I2PService service;
+
+    public ScaleTunnels(I2PService service, TaskRunner taskRunner) {
+        super(ScaleTunnels.class.getSimpleName(), taskRunner);
+        this.service = service;
+    }
+
+    @Override
+    public Boolean execute() {
+        service.autoscale();
+        return true;
+    }
+}
@@ -0,0 +1,59 @@
+package ra.i2p;
+
+/**
+ * Outcome of sending an Envelope over I2P. Carries the same code and message
+ * that are written to the Envelope's error messages on failure.
+ */
+public final class SendResult {
+
+    public static final String CODE_NO_ENVELOPE = "NO_ENVELOPE";
+    public static final String CODE_NOT_READY = "NOT_READY";
+    public static final String CODE_INVALID_ROUTE = "INVALID_ROUTE";
+    public static final String CODE_SEND_FAILED = "SEND_FAILED";
+    public static final String CODE_QUEUE_FULL = "QUEUE_FULL";
+    public static final String CODE_DROPPED = "DROPPED";
+    public static final String CODE_SHUTDOWN = "SHUTDOWN";
+
+    private static final SendResult SUCCESS = new SendResult(true, null, null);
+
+    private final boolean success;
+    private final String code;
+    private final String message;
+
+    private SendResult(boolean success, String code, String message) {
+        this.success = success;
+        this.code = code;
+        this.message = message;
+    }
+
+    public static SendResult success() {
+        return SUCCESS;
+    }
+
+    public static SendResult failed(String code, String message) {
+        return new SendResult(false, code, message);
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * @return error code or null when successful
+     */
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * @return error message or null when successful
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return success ? "SendResult{success}" : "SendResult{code="+code+", message="+message+"}";
+    }
+}
@@ -0,0 +1,45 @@
+package ra.i2p;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the phases of a service start.
+ */
+class StartupTimer {
+
+    private final long startNanos = System.nanoTime();
+    private long phaseStartNanos = startNanos;
+    private final Map<String, Long> phaseMs = new LinkedHashMap<>();
+
+    /**
+     * Ends the current phase, which began when the previous one ended.
+     */
+    synchronized void phase(String name) {
+        long now = System.nanoTime();
+        phaseMs.put(name, TimeUnit.NANOSECONDS.toMillis(now - phaseStartNanos));
+        phaseStartNanos = now;
+    }
+
+    /**
+     * @return milliseconds per phase in order, followed by total
+     */
+    synchronized Map<String, Long> toMap() {
+        Map<String, Long> m = new LinkedHashMap<>(phaseMs);
+        m.put("total", TimeUnit.NANOSECONDS.toMillis(phaseStartNanos - startNanos));
+        return m;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for(Map.Entry<String, Long> entry : toMap().entrySet()) {
+            if(sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(entry.getKey()).append('=').append(entry.getValue()).append(" ms");
+        }
+        return sb.toString();
+    }
+}
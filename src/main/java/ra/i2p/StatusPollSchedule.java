@@ -0,0 +1,58 @@
+package ra.i2p;
+
+import java.util.Properties;
+
+/**
+ * Period between router status checks: the minimum while the router is starting up or its
+ * status is changing, doubling up to the maximum each check it stays settled and unchanged.
+ */
+class StatusPollSchedule {
+
+    public static final String PROP_MIN_POLL_MS = "ra.i2p.status.minPollMs";
+    public static final String PROP_MAX_POLL_MS = "ra.i2p.status.maxPollMs";
+
+    static final long DEFAULT_MIN_POLL_MS = 1000L;
+    static final long DEFAULT_MAX_POLL_MS = 120 * 1000L;
+
+    private final long minMs;
+    private final long maxMs;
+    private long currentMs;
+
+    StatusPollSchedule(long minMs, long maxMs) {
+        this.minMs = minMs;
+        this.maxMs = Math.max(minMs, maxMs);
+        this.currentMs = minMs;
+    }
+
+    static StatusPollSchedule fromConfig(Properties config) {
+        long minMs = DEFAULT_MIN_POLL_MS;
+        long maxMs = DEFAULT_MAX_POLL_MS;
+        if(config.getProperty(PROP_MIN_POLL_MS)!=null) {
+            minMs = Long.parseLong(config.getProperty(PROP_MIN_POLL_MS));
+        }
+        if(config.getProperty(PROP_MAX_POLL_MS)!=null) {
+            maxMs = Long.parseLong(config.getProperty(PROP_MAX_POLL_MS));
+        }
+        return new StatusPollSchedule(minMs, maxMs);
+    }
+
+    /**
+     * @param settled true if the last check found no change and the router not still testing the network
+     * @return milliseconds until the next check
+     */
+    synchronized long next(boolean settled) {
+        currentMs = settled ? Math.min(maxMs, currentMs * 2) : minMs;
+        return currentMs;
+    }
+
+    /**
+     * Back to checking at the minimum period, e.g. after a session reports a disconnect.
+     */
+    synchronized void reset() {
+        currentMs = minMs;
+    }
+
+    synchronized long current() {
+        return currentMs;
+    }
+}
@@ -0,0 +1,387 @@
+package ra.i2p;
+
+import net.i2p.I2PException;
+import net.i2p.client.streaming.I2PServerSocket;
+import net.i2p.client.streaming.I2PSocket;
+import net.i2p.client.streaming.I2PSocketManager;
+import net.i2p.data.Destination;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+/**
+ * Delivers large payloads over pooled I2P streaming connections instead of datagrams.
+ *
+ * Outbound connections are kept per destination and closed after sitting idle.
+ * Inbound connections are accepted from the session's socket manager and read on a bounded
+ * pool of maxInbound reader threads.
+ * Each payload is written as one frame: [length: 4][payload].
+ */
+class StreamConnectionPool {
+
+    private static final Logger LOG = Logger.getLogger(StreamConnectionPool.class.getName());
+
+    public static final String PROP_ENABLED = "ra.i2p.stream.enabled";
+    public static final String PROP_THRESHOLD = "ra.i2p.stream.threshold";
+    public static final String PROP_IDLE_TIMEOUT_SEC = "ra.i2p.stream.idleTimeoutSec";
+    public static final String PROP_MAX_OUTBOUND = "ra.i2p.stream.maxOutbound";
+    public static final String PROP_MAX_INBOUND = "ra.i2p.stream.maxInbound";
+
+    static final int DEFAULT_THRESHOLD = 64 * 1024;
+    static final long DEFAULT_IDLE_TIMEOUT_SEC = 120;
+    static final int DEFAULT_MAX_OUTBOUND = 32;
+    static final int DEFAULT_MAX_INBOUND = 64;
+
+    private static final class Connection {
+        private final I2PSocket socket;
+        private final DataOutputStream out;
+        // Bytes the socket has taken; a frame that failed after any were taken can not be resent
+        private long written;
+        private volatile long lastUsedNanos;
+
+        private Connection(I2PSocket socket) throws IOException {
+            this.socket = socket;
+            OutputStream counting = new FilterOutputStream(socket.getOutputStream()) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    written++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    written += len;
+                }
+            };
+            this.out = new DataOutputStream(new BufferedOutputStream(counting));
+            this.lastUsedNanos = System.nanoTime();
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.fine("Error closing stream: "+e.getLocalizedMessage());
+            }
+        }
+    }
+
+    private final I2PSocketManager socketManager;
+    private final BiConsumer<Destination, byte[]> receiver;
+    private final int threshold;
+    private final long idleTimeoutNanos;
+    private final int maxOutbound;
+    private final int maxInbound;
+    private final int maxFrameBytes;
+
+    private final Map<String, Connection> outbound = new ConcurrentHashMap<>();
+    private final AtomicInteger inbound = new AtomicInteger();
+    private final Set<I2PSocket> inboundSockets = ConcurrentHashMap.newKeySet();
+    private final ExecutorService readers;
+    private volatile boolean running = false;
+    private I2PServerSocket serverSocket;
+    private Thread acceptor;
+
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong framesReceived = new AtomicLong();
+    private final AtomicLong connectsFailed = new AtomicLong();
+    private final AtomicLong idleEvicted = new AtomicLong();
+
+    StreamConnectionPool(I2PSocketManager socketManager, BiConsumer<Destination, byte[]> receiver, int threshold,
+                         long idleTimeoutMs, int maxOutbound, int maxInbound, int maxFrameBytes) {
+        this.socketManager = socketManager;
+        this.receiver = receiver;
+        this.threshold = threshold;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+        this.maxOutbound = maxOutbound;
+        this.maxInbound = maxInbound;
+        this.maxFrameBytes = maxFrameBytes;
+        // At most maxInbound streams are admitted so the queue only holds a reader between streams
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxInbound, maxInbound, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "I2PService-StreamReader");
+            t.setDaemon(true);
+            return t;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        this.readers = pool;
+    }
+
+    static boolean isEnabled(Properties config) {
+        return "true".equals(config.getProperty(PROP_ENABLED));
+    }
+
+    static StreamConnectionPool fromConfig(Properties config, I2PSocketManager socketManager, BiConsumer<Destination, byte[]> receiver) {
+        int threshold = DEFAULT_THRESHOLD;
+        long idleTimeoutSec = DEFAULT_IDLE_TIMEOUT_SEC;
+        int maxOutbound = DEFAULT_MAX_OUTBOUND;
+        int maxInbound = DEFAULT_MAX_INBOUND;
+        int maxFrameBytes = FragmentReassembler.DEFAULT_MAX_MESSAGE_BYTES;
+        if(config.getProperty(PROP_THRESHOLD)!=null) {
+            threshold = Integer.parseInt(config.getProperty(PROP_THRESHOLD));
+        }
+        if(config.getProperty(PROP_IDLE_TIMEOUT_SEC)!=null) {
+            idleTimeoutSec = Long.parseLong(config.getProperty(PROP_IDLE_TIMEOUT_SEC));
+        }
+        if(config.getProperty(PROP_MAX_OUTBOUND)!=null) {
+            maxOutbound = Integer.parseInt(config.getProperty(PROP_MAX_OUTBOUND));
+        }
+        if(config.getProperty(PROP_MAX_INBOUND)!=null) {
+            maxInbound = Integer.parseInt(config.getProperty(PROP_MAX_INBOUND));
+        }
+        if(config.getProperty(FragmentReassembler.PROP_MAX_MESSAGE_BYTES)!=null) {
+            maxFrameBytes = Integer.parseInt(config.getProperty(FragmentReassembler.PROP_MAX_MESSAGE_BYTES));
+        }
+        return new StreamConnectionPool(socketManager, receiver, threshold, TimeUnit.SECONDS.toMillis(idleTimeoutSec), maxOutbound, maxInbound, maxFrameBytes);
+    }
+
+    /**
+     * @return true if a payload of this size should go over a stream rather than datagrams
+     */
+    boolean shouldStream(int payloadSize) {
+        return running && payloadSize > threshold;
+    }
+
+    /**
+     * Starts accepting inbound streams.
+     */
+    void start() {
+        running = true;
+        serverSocket = socketManager.getServerSocket();
+        final I2PServerSocket serverSocket = this.serverSocket;
+        acceptor = new Thread(() -> accept(serverSocket));
+        acceptor.setDaemon(true);
+        acceptor.setName("I2PService-StreamAcceptor");
+        acceptor.start();
+        LOG.info("Streaming delivery started for payloads over "+threshold+" bytes.");
+    }
+
+    /**
+     * Writes the payload as one frame on a pooled stream to the destination, connecting if needed.
+     * A broken pooled stream is replaced once, but only if none of the frame reached it so the
+     * peer never sees part of a frame followed by the whole of it.
+     * @return true if written; false if the caller should fall back to datagrams
+     */
+    boolean send(Destination destination, byte[] payload) {
+        String key = destination.calculateHash().toBase64();
+        for(int attempt = 0; attempt < 2; attempt++) {
+            Connection connection = connection(key, destination);
+            if(connection==null) {
+                return false;
+            }
+            boolean partial;
+            synchronized (connection) {
+                long before = connection.written;
+                try {
+                    connection.out.writeInt(payload.length);
+                    connection.out.write(payload);
+                    connection.out.flush();
+                    connection.lastUsedNanos = System.nanoTime();
+                    framesSent.incrementAndGet();
+                    return true;
+                } catch (IOException e) {
+                    partial = connection.written!=before;
+                    LOG.info("Pooled stream broken"+(partial ? " mid-frame" : "; reconnecting")+": "+e.getLocalizedMessage());
+                }
+            }
+            outbound.remove(key, connection);
+            connection.close();
+            if(partial) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private Connection connection(String key, Destination destination) {
+        Connection connection = outbound.get(key);
+        if(connection!=null && !connection.socket.isClosed()) {
+            return connection;
+        }
+        if(connection!=null) {
+            outbound.remove(key, connection);
+        }
+        if(outbound.size() >= maxOutbound && !evictLeastRecentlyUsed()) {
+            LOG.fine("Outbound stream pool full.");
+            return null;
+        }
+        try {
+            connection = new Connection(socketManager.connect(destination));
+        } catch (I2PException | IOException e) {
+            connectsFailed.incrementAndGet();
+            LOG.info("Unable to open stream: "+e.getLocalizedMessage());
+            return null;
+        }
+        Connection existing = outbound.putIfAbsent(key, connection);
+        if(existing!=null) {
+            // Lost a race with another sender; use theirs
+            connection.close();
+            return existing;
+        }
+        return connection;
+    }
+
+    private boolean evictLeastRecentlyUsed() {
+        Map.Entry<String, Connection> lru = null;
+        for(Map.Entry<String, Connection> entry : outbound.entrySet()) {
+            if(lru==null || entry.getValue().lastUsedNanos - lru.getValue().lastUsedNanos < 0) {
+                lru = entry;
+            }
+        }
+        if(lru!=null && outbound.remove(lru.getKey(), lru.getValue())) {
+            lru.getValue().close();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Closes outbound streams idle longer than the idle timeout.
+     * @return number closed
+     */
+    int evictIdle() {
+        long now = System.nanoTime();
+        int count = 0;
+        Iterator<Map.Entry<String, Connection>> i = outbound.entrySet().iterator();
+        while(i.hasNext()) {
+            Connection connection = i.next().getValue();
+            if(now - connection.lastUsedNanos > idleTimeoutNanos || connection.socket.isClosed()) {
+                i.remove();
+                connection.close();
+                count++;
+            }
+        }
+        if(count > 0) {
+            idleEvicted.addAndGet(count);
+            LOG.fine(count+" idle stream(s) closed.");
+        }
+        return count;
+    }
+
+    private void accept(I2PServerSocket serverSocket) {
+        while(running) {
+            I2PSocket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketTimeoutException e) {
+                continue;
+            } catch (ConnectException | I2PException e) {
+                if(running) {
+                    LOG.warning("Stream server socket closed: "+e.getLocalizedMessage());
+                }
+                return;
+            }
+            if(socket==null) {
+                continue;
+            }
+            if(inbound.incrementAndGet() > maxInbound) {
+                inbound.decrementAndGet();
+                LOG.warning("Too many inbound streams; refusing connection.");
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    LOG.fine(e.getLocalizedMessage());
+                }
+                continue;
+            }
+            inboundSockets.add(socket);
+            readers.execute(() -> read(socket));
+        }
+    }
+
+    private void read(I2PSocket socket) {
+        Destination sender = socket.getPeerDestination();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while(running) {
+                int length = in.readInt();
+                if(length <= 0 || length > maxFrameBytes) {
+                    LOG.warning("Invalid stream frame length "+length+"; closing stream.");
+                    return;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                framesReceived.incrementAndGet();
+                receiver.accept(sender, payload);
+            }
+        } catch (EOFException e) {
+            LOG.fine("Inbound stream closed by peer.");
+        } catch (IOException e) {
+            LOG.fine("Inbound stream error: "+e.getLocalizedMessage());
+        } finally {
+            inbound.decrementAndGet();
+            inboundSockets.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.fine(e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * Closes the server socket, which ends the acceptor, and all inbound and outbound streams.
+     */
+    void close() {
+        running = false;
+        if(serverSocket!=null) {
+            try {
+                serverSocket.close();
+            } catch (I2PException e) {
+                LOG.fine("Error closing stream server socket: "+e.getLocalizedMessage());
+            }
+        }
+        if(acceptor!=null) {
+            acceptor.interrupt();
+        }
+        for(I2PSocket socket : inboundSockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.fine(e.getLocalizedMessage());
+            }
+        }
+        readers.shutdown();
+        for(Connection connection : outbound.values()) {
+            connection.close();
+        }
+        outbound.clear();
+    }
+
+    int getOutboundConnections() {
+        return outbound.size();
+    }
+
+    int getInboundConnections() {
+        return inbound.get();
+    }
+
+    long getFramesSent() {
+        return framesSent.get();
+    }
+
+    long getFramesReceived() {
+        return framesReceived.get();
+    }
+
+    long getConnectsFailed() {
+        return connectsFailed.get();
+    }
+
+    long getIdleEvicted() {
+        return idleEvicted.get();
+    }
+}
@@ -0,0 +1,226 @@
+package ra.i2p;
+
+import java.util.Properties;
+
+/**
+ * Sizes client tunnel pools and transport connection limits to the current load, within
+ * configured bounds.
+ *
+ * Each interval the send rate asks for one tunnel each way per messagesPerTunnel messages a
+ * second, plus one more while the send queue is above queueHighWater. Pools grow at once but
+ * not while tunnel builds are mostly failing, as more builds would only add to the router's
+ * load. Connection limits grow by half once active peers pass 80% of the limit. Both shrink one
+ * step at a time and only after scaleDownAfter quiet intervals so a short lull does not tear
+ * down tunnels that are needed again a moment later.
+ */
+class TunnelAutoscaler {
+
+    public static final String PROP_ENABLED = "ra.i2p.autoscale.enabled";
+    public static final String PROP_INTERVAL_SEC = "ra.i2p.autoscale.intervalSec";
+    public static final String PROP_MIN_TUNNELS = "ra.i2p.autoscale.minTunnels";
+    public static final String PROP_MAX_TUNNELS = "ra.i2p.autoscale.maxTunnels";
+    public static final String PROP_MESSAGES_PER_TUNNEL = "ra.i2p.autoscale.messagesPerTunnel";
+    public static final String PROP_QUEUE_HIGH_WATER = "ra.i2p.autoscale.queueHighWater";
+    public static final String PROP_MIN_BUILD_SUCCESS = "ra.i2p.autoscale.minBuildSuccess";
+    public static final String PROP_MIN_CONNECTIONS = "ra.i2p.autoscale.minConnections";
+    public static final String PROP_MAX_CONNECTIONS = "ra.i2p.autoscale.maxConnections";
+    public static final String PROP_SCALE_DOWN_AFTER = "ra.i2p.autoscale.scaleDownAfter";
+
+    // I2CP session options for client tunnel pools
+    static final String INBOUND_QUANTITY = "inbound.quantity";
+    static final String OUTBOUND_QUANTITY = "outbound.quantity";
+    // I2CP allows at most 16 tunnels each way
+    static final int MAX_QUANTITY = 16;
+
+    static final long DEFAULT_INTERVAL_SEC = 60;
+    static final int DEFAULT_MIN_TUNNELS = 2;
+    static final int DEFAULT_MAX_TUNNELS = 6;
+    static final double DEFAULT_MESSAGES_PER_TUNNEL = 20.0;
+    static final int DEFAULT_QUEUE_HIGH_WATER = 100;
+    static final double DEFAULT_MIN_BUILD_SUCCESS = 0.4;
+    static final int DEFAULT_MIN_CONNECTIONS = 32;
+    static final int DEFAULT_MAX_CONNECTIONS = 256;
+    static final int DEFAULT_SCALE_DOWN_AFTER = 3;
+
+    private static final double PEERS_HIGH = 0.8;
+    private static final double PEERS_LOW = 0.4;
+
+    /**
+     * Load seen over the last interval.
+     */
+    static final class Load {
+        final double sendRatePerSec;
+        final int queueDepth;
+        // Share of client tunnel builds that succeeded, or below 0 if none were tried
+        final double buildSuccess;
+        final int activePeers;
+
+        Load(double sendRatePerSec, int queueDepth, double buildSuccess, int activePeers) {
+            this.sendRatePerSec = sendRatePerSec;
+            this.queueDepth = queueDepth;
+            this.buildSuccess = buildSuccess;
+            this.activePeers = activePeers;
+        }
+    }
+
+    private final long intervalMs;
+    private final int minTunnels;
+    private final int maxTunnels;
+    private final double messagesPerTunnel;
+    private final int queueHighWater;
+    private final double minBuildSuccess;
+    private final int minConnections;
+    private final int maxConnections;
+    private final int scaleDownAfter;
+
+    private int tunnels;
+    private int connections;
+    private int quietTunnelIntervals;
+    private int quietConnectionIntervals;
+
+    TunnelAutoscaler(long intervalMs, int minTunnels, int maxTunnels, double messagesPerTunnel, int queueHighWater,
+                     double minBuildSuccess, int minConnections, int maxConnections, int scaleDownAfter) {
+        if(minTunnels < 1 || minTunnels > maxTunnels || maxTunnels > MAX_QUANTITY) {
+            throw new IllegalArgumentException("Tunnel bounds must satisfy 1 <= min <= max <= "+MAX_QUANTITY+": "+minTunnels+".."+maxTunnels);
+        }
+        if(minConnections < 1 || minConnections > maxConnections) {
+            throw new IllegalArgumentException("Connection bounds must satisfy 1 <= min <= max: "+minConnections+".."+maxConnections);
+        }
+        this.intervalMs = intervalMs;
+        this.minTunnels = minTunnels;
+        this.maxTunnels = maxTunnels;
+        this.messagesPerTunnel = messagesPerTunnel;
+        this.queueHighWater = queueHighWater;
+        this.minBuildSuccess = minBuildSuccess;
+        this.minConnections = minConnections;
+        this.maxConnections = maxConnections;
+        this.scaleDownAfter = Math.max(1, scaleDownAfter);
+        this.tunnels = minTunnels;
+        this.connections = minConnections;
+    }
+
+    static boolean isEnabled(Properties config) {
+        return "true".equals(config.getProperty(PROP_ENABLED));
+    }
+
+    static TunnelAutoscaler fromConfig(Properties config) {
+        long intervalSec = DEFAULT_INTERVAL_SEC;
+        int minTunnels = DEFAULT_MIN_TUNNELS;
+        int maxTunnels = DEFAULT_MAX_TUNNELS;
+        double messagesPerTunnel = DEFAULT_MESSAGES_PER_TUNNEL;
+        int queueHighWater = DEFAULT_QUEUE_HIGH_WATER;
+        double minBuildSuccess = DEFAULT_MIN_BUILD_SUCCESS;
+        int minConnections = DEFAULT_MIN_CONNECTIONS;
+        int maxConnections = DEFAULT_MAX_CONNECTIONS;
+        int scaleDownAfter = DEFAULT_SCALE_DOWN_AFTER;
+        if(config.getProperty(PROP_INTERVAL_SEC)!=null) {
+            intervalSec = Long.parseLong(config.getProperty(PROP_INTERVAL_SEC));
+        }
+        if(config.getProperty(PROP_MIN_TUNNELS)!=null) {
+            minTunnels = Integer.parseInt(config.getProperty(PROP_MIN_TUNNELS));
+        }
+        if(config.getProperty(PROP_MAX_TUNNELS)!=null) {
+            maxTunnels = Integer.parseInt(config.getProperty(PROP_MAX_TUNNELS));
+        }
+        if(config.getProperty(PROP_MESSAGES_PER_TUNNEL)!=null) {
+            messagesPerTunnel = Double.parseDouble(config.getProperty(PROP_MESSAGES_PER_TUNNEL));
+        }
+        if(config.getProperty(PROP_QUEUE_HIGH_WATER)!=null) {
+            queueHighWater = Integer.parseInt(config.getProperty(PROP_QUEUE_HIGH_WATER));
+        }
+        if(config.getProperty(PROP_MIN_BUILD_SUCCESS)!=null) {
+            minBuildSuccess = Double.parseDouble(config.getProperty(PROP_MIN_BUILD_SUCCESS));
+        }
+        if(config.getProperty(PROP_MIN_CONNECTIONS)!=null) {
+            minConnections = Integer.parseInt(config.getProperty(PROP_MIN_CONNECTIONS));
+        }
+        if(config.getProperty(PROP_MAX_CONNECTIONS)!=null) {
+            maxConnections = Integer.parseInt(config.getProperty(PROP_MAX_CONNECTIONS));
+        }
+        if(config.getProperty(PROP_SCALE_DOWN_AFTER)!=null) {
+            scaleDownAfter = Integer.parseInt(config.getProperty(PROP_SCALE_DOWN_AFTER));
+        }
+        return new TunnelAutoscaler(intervalSec * 1000L, minTunnels, maxTunnels, messagesPerTunnel, queueHighWater,
+                minBuildSuccess, minConnections, maxConnections, scaleDownAfter);
+    }
+
+    long getIntervalMs() {
+        return intervalMs;
+    }
+
+    /**
+     * Starts from the sizes currently in effect, brought within bounds.
+     */
+    synchronized void reset(int currentTunnels, int currentConnections) {
+        tunnels = clamp(currentTunnels, minTunnels, maxTunnels);
+        connections = clamp(currentConnections, minConnections, maxConnections);
+        quietTunnelIntervals = 0;
+        quietConnectionIntervals = 0;
+    }
+
+    /**
+     * Adjusts the target sizes to the load seen over the last interval.
+     * @return true if either target changed
+     */
+    synchronized boolean next(Load load) {
+        int previousTunnels = tunnels;
+        int previousConnections = connections;
+        tunnels = nextTunnels(load);
+        connections = nextConnections(load);
+        return tunnels != previousTunnels || connections != previousConnections;
+    }
+
+    private int nextTunnels(Load load) {
+        int wanted = (int)Math.ceil(load.sendRatePerSec / messagesPerTunnel);
+        if(load.queueDepth > queueHighWater) {
+            wanted = Math.max(wanted, tunnels + 1);
+        }
+        wanted = clamp(wanted, minTunnels, maxTunnels);
+        if(wanted > tunnels) {
+            quietTunnelIntervals = 0;
+            if(load.buildSuccess >= 0 && load.buildSuccess < minBuildSuccess) {
+                // Builds are failing; more would only add to the router's load
+                return tunnels;
+            }
+            return wanted;
+        }
+        if(wanted < tunnels && ++quietTunnelIntervals >= scaleDownAfter) {
+            quietTunnelIntervals = 0;
+            return tunnels - 1;
+        }
+        if(wanted == tunnels) {
+            quietTunnelIntervals = 0;
+        }
+        return tunnels;
+    }
+
+    private int nextConnections(Load load) {
+        if(load.activePeers > connections * PEERS_HIGH) {
+            quietConnectionIntervals = 0;
+            return clamp(Math.max(connections + 1, connections * 3 / 2), minConnections, maxConnections);
+        }
+        if(load.activePeers < connections * PEERS_LOW) {
+            if(++quietConnectionIntervals >= scaleDownAfter) {
+                quietConnectionIntervals = 0;
+                // Never below what the active peers would fill to the high mark
+                int floor = (int)Math.ceil(load.activePeers / PEERS_HIGH);
+                return clamp(Math.max(floor, connections * 2 / 3), minConnections, maxConnections);
+            }
+            return connections;
+        }
+        quietConnectionIntervals = 0;
+        return connections;
+    }
+
+    synchronized int getTunnels() {
+        return tunnels;
+    }
+
+    synchronized int getConnections() {
+        return connections;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
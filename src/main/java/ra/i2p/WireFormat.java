@@ -0,0 +1,56 @@
+package ra.i2p;
+
+/**
+ * Leading bytes identifying how an I2P datagram payload is framed.
+ *
+ * Legacy peers send a JSON Envelope which always starts with '{' so any
+ * frame type defined here must be a byte that can not start a JSON document.
+ */
+final class WireFormat {
+
+    /** Legacy JSON serialized Envelope */
+    static final byte JSON = '{';
+    /** Binary serialized Envelope; see {@link EnvelopeCodec} */
+    static final byte BINARY_ENVELOPE = (byte)0xB1;
+    /** Deflated payload; see {@link PayloadCompressor} */
+    static final byte COMPRESSED = (byte)0xC1;
+    /** One fragment of a payload too large for a single datagram; see {@link Fragmenter} */
+    static final byte FRAGMENT = (byte)0xF1;
+    /** Several payloads for one destination in one datagram; see {@link Coalescer} */
+    static final byte BATCH = (byte)0xF2;
+
+    private WireFormat() {}
+
+    static byte frameType(byte[] payload) {
+        return payload==null || payload.length==0 ? 0 : payload[0];
+    }
+
+    static void writeShort(byte[] b, int off, int v) {
+        b[off] = (byte)(v >>> 8);
+        b[off+1] = (byte)v;
+    }
+
+    static int readShort(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 8) | (b[off+1] & 0xFF);
+    }
+
+    static void writeInt(byte[] b, int off, int v) {
+        b[off] = (byte)(v >>> 24);
+        b[off+1] = (byte)(v >>> 16);
+        b[off+2] = (byte)(v >>> 8);
+        b[off+3] = (byte)v;
+    }
+
+    static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off+1] & 0xFF) << 16) | ((b[off+2] & 0xFF) << 8) | (b[off+3] & 0xFF);
+    }
+
+    static void writeLong(byte[] b, int off, long v) {
+        writeInt(b, off, (int)(v >>> 32));
+        writeInt(b, off+4, (int)v);
+    }
+
+    static long readLong(byte[] b, int off) {
+        return ((long)readInt(b, off) << 32) | (readInt(b, off+4) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,47 @@
+package ra.i2p;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+public class CertificateManifestTest {
+
+    @Test
+    public void skipsUnchangedCertificates() throws Exception {
+        File certDir = Files.createTempDirectory("certs").toFile();
+        File reseed = new File(certDir, "reseed");
+        reseed.mkdir();
+        File cert = new File(reseed, "a.crt");
+        Files.write(cert.toPath(), new byte[] {1, 2, 3});
+        File jar = File.createTempFile("service", ".jar");
+        try {
+            CertificateManifest manifest = new CertificateManifest(certDir);
+            manifest.load();
+            Assert.assertFalse(manifest.isJarUnchanged(jar));
+            Assert.assertFalse(manifest.isCurrent("reseed/a.crt", 42L, 3L));
+            manifest.record("reseed/a.crt", 42L, 3L);
+            manifest.recordJar(jar);
+            manifest.store();
+
+            CertificateManifest reloaded = new CertificateManifest(certDir);
+            reloaded.load();
+            Assert.assertTrue(reloaded.isJarUnchanged(jar));
+            Assert.assertTrue(reloaded.isCurrent("reseed/a.crt", 42L, 3L));
+            // New jar contents
+            Assert.assertFalse(reloaded.isCurrent("reseed/a.crt", 43L, 3L));
+
+            // Certificate damaged or removed since
+            Files.write(cert.toPath(), new byte[] {1});
+            Assert.assertFalse(reloaded.isJarUnchanged(jar));
+            Assert.assertFalse(reloaded.isCurrent("reseed/a.crt", 42L, 3L));
+        } finally {
+            jar.delete();
+            cert.delete();
+            reseed.delete();
+            new File(certDir, CertificateManifest.FILE_NAME).delete();
+            certDir.delete();
+        }
+    }
+}
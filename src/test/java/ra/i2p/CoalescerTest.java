@@ -0,0 +1,147 @@
+package ra.i2p;
+
+import net.i2p.data.DataFormatException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class CoalescerTest {
+
+    private static final class Sent {
+        final String key;
+        final byte[] frame;
+        final List<Integer> items;
+
+        Sent(String key, byte[] frame, List<Integer> items) {
+            this.key = key;
+            this.frame = frame;
+            this.items = new ArrayList<>(items);
+        }
+    }
+
+    @Test
+    public void packAndUnpackRoundTrip() throws Exception {
+        List<byte[]> payloads = Arrays.asList(new byte[]{'{', '}'}, new byte[0], new byte[]{(byte)0xB1, 1, 2, 3});
+        byte[] frame = Coalescer.pack(payloads);
+        Assert.assertTrue(Coalescer.isBatch(frame));
+        List<byte[]> unpacked = Coalescer.unpack(frame);
+        Assert.assertEquals(3, unpacked.size());
+        for(int i=0; i<3; i++) {
+            Assert.assertArrayEquals(payloads.get(i), unpacked.get(i));
+        }
+        try {
+            Coalescer.unpack(Arrays.copyOf(frame, frame.length - 1));
+            Assert.fail("Truncated batch accepted");
+        } catch (DataFormatException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void sendsFullBatchAndLingeringRemainder() throws Exception {
+        List<Sent> sent = Collections.synchronizedList(new ArrayList<>());
+        // Room for three 10 byte payloads
+        Coalescer<String, Integer> coalescer = new Coalescer<>(50L, Coalescer.HEADER_SIZE + 3 * 12, (k, f, p, items) -> sent.add(new Sent(k, f, items)));
+        for(int i=0; i<4; i++) {
+            Assert.assertTrue(coalescer.offer("a", new byte[10], i));
+        }
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals(3, Coalescer.unpack(sent.get(0).frame).size());
+        Assert.assertEquals(Arrays.asList(0, 1, 2), sent.get(0).items);
+        Thread.sleep(300);
+        Assert.assertEquals(2, sent.size());
+        // A batch of one goes out bare
+        Assert.assertFalse(Coalescer.isBatch(sent.get(1).frame));
+        Assert.assertEquals(10, sent.get(1).frame.length);
+        Assert.assertEquals(Collections.singletonList(3), sent.get(1).items);
+        Assert.assertEquals(4L, coalescer.getPayloads());
+        Assert.assertEquals(2L, coalescer.getFrames());
+        coalescer.close();
+    }
+
+    @Test
+    public void bypassSendsWaitingFirst() throws Exception {
+        List<Sent> sent = Collections.synchronizedList(new ArrayList<>());
+        Coalescer<String, Integer> coalescer = new Coalescer<>(10000L, 100, (k, f, p, items) -> sent.add(new Sent(k, f, items)));
+        Assert.assertTrue(coalescer.offer("a", new byte[10], 1));
+        Assert.assertTrue(coalescer.offer("b", new byte[10], 2));
+        Assert.assertFalse(coalescer.offer("a", new byte[200], 3));
+        Assert.assertEquals(0, sent.size());
+        int sentBefore = coalescer.bypass("a", sent::size);
+        Assert.assertEquals(1, sentBefore);
+        Assert.assertEquals("a", sent.get(0).key);
+        coalescer.flushAll();
+        Assert.assertEquals(2, sent.size());
+        Assert.assertEquals("b", sent.get(1).key);
+        coalescer.close();
+    }
+
+    @Test
+    public void lingerFlushAndBypassDoNotOverlap() throws Exception {
+        CountDownLatch flushing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        Coalescer<String, Integer> coalescer = new Coalescer<>(1L, 100, (k, f, p, items) -> {
+            flushing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            order.add("batch");
+        });
+        coalescer.offer("a", new byte[10], 1);
+        Assert.assertTrue(flushing.await(5, TimeUnit.SECONDS));
+        // The linger flush is mid-send; a direct send for the same key waits for it
+        Thread direct = new Thread(() -> coalescer.bypass("a", () -> order.add("direct")));
+        direct.start();
+        Thread.sleep(50);
+        Assert.assertTrue(order.isEmpty());
+        release.countDown();
+        direct.join(5000);
+        Assert.assertEquals(Arrays.asList("batch", "direct"), order);
+        coalescer.close();
+    }
+
+    @Test
+    public void slowDestinationDoesNotHoldUpOthers() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch lingered = new CountDownLatch(1);
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        Coalescer<String, Integer> coalescer = new Coalescer<>(1L, 100, (k, f, p, items) -> {
+            sent.add(k);
+            if("b".equals(k)) {
+                lingered.countDown();
+            }
+        });
+        // A direct send to a stuck for now
+        Thread slow = new Thread(() -> coalescer.bypass("a", () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }));
+        slow.start();
+        Thread.sleep(50);
+        // Other destinations still send directly and linger out
+        Assert.assertEquals("b", coalescer.bypass("b", () -> "b"));
+        coalescer.offer("b", new byte[10], 1);
+        Assert.assertTrue(lingered.await(5, TimeUnit.SECONDS));
+        // A batch lingering out behind the stuck send is left to that send's thread
+        coalescer.offer("a", new byte[10], 2);
+        Thread.sleep(50);
+        Assert.assertFalse(sent.contains("a"));
+        release.countDown();
+        slow.join(5000);
+        Assert.assertTrue(sent.contains("a"));
+        coalescer.close();
+    }
+}
@@ -0,0 +1,75 @@
+package ra.i2p;
+
+import net.i2p.data.Destination;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DestinationCacheTest {
+
+    @Test
+    public void hitAfterMiss() throws Exception {
+        DestinationCache cache = new DestinationCache(10, 60000L, 60000L);
+        AtomicInteger lookups = new AtomicInteger();
+        Destination d = new Destination();
+        DestinationCache.Lookup lookup = key -> { lookups.incrementAndGet(); return d; };
+        Assert.assertSame(d, cache.get("a", lookup));
+        Assert.assertSame(d, cache.get("a", lookup));
+        Assert.assertEquals(1, lookups.get());
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void negativeCaching() throws Exception {
+        DestinationCache cache = new DestinationCache(10, 60000L, 60000L);
+        AtomicInteger lookups = new AtomicInteger();
+        DestinationCache.Lookup lookup = key -> { lookups.incrementAndGet(); return null; };
+        Assert.assertNull(cache.get("unknown", lookup));
+        Assert.assertNull(cache.get("unknown", lookup));
+        Assert.assertEquals(1, lookups.get());
+        Assert.assertEquals(1, cache.getNegativeHits());
+    }
+
+    @Test
+    public void expiry() throws Exception {
+        DestinationCache cache = new DestinationCache(10, 1L, 1L);
+        AtomicInteger lookups = new AtomicInteger();
+        DestinationCache.Lookup lookup = key -> { lookups.incrementAndGet(); return new Destination(); };
+        cache.get("a", lookup);
+        Thread.sleep(5);
+        cache.get("a", lookup);
+        Assert.assertEquals(2, lookups.get());
+        Assert.assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void purgeDropsOnlyExpired() throws Exception {
+        DestinationCache cache = new DestinationCache(10, 60000L, 1L);
+        cache.get("found", key -> new Destination());
+        cache.get("unknown", key -> null);
+        Thread.sleep(5);
+        Assert.assertEquals(1, cache.purgeExpired());
+        Assert.assertEquals(1, cache.size());
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedEviction() throws Exception {
+        DestinationCache cache = new DestinationCache(2, 60000L, 60000L);
+        AtomicInteger lookups = new AtomicInteger();
+        DestinationCache.Lookup lookup = key -> { lookups.incrementAndGet(); return new Destination(); };
+        cache.get("a", lookup);
+        cache.get("b", lookup);
+        cache.get("a", lookup); // a is now most recently used
+        cache.get("c", lookup); // evicts b
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(1, cache.getEvictions());
+        cache.get("a", lookup);
+        Assert.assertEquals(3, lookups.get());
+        cache.get("b", lookup);
+        Assert.assertEquals(4, lookups.get());
+    }
+}
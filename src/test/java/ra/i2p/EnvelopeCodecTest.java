@@ -0,0 +1,93 @@
+package ra.i2p;
+
+import net.i2p.data.DataFormatException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+
+public class EnvelopeCodecTest {
+
+    @Test
+    public void binaryMapRoundTrip() throws Exception {
+        Map<String, Object> inner = new HashMap<>();
+        inner.put("address", "abc~-123");
+        inner.put("port", 7654);
+        Map<String, Object> map = new HashMap<>();
+        map.put("id", UUID.randomUUID().toString());
+        map.put("negative", -42L);
+        map.put("big", Long.MAX_VALUE);
+        map.put("ratio", 0.25d);
+        map.put("flag", true);
+        map.put("none", null);
+        map.put("unicode", "\u00fcber \u2603");
+        map.put("peers", Arrays.asList(inner, "x", 1));
+        map.put("inner", inner);
+
+        byte[] encoded = EnvelopeCodec.encodeBinaryMap(map);
+        Assert.assertEquals(WireFormat.BINARY_ENVELOPE, encoded[0]);
+        Map<String, Object> decoded = EnvelopeCodec.decodeBinaryMap(encoded);
+        Assert.assertEquals(map, decoded);
+    }
+
+    @Test
+    public void truncatedPayloadRejected() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("id", "0123456789");
+        byte[] encoded = EnvelopeCodec.encodeBinaryMap(map);
+        try {
+            EnvelopeCodec.decodeBinaryMap(Arrays.copyOf(encoded, encoded.length - 3));
+            Assert.fail("Truncated payload accepted");
+        } catch (DataFormatException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void unknownVersionRejected() {
+        byte[] encoded = EnvelopeCodec.encodeBinaryMap(new HashMap<>());
+        encoded[1] = (byte)(EnvelopeCodec.VERSION + 1);
+        try {
+            EnvelopeCodec.decodeBinaryMap(encoded);
+            Assert.fail("Unknown version accepted");
+        } catch (DataFormatException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void autoPeersConvergeOnBinary() {
+        EnvelopeCodec a = new EnvelopeCodec(EnvelopeCodec.Mode.AUTO);
+        EnvelopeCodec b = new EnvelopeCodec(EnvelopeCodec.Mode.AUTO);
+        Assert.assertFalse(a.sendsBinaryTo("b"));
+        Assert.assertFalse(b.sendsBinaryTo("a"));
+        // NetOpReq from a carries its advertisement, NetOpRes from b carries b's
+        b.learn("a", a.advertisement());
+        a.learn("b", b.advertisement());
+        Assert.assertTrue(a.sendsBinaryTo("b"));
+        Assert.assertTrue(b.sendsBinaryTo("a"));
+    }
+
+    @Test
+    public void jsonPeersKeepJson() {
+        EnvelopeCodec auto = new EnvelopeCodec(EnvelopeCodec.Mode.AUTO);
+        EnvelopeCodec json = new EnvelopeCodec(EnvelopeCodec.Mode.JSON);
+        Assert.assertNull(json.advertisement());
+        auto.learn("legacy", json.advertisement());
+        Assert.assertFalse(auto.sendsBinaryTo("legacy"));
+        // A peer that stops advertising goes back to JSON
+        auto.learn("peer", EnvelopeCodec.CODEC_BINARY);
+        auto.learn("peer", null);
+        Assert.assertFalse(auto.sendsBinaryTo("peer"));
+        // JSON mode never sends binary
+        json.learn("peer", EnvelopeCodec.CODEC_BINARY);
+        Assert.assertFalse(json.sendsBinaryTo("peer"));
+    }
+
+    @Test
+    public void binarySettingNegotiates() {
+        Properties config = new Properties();
+        config.setProperty(EnvelopeCodec.PROP_CODEC, "binary");
+        Assert.assertEquals(EnvelopeCodec.Mode.AUTO, EnvelopeCodec.fromConfig(config).getMode());
+    }
+}
@@ -0,0 +1,114 @@
+package ra.i2p;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class FragmentReassemblerTest {
+
+    private static byte[] payload(int size) {
+        byte[] b = new byte[size];
+        new Random(size).nextBytes(b);
+        return b;
+    }
+
+    @Test
+    public void roundTripOutOfOrder() {
+        byte[] payload = payload(100000);
+        List<byte[]> fragments = Fragmenter.split(payload, 30 * 1024);
+        Assert.assertEquals(4, fragments.size());
+        Collections.reverse(fragments);
+        FragmentReassembler reassembler = new FragmentReassembler();
+        byte[] result = null;
+        for(byte[] fragment : fragments) {
+            Assert.assertNull(result);
+            result = reassembler.accept("sender", fragment);
+        }
+        Assert.assertArrayEquals(payload, result);
+        Assert.assertEquals(1, reassembler.getCompleted());
+        Assert.assertEquals(0, reassembler.getPendingMessages());
+        Assert.assertEquals(0, reassembler.getBufferedBytes());
+    }
+
+    @Test
+    public void duplicateFragmentIgnored() {
+        byte[] payload = payload(5000);
+        List<byte[]> fragments = Fragmenter.split(payload, 2000);
+        FragmentReassembler reassembler = new FragmentReassembler();
+        Assert.assertNull(reassembler.accept("sender", fragments.get(0)));
+        Assert.assertNull(reassembler.accept("sender", fragments.get(0)));
+        Assert.assertNull(reassembler.accept("sender", fragments.get(1)));
+        Assert.assertArrayEquals(payload, reassembler.accept("sender", fragments.get(2)));
+    }
+
+    @Test
+    public void sendersDoNotMix() {
+        List<byte[]> fragments = Fragmenter.split(payload(5000), 2000);
+        FragmentReassembler reassembler = new FragmentReassembler();
+        reassembler.accept("a", fragments.get(0));
+        reassembler.accept("b", fragments.get(1));
+        Assert.assertNull(reassembler.accept("a", fragments.get(2)));
+        Assert.assertEquals(2, reassembler.getPendingMessages());
+    }
+
+    @Test
+    public void oversizedMessageRejected() {
+        List<byte[]> fragments = Fragmenter.split(payload(5000), 2000);
+        FragmentReassembler reassembler = new FragmentReassembler(4000, 1000000L, 10, 60000L);
+        Assert.assertNull(reassembler.accept("sender", fragments.get(0)));
+        Assert.assertEquals(1, reassembler.getRejected());
+        Assert.assertEquals(0, reassembler.getPendingMessages());
+    }
+
+    @Test
+    public void pendingCapEvictsOldest() {
+        FragmentReassembler reassembler = new FragmentReassembler(100000, 1000000L, 2, 60000L);
+        for(int i=0; i<3; i++) {
+            reassembler.accept("sender", Fragmenter.split(payload(5000), 2000).get(0));
+        }
+        Assert.assertEquals(2, reassembler.getPendingMessages());
+        Assert.assertEquals(1, reassembler.getEvicted());
+    }
+
+    @Test
+    public void bufferCapEvictsOldest() {
+        FragmentReassembler reassembler = new FragmentReassembler(100000, 3000L, 10, 60000L);
+        reassembler.accept("sender", Fragmenter.split(payload(5000), 2000).get(0));
+        reassembler.accept("sender", Fragmenter.split(payload(5000), 2000).get(0));
+        Assert.assertEquals(1, reassembler.getPendingMessages());
+        Assert.assertEquals(1, reassembler.getEvicted());
+        Assert.assertTrue(reassembler.getBufferedBytes() <= 3000L);
+    }
+
+    @Test
+    public void incompleteMessagesExpire() throws Exception {
+        FragmentReassembler reassembler = new FragmentReassembler(100000, 1000000L, 10, 1L);
+        reassembler.accept("sender", Fragmenter.split(payload(5000), 2000).get(0));
+        Thread.sleep(5);
+        Assert.assertEquals(1, reassembler.expire());
+        Assert.assertEquals(1, reassembler.getExpired());
+        Assert.assertEquals(0, reassembler.getBufferedBytes());
+    }
+
+    @Test
+    public void inflatedFragmentCountRejected() {
+        byte[] fragment = Fragmenter.split(payload(5000), 2000).get(0);
+        // 5000 bytes can not take more than 10 fragments of at least 512 bytes
+        WireFormat.writeShort(fragment, 11, 0xFFFF);
+        FragmentReassembler reassembler = new FragmentReassembler();
+        Assert.assertNull(reassembler.accept("sender", fragment));
+        Assert.assertEquals(1, reassembler.getRejected());
+        Assert.assertEquals(0, reassembler.getPendingMessages());
+    }
+
+    @Test
+    public void fragmentTableCountsTowardBuffer() {
+        FragmentReassembler reassembler = new FragmentReassembler(100000, 1000000L, 10, 60000L);
+        byte[] fragment = Fragmenter.split(payload(5000), 2000).get(0);
+        reassembler.accept("sender", fragment);
+        Assert.assertTrue(reassembler.getBufferedBytes() > fragment.length - Fragmenter.HEADER_SIZE);
+    }
+}
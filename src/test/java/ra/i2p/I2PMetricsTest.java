@@ -0,0 +1,80 @@
+package ra.i2p;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ra.common.network.NetworkStatus;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+public class I2PMetricsTest {
+
+    @Test
+    public void countsAndSnapshot() {
+        I2PMetrics metrics = new I2PMetrics(new I2PService());
+        metrics.recordSent(100);
+        metrics.recordSent(50);
+        metrics.recordSendFailure();
+        metrics.recordBytesReceived(70);
+        metrics.recordReceived();
+        metrics.recordVerify(2000L);
+        metrics.recordVerify(4000L);
+        Assert.assertEquals(2, metrics.getMessagesSent());
+        Assert.assertEquals(150, metrics.getBytesSent());
+        Assert.assertEquals(1, metrics.getSendFailures());
+        Assert.assertEquals(1, metrics.getMessagesReceived());
+        Assert.assertEquals(70, metrics.getBytesReceived());
+        Assert.assertEquals(3.0, metrics.getAverageVerifyMicros(), 0.001);
+        Map<String, Object> snapshot = metrics.getSnapshot();
+        Assert.assertEquals(2L, snapshot.get("messagesSent"));
+        Assert.assertNotNull(snapshot.get("queues"));
+        Assert.assertNotNull(snapshot.get("router"));
+    }
+
+    @Test
+    public void tracksCurrentNetworkStatus() {
+        I2PMetrics metrics = new I2PMetrics(new I2PService());
+        Assert.assertEquals("UNKNOWN", metrics.getNetworkStatus());
+        metrics.recordNetworkStatus(NetworkStatus.CONNECTING);
+        metrics.recordNetworkStatus(NetworkStatus.CONNECTED);
+        Assert.assertEquals(NetworkStatus.CONNECTED.name(), metrics.getNetworkStatus());
+        Assert.assertFalse(metrics.getSecondsByNetworkStatus().containsKey(NetworkStatus.BLOCKED.name()));
+    }
+
+    @Test
+    public void registersWithJmx() throws Exception {
+        I2PMetrics metrics = new I2PMetrics(new I2PService());
+        ObjectName name = metrics.getObjectName();
+        metrics.register();
+        try {
+            Assert.assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+            metrics.recordSent(10);
+            Assert.assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "MessagesSent"));
+            // Maps are exposed as open types
+            metrics.recordNetworkStatus(NetworkStatus.CONNECTED);
+            Assert.assertTrue(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "SecondsByNetworkStatus") instanceof TabularData);
+        } finally {
+            metrics.unregister();
+        }
+        Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    @Test
+    public void servicesRegisterSeparately() throws Exception {
+        I2PMetrics first = new I2PMetrics(new I2PService());
+        I2PMetrics second = new I2PMetrics(new I2PService());
+        first.register();
+        second.register();
+        try {
+            Assert.assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(first.getObjectName()));
+            Assert.assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(second.getObjectName()));
+            second.unregister();
+            Assert.assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(first.getObjectName()));
+        } finally {
+            first.unregister();
+            second.unregister();
+        }
+    }
+}
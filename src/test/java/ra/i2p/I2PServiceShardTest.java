@@ -0,0 +1,69 @@
+package ra.i2p;
+
+import net.i2p.client.I2PSessionException;
+import net.i2p.data.Destination;
+import net.i2p.data.Hash;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class I2PServiceShardTest {
+
+    private static Destination destination(String hash) {
+        Hash h = new Hash(new byte[32]) {
+            @Override
+            public String toBase64() {
+                return hash;
+            }
+        };
+        return new Destination() {
+            @Override
+            public Hash calculateHash() {
+                return h;
+            }
+        };
+    }
+
+    @Test
+    public void shardIndexIsStable() {
+        // String.hashCode is specified so the mapping is the same on every node and run
+        Assert.assertEquals(2, I2PService.shardIndex("abc", 4));
+        for(int i=0; i<100; i++) {
+            String key = "peer-"+i;
+            int index = I2PService.shardIndex(key, 3);
+            Assert.assertTrue(index >= 0 && index < 3);
+            Assert.assertEquals(index, I2PService.shardIndex(key, 3));
+            Assert.assertEquals(0, I2PService.shardIndex(key, 1));
+        }
+    }
+
+    @Test
+    public void keyIsDestinationHash() {
+        DestinationCache.Lookup parser = address -> destination("hash-of-"+address);
+        // Same peer with and without a fingerprint filled in
+        Assert.assertEquals("hash-of-addr", I2PService.shardKey("addr", "hash-of-addr", parser));
+        Assert.assertEquals("hash-of-addr", I2PService.shardKey("addr", null, parser));
+        // A fingerprint that is not the destination hash does not move the peer
+        Assert.assertEquals("hash-of-addr", I2PService.shardKey("addr", "other", parser));
+        Assert.assertEquals("fp", I2PService.shardKey(null, "fp", parser));
+        Assert.assertNull(I2PService.shardKey(null, null, parser));
+    }
+
+    @Test
+    public void b32AddressShardedThenResolvedOnDelivery() throws Exception {
+        String b32 = "ukeu3k5oycgaauneqgtnvselmt4yemvoilkln7jpvamvfx7dnkdq.b32.i2p";
+        DestinationCache cache = new DestinationCache();
+        Assert.assertEquals("fp", I2PService.shardKey(b32, "fp"));
+        // The session's naming lookup still runs for the address
+        Destination resolved = destination("resolved");
+        Assert.assertSame(resolved, cache.get(b32, address -> resolved));
+        Assert.assertEquals(0L, cache.getNegativeHits());
+    }
+
+    @Test
+    public void unparseableAddressFallsBackToFingerprint() {
+        Assert.assertEquals("fp", I2PService.shardKey("bad", "fp", address -> null));
+        Assert.assertEquals("fp", I2PService.shardKey("bad", "fp", address -> {
+            throw new I2PSessionException("lookup failed");
+        }));
+    }
+}
@@ -0,0 +1,79 @@
+package ra.i2p;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class InboundWorkerPoolTest {
+
+    @Test
+    public void keepsOrderPerSender() throws Exception {
+        InboundWorkerPool pool = new InboundWorkerPool(4, 1000);
+        pool.start();
+        try {
+            int senders = 8;
+            int perSender = 200;
+            List<List<Integer>> received = new ArrayList<>();
+            for(int s=0; s<senders; s++) {
+                received.add(Collections.synchronizedList(new ArrayList<>()));
+            }
+            CountDownLatch done = new CountDownLatch(senders * perSender);
+            for(int i=0; i<perSender; i++) {
+                for(int s=0; s<senders; s++) {
+                    final int sender = s;
+                    final int seq = i;
+                    Assert.assertTrue(pool.submit("sender-"+sender, () -> {
+                        received.get(sender).add(seq);
+                        done.countDown();
+                    }));
+                }
+            }
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+            for(List<Integer> r : received) {
+                Assert.assertEquals(perSender, r.size());
+                for(int i=0; i<perSender; i++) {
+                    Assert.assertEquals(i, r.get(i).intValue());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void dropsWhenLaneFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        InboundWorkerPool pool = new InboundWorkerPool(1, 1);
+        pool.start();
+        try {
+            Assert.assertTrue(pool.submit("a", () -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            Assert.assertTrue(pool.submit("a", () -> {}));
+            Assert.assertFalse(pool.submit("a", () -> {}));
+            Assert.assertEquals(1, pool.getDropped());
+            Assert.assertEquals(1, pool.depth());
+            release.countDown();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void rejectsWhenNotRunning() {
+        InboundWorkerPool pool = new InboundWorkerPool(1, 1);
+        Assert.assertFalse(pool.submit("a", () -> {}));
+    }
+}
@@ -0,0 +1,72 @@
+package ra.i2p;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class InflightTrackerTest {
+
+    @Test
+    public void recordsRoundTripPerPeer() {
+        InflightTracker tracker = new InflightTracker(60000L, 100, 10);
+        Assert.assertTrue(tracker.track("1", "peerA"));
+        long rtt = tracker.complete("1", System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(250));
+        Assert.assertTrue(rtt >= TimeUnit.MILLISECONDS.toNanos(250));
+        Assert.assertEquals(-1L, tracker.complete("1", System.nanoTime()));
+        Assert.assertEquals(1, tracker.getHistogram("peerA").getCount());
+        Assert.assertNull(tracker.getHistogram("peerB"));
+        Assert.assertEquals(0, tracker.getPending());
+    }
+
+    @Test
+    public void expiresAtDeadline() {
+        List<String> timedOut = new ArrayList<>();
+        InflightTracker tracker = new InflightTracker(1000L, 100, 10);
+        tracker.setTimeoutListener((id, peer) -> timedOut.add(id+"@"+peer));
+        tracker.track("1", "peerA");
+        Assert.assertEquals(0, tracker.expire(System.nanoTime()));
+        Assert.assertEquals(1, tracker.expire(System.nanoTime() + TimeUnit.SECONDS.toNanos(2)));
+        Assert.assertEquals(1, timedOut.size());
+        Assert.assertEquals("1@peerA", timedOut.get(0));
+        Assert.assertEquals(1, tracker.getHistogram("peerA").getTimeouts());
+        // A late response is ignored
+        Assert.assertEquals(-1L, tracker.complete("1", System.nanoTime()));
+    }
+
+    @Test
+    public void capsPending() {
+        InflightTracker tracker = new InflightTracker(1000L, 1, 10);
+        Assert.assertTrue(tracker.track("1", "peerA"));
+        Assert.assertFalse(tracker.track("2", "peerA"));
+        Assert.assertEquals(1, tracker.getUntracked());
+    }
+
+    @Test
+    public void histogramPercentilesWithinBucketPrecision() {
+        RttHistogram histogram = new RttHistogram();
+        for(int ms=1; ms<=100; ms++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(ms));
+        }
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(100000L, histogram.getMaxMicros());
+        long p50 = histogram.percentileMicros(50);
+        long p99 = histogram.percentileMicros(99);
+        Assert.assertTrue("p50="+p50, p50 >= 50000L && p50 <= 50000L * 5 / 4);
+        Assert.assertTrue("p99="+p99, p99 >= 99000L && p99 <= 100000L);
+        Assert.assertEquals(0L, new RttHistogram().percentileMicros(50));
+    }
+
+    @Test
+    public void bucketBoundsContainValues() {
+        for(long v : new long[] {1, 2, 3, 5, 7, 8, 100, 1023, 1024, 123456789L}) {
+            int bucket = RttHistogram.bucket(v);
+            Assert.assertTrue("v="+v, v < RttHistogram.bucketUpperBound(bucket) || v <= 3);
+            if(bucket > 0) {
+                Assert.assertTrue("v="+v, v >= RttHistogram.bucketUpperBound(bucket - 1) || v <= 3);
+            }
+        }
+    }
+}
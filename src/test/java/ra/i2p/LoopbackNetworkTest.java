@@ -0,0 +1,50 @@
+package ra.i2p;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class LoopbackNetworkTest {
+
+    @Test
+    public void deliversToRegisteredEndpoint() throws Exception {
+        LoopbackNetwork network = new LoopbackNetwork();
+        CountDownLatch latch = new CountDownLatch(1);
+        byte[][] received = new byte[1][];
+        network.register("b", datagram -> {
+            received[0] = datagram;
+            latch.countDown();
+        });
+        long start = System.nanoTime();
+        network.send(new LoopbackNetwork.Link(50, 0, 0, 0), "b", new byte[] {1, 2, 3});
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        Assert.assertArrayEquals(new byte[] {1, 2, 3}, received[0]);
+        Assert.assertEquals(1, network.getSent());
+    }
+
+    @Test
+    public void countsLostAndUndeliverable() {
+        LoopbackNetwork network = new LoopbackNetwork();
+        network.register("b", datagram -> Assert.fail("Should have been lost"));
+        network.send(new LoopbackNetwork.Link(0, 0, 1.0, 0), "b", new byte[10]);
+        network.send(new LoopbackNetwork.Link(0, 0, 0, 0), "c", new byte[10]);
+        Assert.assertEquals(1, network.getLost());
+        Assert.assertEquals(1, network.getUndeliverable());
+    }
+
+    @Test
+    public void bandwidthSerializesDatagrams() {
+        // 1 KBps: 512 bytes takes half a second on the link
+        LoopbackNetwork.Link link = new LoopbackNetwork.Link(100, 0, 0, 1);
+        long now = System.nanoTime();
+        Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(600), link.delayNanos(512, now));
+        // Queued behind the first
+        Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(1100), link.delayNanos(512, now));
+        // Link idle again later
+        long later = now + TimeUnit.SECONDS.toNanos(5);
+        Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(600), link.delayNanos(512, later));
+    }
+}
@@ -0,0 +1,143 @@
+package ra.i2p;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import ra.common.Client;
+import ra.common.Envelope;
+import ra.common.messaging.MessageProducer;
+import ra.common.network.NetworkPeer;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Two services on the loopback transport exchanging peers and Envelopes without a router.
+ */
+public class LoopbackServiceTest {
+
+    private static final long TIMEOUT_MS = 30 * 1000L;
+
+    /**
+     * Records what each service hands to the bus.
+     */
+    private static class RecordingProducer implements MessageProducer {
+        private final List<Envelope> sent = new CopyOnWriteArrayList<>();
+
+        @Override
+        public boolean send(Envelope envelope) {
+            sent.add(envelope);
+            return true;
+        }
+
+        @Override
+        public boolean send(Envelope envelope, Client client) {
+            return send(envelope);
+        }
+
+        @Override
+        public boolean deadLetter(Envelope envelope) {
+            return true;
+        }
+    }
+
+    private RecordingProducer busA;
+    private RecordingProducer busB;
+    private I2PService a;
+    private I2PService b;
+
+    private static I2PService start(RecordingProducer bus) {
+        Properties props = new Properties();
+        props.setProperty(I2PTransport.PROP_TRANSPORT, I2PTransport.LOOPBACK);
+        props.setProperty("ra.i2p.peerStore.enabled", "false");
+        I2PService service = new I2PService(bus, null);
+        Assert.assertTrue(service.start(props));
+        await(() -> {
+            NetworkPeer local = service.getNetworkState().localPeer;
+            return local!=null && local.getDid()!=null && local.getDid().getPublicKey().getAddress()!=null;
+        }, "local destination");
+        return service;
+    }
+
+    private static void await(BooleanSupplier condition, String what) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while(!condition.getAsBoolean()) {
+            if(System.nanoTime() > deadline) {
+                Assert.fail("Timed out waiting for "+what);
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Assert.fail("Interrupted waiting for "+what);
+            }
+        }
+    }
+
+    @Before
+    public void startServices() {
+        busA = new RecordingProducer();
+        busB = new RecordingProducer();
+        a = start(busA);
+        b = start(busB);
+    }
+
+    @After
+    public void stopServices() {
+        if(a!=null) {
+            a.shutdown();
+        }
+        if(b!=null) {
+            b.shutdown();
+        }
+    }
+
+    @Test
+    public void peerExchange() {
+        Envelope request = Envelope.documentFactory();
+        request.mark("NetOpReq");
+        request.addContent(a.getPeers());
+        request.addExternalRoute(I2PService.class, I2PService.OPERATION_SEND, a.getNetworkState().localPeer, b.getNetworkState().localPeer);
+        Assert.assertTrue(a.sendOut(request));
+        // b learns a from the NetOpReq, a learns b from the NetOpRes
+        await(() -> b.getNumberPeers() > 0, "NetOpReq at b");
+        await(() -> a.getNumberPeers() > 0, "NetOpRes at a");
+        String fingerprintB = b.getNetworkState().localPeer.getDid().getPublicKey().getFingerprint();
+        boolean found = false;
+        for(NetworkPeer peer : a.getPeers()) {
+            if(fingerprintB.equals(peer.getDid().getPublicKey().getFingerprint())) {
+                found = true;
+            }
+        }
+        Assert.assertTrue(found);
+        // Response matched to the request
+        await(() -> a.inflight.getPending()==0, "NetOpRes matched");
+    }
+
+    @Test
+    public void tuningWithoutRouterFails() {
+        Envelope e = Envelope.documentFactory();
+        Assert.assertFalse(a.tuneRouter(Collections.singletonMap(RouterTuning.SHARE_PERCENTAGE, "50"), e));
+    }
+
+    @Test
+    public void envelopeReachesBus() {
+        Envelope envelope = Envelope.documentFactory();
+        envelope.addContent("ping");
+        envelope.addExternalRoute(I2PService.class, I2PService.OPERATION_SEND, a.getNetworkState().localPeer, b.getNetworkState().localPeer);
+        Assert.assertTrue(a.sendOut(envelope));
+        await(() -> {
+            for(Envelope received : busB.sent) {
+                if(envelope.getId().equals(received.getId())) {
+                    return true;
+                }
+            }
+            return false;
+        }, "Envelope on b's bus");
+    }
+}
@@ -0,0 +1,216 @@
+package ra.i2p;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class OutboundSendQueueTest {
+
+    @Test
+    public void sendsOnWorkerThread() throws Exception {
+        OutboundSendQueue queue = new OutboundSendQueue(10, 1, OutboundSendQueue.Backpressure.REJECT, 0L,
+                e -> Thread.currentThread().getName().startsWith("I2PService-SendWorker") ? SendResult.success() : SendResult.failed(SendResult.CODE_SEND_FAILED, "wrong thread"));
+        queue.start();
+        try {
+            SendResult result = queue.submit(null).get(5, TimeUnit.SECONDS);
+            Assert.assertTrue(result.isSuccess());
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void rejectsWhenFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        OutboundSendQueue queue = new OutboundSendQueue(1, 1, OutboundSendQueue.Backpressure.REJECT, 0L, e -> {
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return SendResult.success();
+        });
+        queue.start();
+        try {
+            CompletableFuture<SendResult> first = queue.submit(null);
+            // Wait for the worker to pick up the first send so the queue is empty again
+            while(queue.depth() > 0) {
+                Thread.sleep(5);
+            }
+            CompletableFuture<SendResult> second = queue.submit(null);
+            CompletableFuture<SendResult> third = queue.submit(null);
+            Assert.assertTrue(third.isDone());
+            Assert.assertEquals(SendResult.CODE_QUEUE_FULL, third.get().getCode());
+            release.countDown();
+            Assert.assertTrue(first.get(5, TimeUnit.SECONDS).isSuccess());
+            Assert.assertTrue(second.get(5, TimeUnit.SECONDS).isSuccess());
+            Assert.assertEquals(1, queue.getRejected());
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void dropsOldestWhenFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        OutboundSendQueue queue = new OutboundSendQueue(1, 1, OutboundSendQueue.Backpressure.DROP_OLDEST, 0L, e -> {
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return SendResult.success();
+        });
+        queue.start();
+        try {
+            queue.submit(null);
+            while(queue.depth() > 0) {
+                Thread.sleep(5);
+            }
+            CompletableFuture<SendResult> second = queue.submit(null);
+            CompletableFuture<SendResult> third = queue.submit(null);
+            Assert.assertEquals(SendResult.CODE_DROPPED, second.get(5, TimeUnit.SECONDS).getCode());
+            release.countDown();
+            Assert.assertTrue(third.get(5, TimeUnit.SECONDS).isSuccess());
+            Assert.assertEquals(1, queue.getDropped());
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void failsWhenNotRunning() throws Exception {
+        OutboundSendQueue queue = new OutboundSendQueue(1, 1, OutboundSendQueue.Backpressure.REJECT, 0L, e -> SendResult.success());
+        Assert.assertEquals(SendResult.CODE_SHUTDOWN, queue.submit(null).get().getCode());
+    }
+
+    @Test
+    public void handsOffQueuedOnShutdown() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        OutboundSendQueue queue = new OutboundSendQueue(10, 1, OutboundSendQueue.Backpressure.REJECT, 0L, e -> {
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return SendResult.success();
+        });
+        queue.start();
+        queue.submit(null);
+        while(queue.depth() > 0) {
+            Thread.sleep(5);
+        }
+        CompletableFuture<SendResult> queued = queue.submit(null);
+        CompletableFuture<SendResult> resent = new CompletableFuture<>();
+        queue.shutdown(e -> resent);
+        release.countDown();
+        Assert.assertFalse(queued.isDone());
+        resent.complete(SendResult.success());
+        Assert.assertTrue(queued.get(5, TimeUnit.SECONDS).isSuccess());
+    }
+
+    @Test
+    public void blockedSubmitCompletesWhenShutdownFreesSpace() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        OutboundSendQueue.Backpressure block = OutboundSendQueue.Backpressure.BLOCK;
+        OutboundSendQueue queue = new OutboundSendQueue(new int[]{1, 10, 10, 10}, new OutboundSendQueue.Backpressure[]{block, block, block, block},
+                OutboundSendQueue.DEFAULT_WEIGHTS, OutboundSendQueue.Scheduling.STRICT, 1, 10000L, Collections.emptyMap(), e -> {
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return SendResult.success();
+        });
+        queue.start();
+        queue.submit(null, Priority.CONTROL);
+        while(queue.depth() > 0) {
+            Thread.sleep(5);
+        }
+        queue.submit(null, Priority.CONTROL);
+        queue.submit(null, Priority.NORMAL);
+        CompletableFuture<CompletableFuture<SendResult>> late = new CompletableFuture<>();
+        Thread submitter = new Thread(() -> late.complete(queue.submit(null, Priority.CONTROL)));
+        submitter.start();
+        // Wait for the submitter to block on the full CONTROL queue
+        while(submitter.getState()!=Thread.State.TIMED_WAITING) {
+            Thread.sleep(5);
+        }
+        // Draining CONTROL lets the blocked offer in; hold shutdown on the NORMAL send until it has
+        queue.shutdown(e -> {
+            if(Thread.currentThread()!=submitter && queue.depth(Priority.NORMAL)==0) {
+                late.join();
+            }
+            return CompletableFuture.completedFuture(SendResult.failed(SendResult.CODE_SHUTDOWN, "shut down"));
+        });
+        release.countDown();
+        Assert.assertEquals(SendResult.CODE_SHUTDOWN, late.get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS).getCode());
+        Assert.assertEquals(0, queue.depth());
+    }
+
+    /**
+     * Blocks the single worker on a first send, queues NORMAL and BULK sends behind it and
+     * returns the order they complete in.
+     */
+    private static List<Priority> completionOrder(OutboundSendQueue.Scheduling scheduling) throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        int[] capacities = {10, 10, 10, 10};
+        OutboundSendQueue.Backpressure[] backpressures = new OutboundSendQueue.Backpressure[4];
+        Arrays.fill(backpressures, OutboundSendQueue.Backpressure.REJECT);
+        OutboundSendQueue queue = new OutboundSendQueue(capacities, backpressures, OutboundSendQueue.DEFAULT_WEIGHTS, scheduling, 1, 0L,
+                Collections.<String, Priority>emptyMap(), e -> {
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return SendResult.success();
+        });
+        queue.start();
+        List<Priority> order = Collections.synchronizedList(new ArrayList<>());
+        try {
+            queue.submit(null, Priority.CONTROL);
+            while(queue.depth() > 0) {
+                Thread.sleep(5);
+            }
+            List<CompletableFuture<SendResult>> futures = new ArrayList<>();
+            for(int i=0; i<4; i++) {
+                futures.add(queue.submit(null, Priority.BULK).thenApply(r -> { order.add(Priority.BULK); return r; }));
+            }
+            for(int i=0; i<4; i++) {
+                futures.add(queue.submit(null, Priority.NORMAL).thenApply(r -> { order.add(Priority.NORMAL); return r; }));
+            }
+            Assert.assertEquals(4, queue.depth(Priority.BULK));
+            release.countDown();
+            for(CompletableFuture<SendResult> f : futures) {
+                Assert.assertTrue(f.get(5, TimeUnit.SECONDS).isSuccess());
+            }
+        } finally {
+            queue.shutdown();
+        }
+        return order;
+    }
+
+    @Test
+    public void strictSendsHigherPriorityFirst() throws Exception {
+        List<Priority> order = completionOrder(OutboundSendQueue.Scheduling.STRICT);
+        for(int i=0; i<4; i++) {
+            Assert.assertEquals(Priority.NORMAL, order.get(i));
+        }
+    }
+
+    @Test
+    public void weightedDoesNotStarveLowerPriority() throws Exception {
+        List<Priority> order = completionOrder(OutboundSendQueue.Scheduling.WEIGHTED);
+        // NORMAL has twice the weight of BULK
+        Assert.assertEquals(Priority.NORMAL, order.get(0));
+        Assert.assertTrue(order.subList(0, 3).contains(Priority.BULK));
+    }
+}
@@ -0,0 +1,119 @@
+package ra.i2p;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class OutboundSpoolTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("spool").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if(files!=null) {
+            for(File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private OutboundSpool open(long ttlMs, long segmentBytes, long maxBytes) throws Exception {
+        OutboundSpool spool = new OutboundSpool(dir, OutboundSpool.Fsync.ALWAYS, 0L, ttlMs, segmentBytes, maxBytes);
+        spool.open();
+        return spool;
+    }
+
+    private static int segmentCount(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".log"));
+        return files==null ? 0 : files.length;
+    }
+
+    @Test
+    public void replaysInOrderAcrossSegmentsAndRestarts() throws Exception {
+        OutboundSpool spool = open(60000L, 64L, 1024 * 1024L);
+        for(int i=0; i<10; i++) {
+            Assert.assertTrue(spool.append("{\"n\":"+i+"}"));
+        }
+        Assert.assertTrue(segmentCount(dir) > 1);
+        spool.close();
+
+        spool = open(60000L, 64L, 1024 * 1024L);
+        Assert.assertEquals(10L, spool.pending());
+        List<String> sent = new ArrayList<>();
+        Assert.assertEquals(10, spool.replay(json -> sent.add(json)));
+        for(int i=0; i<10; i++) {
+            Assert.assertEquals("{\"n\":"+i+"}", sent.get(i));
+        }
+        Assert.assertTrue(spool.isEmpty());
+        spool.close();
+        // Replayed segments are deleted and the empty active one on close
+        Assert.assertEquals(0, segmentCount(dir));
+    }
+
+    @Test
+    public void resumesAfterFailedSend() throws Exception {
+        OutboundSpool spool = open(60000L, 1024 * 1024L, 1024 * 1024L);
+        spool.append("a");
+        spool.append("b");
+        spool.append("c");
+        List<String> sent = new ArrayList<>();
+        Assert.assertEquals(1, spool.replay(json -> !json.equals("b") && sent.add(json)));
+        Assert.assertEquals(2L, spool.pending());
+        spool.close();
+
+        // Cursor survives a restart so "a" is not sent again
+        spool = open(60000L, 1024 * 1024L, 1024 * 1024L);
+        Assert.assertEquals(2L, spool.pending());
+        Assert.assertEquals(2, spool.replay(json -> sent.add(json)));
+        Assert.assertEquals("a", sent.get(0));
+        Assert.assertEquals("b", sent.get(1));
+        Assert.assertEquals("c", sent.get(2));
+        spool.close();
+    }
+
+    @Test
+    public void dropsExpiredAndRejectsWhenFull() throws Exception {
+        OutboundSpool spool = open(-1L, 1024 * 1024L, 40L);
+        Assert.assertTrue(spool.append("0123456789"));
+        Assert.assertFalse(spool.append("0123456789"));
+        Assert.assertEquals(1L, spool.getRejected());
+        Assert.assertEquals(0, spool.replay(json -> true));
+        Assert.assertEquals(1L, spool.getExpired());
+        Assert.assertTrue(spool.isEmpty());
+        spool.close();
+    }
+
+    @Test
+    public void truncatesTornTail() throws Exception {
+        OutboundSpool spool = open(60000L, 1024 * 1024L, 1024 * 1024L);
+        spool.append("first");
+        spool.append("second");
+        spool.close();
+        File[] segments = dir.listFiles((d, name) -> name.endsWith(".log"));
+        Assert.assertEquals(1, segments.length);
+        try (RandomAccessFile raf = new RandomAccessFile(segments[0], "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+        spool = open(60000L, 1024 * 1024L, 1024 * 1024L);
+        Assert.assertEquals(1L, spool.pending());
+        List<String> sent = new ArrayList<>();
+        spool.replay(json -> sent.add(json));
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals("first", sent.get(0));
+        spool.close();
+    }
+}
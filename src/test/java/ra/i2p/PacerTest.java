@@ -0,0 +1,90 @@
+package ra.i2p;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class PacerTest {
+
+    @Test
+    public void staysUnderLimit() throws Exception {
+        // 10 KB/s with a 100 ms burst
+        Pacer<String> pacer = new Pacer<>(() -> 10000L, 1.0, 100L, 1000, 1024 * 1024L, 5000L, (k, d) -> true);
+        pacer.start();
+        try {
+            long start = System.nanoTime();
+            List<CompletableFuture<Boolean>> sent = new ArrayList<>();
+            for(int i=0; i<6; i++) {
+                sent.add(pacer.submit("a", new byte[1000]));
+            }
+            for(CompletableFuture<Boolean> f : sent) {
+                Assert.assertTrue(f.get(5, TimeUnit.SECONDS));
+            }
+            // First goes at once, the other 5000 bytes take about half a second
+            Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 400L);
+            Assert.assertEquals(6000L, pacer.getBytesSent());
+        } finally {
+            pacer.close();
+        }
+    }
+
+    @Test
+    public void sharesBetweenDestinations() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        Pacer<String> pacer = new Pacer<>(() -> 0L, 1.0, 100L, 1000, 1024 * 1024L, 5000L, (k, d) -> {
+            release.await(5, TimeUnit.SECONDS);
+            order.add(k);
+            return true;
+        });
+        pacer.start();
+        try {
+            // Holds the pacer so both destinations queue up
+            CompletableFuture<Boolean> first = pacer.submit("chatty", new byte[1000]);
+            List<CompletableFuture<Boolean>> sent = new ArrayList<>();
+            for(int i=0; i<6; i++) {
+                sent.add(pacer.submit("chatty", new byte[1000]));
+            }
+            sent.add(pacer.submit("quiet", new byte[1000]));
+            release.countDown();
+            Assert.assertTrue(first.get(5, TimeUnit.SECONDS));
+            for(CompletableFuture<Boolean> f : sent) {
+                Assert.assertTrue(f.get(5, TimeUnit.SECONDS));
+            }
+            // The quiet destination gets its turn after at most one more from the chatty one
+            Assert.assertTrue(order.indexOf("quiet") <= 2);
+        } finally {
+            pacer.close();
+        }
+    }
+
+    @Test
+    public void rejectsWhenDestinationQueueFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Pacer<String> pacer = new Pacer<>(() -> 0L, 1.0, 100L, 1000, 1500L, 5000L, (k, d) -> release.await(5, TimeUnit.SECONDS));
+        pacer.start();
+        try {
+            CompletableFuture<Boolean> first = pacer.submit("a", new byte[1000]);
+            // Wait for the pacer to take the first so only the second is queued
+            while(pacer.queuedBytes() > 0) {
+                Thread.sleep(5);
+            }
+            CompletableFuture<Boolean> second = pacer.submit("a", new byte[1000]);
+            CompletableFuture<Boolean> third = pacer.submit("a", new byte[1000]);
+            Assert.assertTrue(third.isDone());
+            Assert.assertFalse(third.get());
+            Assert.assertEquals(1L, pacer.getRejected());
+            release.countDown();
+            Assert.assertTrue(first.get(5, TimeUnit.SECONDS));
+            Assert.assertTrue(second.get(5, TimeUnit.SECONDS));
+        } finally {
+            pacer.close();
+        }
+    }
+}
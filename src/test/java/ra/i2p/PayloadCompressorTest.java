@@ -0,0 +1,76 @@
+package ra.i2p;
+
+import net.i2p.data.DataFormatException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class PayloadCompressorTest {
+
+    private static byte[] peersJson(int count) {
+        StringBuilder sb = new StringBuilder("{\"ra.common.network.NetworkPeer\":[");
+        for(int i=0; i<count; i++) {
+            sb.append("{\"network\":\"I2P\",\"id\":\"").append(i).append("\",\"did\":{\"username\":\"anon\",\"publicKey\":{\"address\":\"")
+                    .append(i).append("\",\"fingerprint\":\"").append(i*31).append("\"}}},");
+        }
+        return sb.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        PayloadCompressor compressor = new PayloadCompressor(true, 512, -1, 1024 * 1024);
+        byte[] payload = peersJson(50);
+        byte[] frame = compressor.compress(payload);
+        Assert.assertTrue(PayloadCompressor.isCompressed(frame));
+        Assert.assertTrue(frame.length < payload.length);
+        Assert.assertArrayEquals(payload, compressor.decompress(frame));
+        Assert.assertTrue(compressor.getCompressionRatio() < 1.0);
+    }
+
+    @Test
+    public void belowThresholdUnchanged() {
+        PayloadCompressor compressor = new PayloadCompressor(true, 512, -1, 1024 * 1024);
+        byte[] payload = "{\"id\":\"1\"}".getBytes(StandardCharsets.UTF_8);
+        Assert.assertSame(payload, compressor.compress(payload));
+    }
+
+    @Test
+    public void declaredLengthOverMaximumRejected() {
+        PayloadCompressor sender = new PayloadCompressor(true, 0, -1, 1024 * 1024);
+        PayloadCompressor receiver = new PayloadCompressor(false, 0, -1, 1024);
+        byte[] frame = sender.compress(new byte[100000]);
+        try {
+            receiver.decompress(frame);
+            Assert.fail("Decompression bomb accepted");
+        } catch (DataFormatException e) {
+            Assert.assertEquals(1, receiver.getRejected());
+        }
+    }
+
+    @Test
+    public void understatedLengthRejected() {
+        PayloadCompressor compressor = new PayloadCompressor(true, 0, -1, 1024 * 1024);
+        byte[] frame = compressor.compress(new byte[100000]);
+        WireFormat.writeInt(frame, 2, 1000);
+        try {
+            compressor.decompress(frame);
+            Assert.fail("Payload larger than declared accepted");
+        } catch (DataFormatException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void truncatedRejected() {
+        PayloadCompressor compressor = new PayloadCompressor(true, 0, -1, 1024 * 1024);
+        byte[] frame = compressor.compress(peersJson(50));
+        try {
+            compressor.decompress(Arrays.copyOf(frame, frame.length / 2));
+            Assert.fail("Truncated payload accepted");
+        } catch (DataFormatException e) {
+            // expected
+        }
+    }
+}
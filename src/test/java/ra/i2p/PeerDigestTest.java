@@ -0,0 +1,62 @@
+package ra.i2p;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PeerDigestTest {
+
+    @Test
+    public void containsEveryAddedKey() {
+        PeerDigest digest = PeerDigest.create(1000, 0.01, 4096, 7);
+        for(int i=0; i<1000; i++) {
+            digest.add("peer-"+i+"|address-"+i);
+        }
+        for(int i=0; i<1000; i++) {
+            Assert.assertTrue(digest.mightContain("peer-"+i+"|address-"+i));
+        }
+    }
+
+    @Test
+    public void falsePositiveRateNearTarget() {
+        PeerDigest digest = PeerDigest.create(1000, 0.01, 4096, 7);
+        for(int i=0; i<1000; i++) {
+            digest.add("peer-"+i);
+        }
+        int falsePositives = 0;
+        for(int i=1000; i<11000; i++) {
+            if(digest.mightContain("peer-"+i)) {
+                falsePositives++;
+            }
+        }
+        Assert.assertTrue("falsePositives="+falsePositives, falsePositives < 300);
+    }
+
+    @Test
+    public void roundTripsAndCapsSize() {
+        PeerDigest digest = PeerDigest.create(100000, 0.01, 1024, 42);
+        Assert.assertTrue(digest.sizeBytes() <= 1024 + 6);
+        digest.add("a|1");
+        PeerDigest decoded = PeerDigest.fromBase64(digest.toBase64());
+        Assert.assertTrue(decoded.mightContain("a|1"));
+        Assert.assertEquals(digest.toBase64(), decoded.toBase64());
+    }
+
+    @Test
+    public void seedChangesFalsePositives() {
+        PeerDigest a = PeerDigest.create(10, 0.5, 16, 1);
+        PeerDigest b = PeerDigest.create(10, 0.5, 16, 2);
+        a.add("x");
+        b.add("x");
+        Assert.assertFalse(a.toBase64().equals(b.toBase64()));
+    }
+
+    @Test
+    public void rejectsUnknownVersion() {
+        try {
+            PeerDigest.fromBase64("AAAAAAAAAAAAAAAAAAAA");
+            Assert.fail("Unknown version accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package ra.i2p;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+public class PeerStoreTest {
+
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("peerstore").toFile();
+        file = new File(dir, PeerStore.FILE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        new File(dir, PeerStore.FILE_NAME + ".tmp").delete();
+        file.delete();
+        dir.delete();
+    }
+
+    private PeerStore open() throws Exception {
+        PeerStore store = new PeerStore(file, 100, TimeUnit.DAYS.toMillis(30));
+        store.load();
+        return store;
+    }
+
+    @Test
+    public void survivesRestart() throws Exception {
+        PeerStore store = open();
+        store.put("fpA", "addrA", () -> "{\"a\":1}", true);
+        store.put("fpB", "addrB", () -> "{\"b\":1}", false);
+        store.recordRtt("fpA", TimeUnit.MILLISECONDS.toNanos(200));
+        store.recordFailure("fpB");
+        store.close();
+
+        PeerStore reloaded = open();
+        Assert.assertEquals(2, reloaded.size());
+        PeerStore.Entry a = reloaded.get("fpA");
+        Assert.assertEquals("{\"a\":1}", a.getJson());
+        Assert.assertEquals(200000L, a.getRttMicros());
+        Assert.assertEquals(1, a.getResponses());
+        Assert.assertTrue(a.getLastSeenMs() > 0);
+        Assert.assertEquals(1, reloaded.get("fpB").getFailures());
+        Assert.assertEquals(0L, reloaded.get("fpB").getLastSeenMs());
+        // Most reliable first
+        Assert.assertEquals("fpA", reloaded.best(10).get(0).fingerprint);
+        reloaded.close();
+    }
+
+    @Test
+    public void addressChangeReplacesJson() throws Exception {
+        PeerStore store = open();
+        store.put("fpA", "addr1", () -> "old", false);
+        store.put("fpA", "addr1", () -> { throw new AssertionError("unchanged peer serialized"); }, true);
+        store.put("fpA", "addr2", () -> "new", false);
+        store.close();
+        PeerStore reloaded = open();
+        Assert.assertEquals("new", reloaded.get("fpA").getJson());
+        reloaded.close();
+    }
+
+    @Test
+    public void recoversFromTornTail() throws Exception {
+        PeerStore store = open();
+        store.put("fpA", "addrA", () -> "a", true);
+        store.flush();
+        store.put("fpB", "addrB", () -> "b", true);
+        store.close();
+        long length = file.length();
+        // Crash part way through the last record
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length - 5);
+        }
+        PeerStore reloaded = open();
+        Assert.assertEquals(1, reloaded.size());
+        Assert.assertNotNull(reloaded.get("fpA"));
+        Assert.assertTrue(file.length() < length - 5);
+        // Appends continue after the last good record
+        reloaded.put("fpC", "addrC", () -> "c", true);
+        reloaded.close();
+        PeerStore again = open();
+        Assert.assertEquals(2, again.size());
+        again.close();
+    }
+
+    @Test
+    public void compactionKeepsLatest() throws Exception {
+        PeerStore store = open();
+        for(int i=0; i<2000; i++) {
+            store.put("fp"+(i % 10), "addr"+i, () -> "json", true);
+            store.flush();
+        }
+        Assert.assertTrue(store.needsCompaction());
+        long before = file.length();
+        store.compact();
+        Assert.assertFalse(store.needsCompaction());
+        Assert.assertTrue(file.length() < before);
+        store.close();
+        PeerStore reloaded = open();
+        Assert.assertEquals(10, reloaded.size());
+        reloaded.close();
+    }
+
+    @Test
+    public void compactsWhenOverMaxPeers() throws Exception {
+        PeerStore store = open();
+        // Few records per peer, so only the peer count calls for compaction
+        for(int i=0; i<150; i++) {
+            store.put("fp"+i, "addr"+i, () -> "json", true);
+        }
+        store.flush();
+        Assert.assertTrue(store.needsCompaction());
+        store.compact();
+        Assert.assertEquals(100, store.size());
+        Assert.assertFalse(store.needsCompaction());
+        store.close();
+        PeerStore reloaded = open();
+        Assert.assertEquals(100, reloaded.size());
+        reloaded.close();
+    }
+}
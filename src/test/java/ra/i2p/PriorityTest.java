@@ -0,0 +1,21 @@
+package ra.i2p;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Properties;
+
+public class PriorityTest {
+
+    @Test
+    public void skipsUnknownOperationPriorities() {
+        Properties config = new Properties();
+        config.setProperty(Priority.PROP_OPERATION_PREFIX + "SYNC", "bulk");
+        config.setProperty(Priority.PROP_OPERATION_PREFIX + "CHAT", "INTERACTVE");
+        Map<String, Priority> byOperation = Priority.byOperation(config);
+        Assert.assertEquals(1, byOperation.size());
+        Assert.assertEquals(Priority.BULK, byOperation.get("SYNC"));
+        Assert.assertNull(byOperation.get("CHAT"));
+    }
+}
@@ -0,0 +1,36 @@
+package ra.i2p;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class RateWindowTest {
+
+    private static long seconds(double s) {
+        return (long)(s * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void rateCoversOnlyTheWindow() {
+        // Ten one-second buckets starting at 0
+        RateWindow window = new RateWindow(1000L, 10, 0L);
+        for(int s=0; s<5; s++) {
+            window.record(100, seconds(s + 0.5));
+        }
+        Assert.assertEquals(100.0, window.perSecond(seconds(5)), 0.01);
+        // Quiet for longer than the window; the old events no longer count
+        Assert.assertEquals(0.0, window.perSecond(seconds(30)), 0.01);
+        window.record(20, seconds(30.5));
+        Assert.assertEquals(20.0 / 9.5, window.perSecond(seconds(30.5)), 0.01);
+    }
+
+    @Test
+    public void reusedBucketStartsFromZero() {
+        RateWindow window = new RateWindow(1000L, 4, 0L);
+        window.record(50, seconds(0.5));
+        // Same slot, next lap of the ring
+        window.record(1, seconds(4.5));
+        Assert.assertEquals(1.0 / 3.5, window.perSecond(seconds(4.5)), 0.01);
+    }
+}
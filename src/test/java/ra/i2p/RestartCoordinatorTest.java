@@ -0,0 +1,132 @@
+package ra.i2p;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ra.common.Envelope;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RestartCoordinatorTest {
+
+    private static class TestSteps implements RestartCoordinator.Steps {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger soft = new AtomicInteger();
+        final AtomicInteger hard = new AtomicInteger();
+        final AtomicBoolean alive = new AtomicBoolean(true);
+        final List<Envelope> resent = new ArrayList<>();
+
+        @Override
+        public boolean restartSoft() {
+            soft.incrementAndGet();
+            await(release);
+            return true;
+        }
+
+        @Override
+        public boolean isRouterAlive() {
+            return alive.get();
+        }
+
+        @Override
+        public boolean restartHard() {
+            hard.incrementAndGet();
+            await(release);
+            return true;
+        }
+
+        @Override
+        public CompletableFuture<?> reconnect() {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public synchronized CompletableFuture<SendResult> resend(Envelope envelope) {
+            resent.add(envelope);
+            return CompletableFuture.completedFuture(SendResult.success());
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void holdsSendsUntilRestartFinishes() throws Exception {
+        TestSteps steps = new TestSteps();
+        RestartCoordinator coordinator = new RestartCoordinator(steps, 2, 5000L, 10L);
+        Assert.assertNull(coordinator.hold(Envelope.documentFactory()));
+
+        CompletableFuture<Boolean> restart = coordinator.request(false);
+        CompletableFuture<SendResult> first = coordinator.hold(Envelope.documentFactory());
+        CompletableFuture<SendResult> second = coordinator.hold(Envelope.documentFactory());
+        CompletableFuture<SendResult> third = coordinator.hold(Envelope.documentFactory());
+        Assert.assertFalse(first.isDone());
+        Assert.assertFalse(second.isDone());
+        Assert.assertTrue(third.isDone());
+        Assert.assertEquals(SendResult.CODE_QUEUE_FULL, third.get().getCode());
+        Assert.assertEquals(2, coordinator.held());
+        Assert.assertEquals(1L, coordinator.getRejected());
+
+        steps.release.countDown();
+        Assert.assertTrue(restart.get(5, TimeUnit.SECONDS));
+        Assert.assertTrue(first.get(5, TimeUnit.SECONDS).isSuccess());
+        Assert.assertTrue(second.get(5, TimeUnit.SECONDS).isSuccess());
+        Assert.assertEquals(2, steps.resent.size());
+        Assert.assertEquals(RestartCoordinator.State.IDLE, coordinator.getState());
+        Assert.assertNull(coordinator.hold(Envelope.documentFactory()));
+        coordinator.shutdown();
+    }
+
+    @Test
+    public void coalescesConcurrentRequests() throws Exception {
+        TestSteps steps = new TestSteps();
+        RestartCoordinator coordinator = new RestartCoordinator(steps, 10, 5000L, 10L);
+        CompletableFuture<Boolean> first = coordinator.request(true);
+        CompletableFuture<Boolean> second = coordinator.request(false);
+        Assert.assertSame(first, second);
+        steps.release.countDown();
+        Assert.assertTrue(first.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, steps.hard.get());
+        Assert.assertEquals(0, steps.soft.get());
+        Assert.assertEquals(1L, coordinator.getRestarts());
+        coordinator.shutdown();
+    }
+
+    @Test
+    public void joiningRequestsDoNotCountAsAttempts() throws Exception {
+        TestSteps steps = new TestSteps();
+        RestartCoordinator coordinator = new RestartCoordinator(steps, 10, 5000L, 10L);
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<Boolean> first = coordinator.request(() -> attempts.incrementAndGet() > 3);
+        for(int i=0; i<5; i++) {
+            coordinator.request(() -> attempts.incrementAndGet() > 3);
+        }
+        Assert.assertEquals(1, attempts.get());
+        steps.release.countDown();
+        Assert.assertTrue(first.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, steps.soft.get());
+        Assert.assertEquals(0, steps.hard.get());
+        coordinator.shutdown();
+    }
+
+    @Test
+    public void failsWhenRouterNotAliveInTime() throws Exception {
+        TestSteps steps = new TestSteps();
+        steps.release.countDown();
+        steps.alive.set(false);
+        RestartCoordinator coordinator = new RestartCoordinator(steps, 10, 50L, 10L);
+        Assert.assertFalse(coordinator.request(false).get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(RestartCoordinator.State.IDLE, coordinator.getState());
+        coordinator.shutdown();
+    }
+}
@@ -0,0 +1,54 @@
+package ra.i2p;
+
+import net.i2p.router.Router;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class RouterTuningTest {
+
+    @Test
+    public void onlyChangedSettingsAreApplied() {
+        Map<String, String> current = new HashMap<>();
+        current.put(RouterTuning.OUTBOUND_KBPS, "50");
+        current.put(RouterTuning.MAX_PARTICIPATING_TUNNELS, "20");
+        Map<String, String> requested = new HashMap<>();
+        requested.put(RouterTuning.OUTBOUND_KBPS, " 50 ");
+        requested.put(RouterTuning.MAX_PARTICIPATING_TUNNELS, "40");
+        Map<String, String> changes = RouterTuning.changes(requested, current::get);
+        Assert.assertEquals(1, changes.size());
+        Assert.assertEquals("40", changes.get(RouterTuning.MAX_PARTICIPATING_TUNNELS));
+        Assert.assertFalse(RouterTuning.needsBandwidthReinit(changes.keySet()));
+        Assert.assertFalse(RouterTuning.needsRestart(changes.keySet()));
+    }
+
+    @Test
+    public void bandwidthAppliesLiveAndHiddenModeRestarts() {
+        Assert.assertTrue(RouterTuning.needsBandwidthReinit(Collections.singleton(RouterTuning.SHARE_PERCENTAGE)));
+        Assert.assertFalse(RouterTuning.needsRestart(Collections.singleton(RouterTuning.SHARE_PERCENTAGE)));
+        Assert.assertTrue(RouterTuning.needsRestart(Collections.singleton(Router.PROP_HIDDEN)));
+        Assert.assertEquals("true", RouterTuning.validate(Router.PROP_HIDDEN, "TRUE"));
+    }
+
+    @Test
+    public void rejectsInvalidSettings() {
+        String[][] invalid = {
+                {RouterTuning.SHARE_PERCENTAGE, "101"},
+                {RouterTuning.INBOUND_KBPS, "-1"},
+                {RouterTuning.NTCP_MAX_CONNECTIONS, "lots"},
+                {RouterTuning.GEOIP_ENABLED, "yes"},
+                {"router.floodfillParticipant", "true"}
+        };
+        for(String[] setting : invalid) {
+            try {
+                RouterTuning.validate(setting[0], setting[1]);
+                Assert.fail(setting[0]+"="+setting[1]+" accepted");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package ra.i2p;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StatusPollScheduleTest {
+
+    @Test
+    public void backsOffWhileSettledAndResetsOnChange() {
+        StatusPollSchedule schedule = new StatusPollSchedule(1000L, 10000L);
+        Assert.assertEquals(1000L, schedule.current());
+        Assert.assertEquals(1000L, schedule.next(false));
+        Assert.assertEquals(2000L, schedule.next(true));
+        Assert.assertEquals(4000L, schedule.next(true));
+        Assert.assertEquals(8000L, schedule.next(true));
+        Assert.assertEquals(10000L, schedule.next(true));
+        Assert.assertEquals(10000L, schedule.next(true));
+        Assert.assertEquals(1000L, schedule.next(false));
+        schedule.next(true);
+        schedule.reset();
+        Assert.assertEquals(1000L, schedule.current());
+    }
+}
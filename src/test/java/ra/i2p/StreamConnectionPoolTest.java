@@ -0,0 +1,228 @@
+package ra.i2p;
+
+import net.i2p.I2PException;
+import net.i2p.client.I2PSession;
+import net.i2p.client.streaming.I2PServerSocket;
+import net.i2p.client.streaming.I2PSocket;
+import net.i2p.client.streaming.I2PSocketManager;
+import net.i2p.data.Destination;
+import net.i2p.data.Hash;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class StreamConnectionPoolTest {
+
+    private static Destination destination(String name) {
+        Hash hash = new Hash(new byte[32]) {
+            @Override
+            public String toBase64() {
+                return name;
+            }
+        };
+        return new Destination() {
+            @Override
+            public Hash calculateHash() {
+                return hash;
+            }
+        };
+    }
+
+    private static class FakeSocket implements I2PSocket {
+        private final OutputStream out;
+        private final InputStream in;
+        private volatile boolean closed;
+
+        private FakeSocket(OutputStream out, InputStream in) {
+            this.out = out;
+            this.in = in;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public Destination getPeerDestination() {
+            return destination("peer");
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static class FakeServerSocket implements I2PServerSocket {
+        private final BlockingQueue<I2PSocket> incoming = new LinkedBlockingQueue<>();
+        private final FakeSocket poison = new FakeSocket(null, null);
+        private volatile boolean closed;
+
+        @Override
+        public I2PSocket accept() throws ConnectException {
+            try {
+                I2PSocket socket = incoming.take();
+                if(socket==poison) {
+                    throw new ConnectException("closed");
+                }
+                return socket;
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            incoming.add(poison);
+        }
+    }
+
+    private static class FakeManager implements I2PSocketManager {
+        private final FakeServerSocket serverSocket = new FakeServerSocket();
+        // Output streams handed to successive connects; a plain buffer once used up
+        private final List<OutputStream> outputs = Collections.synchronizedList(new ArrayList<>());
+        private final List<FakeSocket> connected = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public I2PSession getSession() {
+            return null;
+        }
+
+        @Override
+        public void destroySocketManager() {
+        }
+
+        @Override
+        public I2PServerSocket getServerSocket() {
+            return serverSocket;
+        }
+
+        @Override
+        public I2PSocket connect(Destination d) {
+            OutputStream out = outputs.isEmpty() ? new ByteArrayOutputStream() : outputs.remove(0);
+            FakeSocket socket = new FakeSocket(out, null);
+            connected.add(socket);
+            return socket;
+        }
+    }
+
+    private static StreamConnectionPool pool(FakeManager manager, long idleTimeoutMs) {
+        return new StreamConnectionPool(manager, (d, p) -> {}, 1024, idleTimeoutMs, 8, 8, 1024 * 1024);
+    }
+
+    @Test
+    public void reusesConnectionPerDestination() {
+        FakeManager manager = new FakeManager();
+        StreamConnectionPool pool = pool(manager, 60000L);
+        Assert.assertTrue(pool.send(destination("a"), new byte[2000]));
+        Assert.assertTrue(pool.send(destination("a"), new byte[2000]));
+        Assert.assertEquals(1, manager.connected.size());
+        Assert.assertTrue(pool.send(destination("b"), new byte[2000]));
+        Assert.assertEquals(2, manager.connected.size());
+        Assert.assertEquals(2, pool.getOutboundConnections());
+        Assert.assertEquals(3L, pool.getFramesSent());
+        pool.close();
+    }
+
+    @Test
+    public void evictsIdleConnections() throws Exception {
+        FakeManager manager = new FakeManager();
+        StreamConnectionPool pool = pool(manager, 1L);
+        pool.send(destination("a"), new byte[2000]);
+        Thread.sleep(5);
+        Assert.assertEquals(1, pool.evictIdle());
+        Assert.assertEquals(0, pool.getOutboundConnections());
+        Assert.assertTrue(manager.connected.get(0).isClosed());
+        Assert.assertEquals(1L, pool.getIdleEvicted());
+        pool.close();
+    }
+
+    @Test
+    public void closeClosesServerSocketAndStreams() {
+        FakeManager manager = new FakeManager();
+        StreamConnectionPool pool = pool(manager, 60000L);
+        pool.start();
+        pool.send(destination("a"), new byte[2000]);
+        pool.close();
+        Assert.assertTrue(manager.serverSocket.closed);
+        Assert.assertTrue(manager.connected.get(0).isClosed());
+        Assert.assertEquals(0, pool.getOutboundConnections());
+        Assert.assertFalse(pool.shouldStream(2000));
+    }
+
+    @Test
+    public void retriesOnlyWhenNothingWritten() {
+        FakeManager manager = new FakeManager();
+        // Stream broken before taking anything: resent on a new connection
+        manager.outputs.add(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("broken");
+            }
+        });
+        StreamConnectionPool pool = pool(manager, 60000L);
+        Assert.assertTrue(pool.send(destination("a"), new byte[2000]));
+        Assert.assertEquals(2, manager.connected.size());
+
+        // Stream breaks after taking part of the frame: not resent
+        manager.outputs.add(new OutputStream() {
+            private int taken;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte)b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if(taken > 0) {
+                    throw new IOException("broken");
+                }
+                taken += len;
+            }
+        });
+        Assert.assertFalse(pool.send(destination("b"), new byte[20000]));
+        Assert.assertEquals(3, manager.connected.size());
+        pool.close();
+    }
+
+    @Test
+    public void readsInboundFrames() throws Exception {
+        FakeManager manager = new FakeManager();
+        CountDownLatch received = new CountDownLatch(2);
+        StreamConnectionPool pool = new StreamConnectionPool(manager, (d, p) -> received.countDown(), 1024, 60000L, 8, 8, 1024 * 1024);
+        pool.start();
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(frames);
+        for(int i=0; i<2; i++) {
+            out.writeInt(100);
+            out.write(new byte[100]);
+        }
+        FakeSocket socket = new FakeSocket(null, new ByteArrayInputStream(frames.toByteArray()));
+        manager.serverSocket.incoming.add(socket);
+        Assert.assertTrue(received.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2L, pool.getFramesReceived());
+        pool.close();
+    }
+}
@@ -0,0 +1,67 @@
+package ra.i2p;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Properties;
+
+public class TunnelAutoscalerTest {
+
+    private static TunnelAutoscaler scaler() {
+        // 2..6 tunnels at 20 msgs/s each, 32..256 connections, shrinking after 3 quiet intervals
+        return new TunnelAutoscaler(60000L, 2, 6, 20.0, 100, 0.4, 32, 256, 3);
+    }
+
+    @Test
+    public void growsWithSendRateAndShrinksSlowly() {
+        TunnelAutoscaler scaler = scaler();
+        Assert.assertTrue(scaler.next(new TunnelAutoscaler.Load(90.0, 0, 0.9, 10)));
+        Assert.assertEquals(5, scaler.getTunnels());
+        // Capped at max
+        scaler.next(new TunnelAutoscaler.Load(500.0, 0, 0.9, 10));
+        Assert.assertEquals(6, scaler.getTunnels());
+        // Idle: holds for two intervals then drops one at a time
+        Assert.assertFalse(scaler.next(new TunnelAutoscaler.Load(0.0, 0, -1.0, 20)));
+        Assert.assertFalse(scaler.next(new TunnelAutoscaler.Load(0.0, 0, -1.0, 20)));
+        Assert.assertTrue(scaler.next(new TunnelAutoscaler.Load(0.0, 0, -1.0, 20)));
+        Assert.assertEquals(5, scaler.getTunnels());
+    }
+
+    @Test
+    public void queueBacklogAddsTunnelUnlessBuildsFail() {
+        TunnelAutoscaler scaler = scaler();
+        Assert.assertFalse(scaler.next(new TunnelAutoscaler.Load(10.0, 500, 0.2, 10)));
+        Assert.assertEquals(2, scaler.getTunnels());
+        Assert.assertTrue(scaler.next(new TunnelAutoscaler.Load(10.0, 500, 0.8, 10)));
+        Assert.assertEquals(3, scaler.getTunnels());
+    }
+
+    @Test
+    public void connectionsFollowActivePeers() {
+        TunnelAutoscaler scaler = scaler();
+        scaler.reset(2, 32);
+        scaler.next(new TunnelAutoscaler.Load(0.0, 0, -1.0, 30));
+        Assert.assertEquals(48, scaler.getConnections());
+        scaler.next(new TunnelAutoscaler.Load(0.0, 0, -1.0, 45));
+        Assert.assertEquals(72, scaler.getConnections());
+        for(int i=0; i<3; i++) {
+            scaler.next(new TunnelAutoscaler.Load(0.0, 0, -1.0, 5));
+        }
+        Assert.assertEquals(48, scaler.getConnections());
+        // Never below min
+        scaler.reset(2, 10);
+        Assert.assertEquals(32, scaler.getConnections());
+    }
+
+    @Test
+    public void rejectsInvalidBounds() {
+        Properties config = new Properties();
+        config.setProperty(TunnelAutoscaler.PROP_MAX_TUNNELS, "20");
+        try {
+            TunnelAutoscaler.fromConfig(config);
+            Assert.fail("20 tunnels accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}